@@ -0,0 +1,214 @@
+package elasticsearch.ecommerce.app.json;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what happens to the responses of Elasticsearch before they are sent to the browser: adding the cursor,
+ * merging split aggregations and turning them into the compact format.
+ *
+ * The responses look like the ones of products_with_filtered_aggs with all facets filtered, a page of 16 hits with
+ * their full source, and facets with the given number of buckets each. Elasticsearch returns 10 buckets by default,
+ * the larger sizes show how the work grows with the aggregations.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchResponsesBenchmark {
+
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final int HITS = 16;
+    private static final List<String> FACETS = List.of("color", "brand", "material");
+
+    @Param({"10", "100", "1000"})
+    public int buckets;
+
+    // the response of the hits request, with and without the cursor added
+    private byte[] hits;
+    private byte[] hitsWithCursor;
+    // the response of the facets request
+    private byte[] facets;
+    // the merged response as it is cached
+    private byte[] merged;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(0);
+        hits = renderHits(random);
+        hitsWithCursor = SearchResponses.addNextCursor(hits, HITS);
+        facets = renderFacets(random, buckets);
+        merged = SearchResponses.mergeAggregations(hitsWithCursor, facets);
+    }
+
+    @Benchmark
+    public byte[] addNextCursor() throws IOException {
+        return SearchResponses.addNextCursor(hits, HITS);
+    }
+
+    @Benchmark
+    public byte[] mergeAggregations() throws IOException {
+        return SearchResponses.mergeAggregations(hitsWithCursor, facets);
+    }
+
+    @Benchmark
+    public long totalHits() throws IOException {
+        return SearchResponses.totalHits(merged);
+    }
+
+    @Benchmark
+    public long took() {
+        return SearchResponses.took(merged);
+    }
+
+    @Benchmark
+    public byte[] compact() throws IOException {
+        return CompactSearchResponse.compact(merged);
+    }
+
+    /**
+     * Everything done to the responses of a split search with tiering and the compact format
+     */
+    @Benchmark
+    public byte[] answer() throws IOException {
+        byte[] response = SearchResponses.mergeAggregations(SearchResponses.addNextCursor(hits, HITS), facets);
+        return CompactSearchResponse.compact(SearchResponses.addTier(response, "fuzzy"));
+    }
+
+    private static byte[] renderHits(Random random) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator gen = JSON.createGenerator(out, JsonEncoding.UTF8)) {
+            gen.writeStartObject();
+            gen.writeNumberField("took", 12);
+            gen.writeBooleanField("timed_out", false);
+            writeShards(gen);
+            gen.writeObjectFieldStart("hits");
+            gen.writeObjectFieldStart("total");
+            gen.writeNumberField("value", 4711);
+            gen.writeStringField("relation", "eq");
+            gen.writeEndObject();
+            gen.writeNullField("max_score");
+            gen.writeArrayFieldStart("hits");
+            for (int i = 0; i < HITS; i++) {
+                String id = String.format("%020d", random.nextLong() & Long.MAX_VALUE);
+                double score = 12.5 - i * 0.25;
+                gen.writeStartObject();
+                gen.writeStringField("_index", "products-1594038729000");
+                gen.writeStringField("_type", "_doc");
+                gen.writeStringField("_id", id);
+                gen.writeNullField("_score");
+                gen.writeObjectFieldStart("_source");
+                gen.writeStringField("name", "Leichter Schuh aus Leder Nummer " + i);
+                gen.writeNumberField("price", 1 + random.nextInt(99900) / 100.0);
+                gen.writeStringField("color", "rot");
+                gen.writeStringField("material", "Leder");
+                gen.writeStringField("id", id);
+                gen.writeStringField("productImageUrl", "https://picsum.photos/id/" + random.nextInt(1000) + "/200/200?blur=1");
+                gen.writeStringField("brand", "Müller GmbH");
+                gen.writeStringField("brandLogoUrl", "https://pigment.github.io/fake-logos/logos/medium/color/" + random.nextInt(13) + ".png");
+                gen.writeStringField("lastUpdated", "2020-03-14T09:26:53.589+0000");
+                gen.writeNumberField("stock", random.nextInt(10));
+                gen.writeNumberField("commission", 5 + random.nextInt(15));
+                gen.writeEndObject();
+                gen.writeArrayFieldStart("sort");
+                gen.writeNumber(score);
+                gen.writeString(id);
+                gen.writeEndArray();
+                gen.writeEndObject();
+            }
+            gen.writeEndArray();
+            gen.writeEndObject();
+            gen.writeEndObject();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] renderFacets(Random random, int buckets) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator gen = JSON.createGenerator(out, JsonEncoding.UTF8)) {
+            gen.writeStartObject();
+            gen.writeNumberField("took", 8);
+            gen.writeBooleanField("timed_out", false);
+            writeShards(gen);
+            gen.writeObjectFieldStart("hits");
+            gen.writeObjectFieldStart("total");
+            gen.writeNumberField("value", 4711);
+            gen.writeStringField("relation", "eq");
+            gen.writeEndObject();
+            gen.writeNullField("max_score");
+            gen.writeArrayFieldStart("hits");
+            gen.writeEndArray();
+            gen.writeEndObject();
+            gen.writeObjectFieldStart("aggregations");
+            for (String facet : FACETS) {
+                // filtered by the other facets, so the terms aggregation is wrapped in a filter aggregation
+                String name = "by_" + facet;
+                gen.writeObjectFieldStart(name);
+                gen.writeNumberField("doc_count", 4711);
+                gen.writeObjectFieldStart(name);
+                gen.writeNumberField("doc_count_error_upper_bound", 0);
+                gen.writeNumberField("sum_other_doc_count", random.nextInt(1000));
+                gen.writeArrayFieldStart("buckets");
+                int count = 4711;
+                for (int i = 0; i < buckets; i++) {
+                    count = Math.max(1, count - random.nextInt(50));
+                    gen.writeStartObject();
+                    gen.writeStringField("key", facet + " value " + i);
+                    gen.writeNumberField("doc_count", count);
+                    gen.writeEndObject();
+                }
+                gen.writeEndArray();
+                gen.writeEndObject();
+                gen.writeEndObject();
+            }
+            gen.writeObjectFieldStart("min_price");
+            gen.writeNumberField("value", 1.99);
+            gen.writeEndObject();
+            gen.writeObjectFieldStart("max_price");
+            gen.writeNumberField("value", 999.0);
+            gen.writeEndObject();
+            gen.writeObjectFieldStart("by_stock");
+            gen.writeObjectFieldStart("buckets");
+            gen.writeObjectFieldStart("in_stock");
+            gen.writeNumberField("doc_count", 4200);
+            gen.writeEndObject();
+            gen.writeObjectFieldStart("not_in_stock");
+            gen.writeNumberField("doc_count", 511);
+            gen.writeEndObject();
+            gen.writeEndObject();
+            gen.writeEndObject();
+            gen.writeEndObject();
+            gen.writeEndObject();
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeShards(JsonGenerator gen) throws IOException {
+        gen.writeObjectFieldStart("_shards");
+        gen.writeNumberField("total", 1);
+        gen.writeNumberField("successful", 1);
+        gen.writeNumberField("skipped", 0);
+        gen.writeNumberField("failed", 0);
+        gen.writeEndObject();
+    }
+}
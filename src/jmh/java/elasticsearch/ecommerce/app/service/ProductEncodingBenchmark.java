@@ -0,0 +1,97 @@
+package elasticsearch.ecommerce.app.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import elasticsearch.ecommerce.app.entities.Product;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per product work of {@link ProductIndexService#indexProducts}: generating a product, and encoding it
+ * into an index request. The object mapper is configured like the one of the application, with and without the
+ * indented output of application.yml. Generating and encoding are also measured a chunk of
+ * {@value CatalogGenerator#CHUNK_SIZE} products at a time, like {@link CatalogWriter} does it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProductEncodingBenchmark {
+
+    private static final int PRODUCTS = CatalogGenerator.CHUNK_SIZE;
+
+    @Param({"false", "true"})
+    public boolean indentOutput;
+
+    private ObjectMapper mapper;
+    private CatalogGenerator generator;
+    private Product[] products;
+    private int next;
+    private long nextChunk;
+
+    @Setup
+    public void setup() {
+        mapper = new ObjectMapper()
+                .configure(SerializationFeature.INDENT_OUTPUT, indentOutput)
+                .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+        generator = new CatalogGenerator(42);
+        products = generator.chunk(0, PRODUCTS);
+    }
+
+    @Benchmark
+    public Product generate() {
+        return generator.chunk(nextChunk++, 1)[0];
+    }
+
+    @Benchmark
+    public Product[] generateChunk() {
+        return generator.chunk(nextChunk++, CatalogGenerator.CHUNK_SIZE);
+    }
+
+    @Benchmark
+    public byte[] encodeBulkChunk() throws IOException {
+        return CatalogWriter.encode(products);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return mapper.writeValueAsBytes(nextProduct());
+    }
+
+    @Benchmark
+    public IndexRequest indexRequest() throws IOException {
+        Product product = nextProduct();
+        return new IndexRequest("products").id(product.getId()).source(mapper.writeValueAsBytes(product), XContentType.JSON);
+    }
+
+    /**
+     * The whole loop body of indexProducts, without the bulk requests
+     */
+    @Benchmark
+    public IndexRequest generateAndIndexRequest() throws IOException {
+        Product product = generator.chunk(nextChunk++, 1)[0];
+        return new IndexRequest("products").id(product.getId()).source(mapper.writeValueAsBytes(product), XContentType.JSON);
+    }
+
+    private Product nextProduct() {
+        Product product = products[next];
+        next = (next + 1) % products.length;
+        return product;
+    }
+}
@@ -0,0 +1,106 @@
+package elasticsearch.ecommerce.app.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import elasticsearch.ecommerce.app.entities.Query;
+import org.apache.lucene.util.BytesRef;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what every search does before it is sent: reading the query from the HTTP body, building the cache key and
+ * rendering the request bodies of each endpoint, for the filter combinations the search page sends.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchTemplatesBenchmark {
+
+    private static final Map<String, String> QUERIES = Map.of(
+            // the first search of the page, before anything was selected
+            "none", "{\"query\":\"Schuhe\",\"from\":0,\"filters\":[]}",
+            // a few facets selected, two values of the same facet are OR'ed
+            "terms", "{\"query\":\"Leichte Schuhe\",\"from\":16,\"filters\":["
+                    + "{\"key\":\"color\",\"value\":\"rot\",\"type\":\"term\"},"
+                    + "{\"key\":\"color\",\"value\":\"blau\",\"type\":\"term\"},"
+                    + "{\"key\":\"brand\",\"value\":\"Müller GmbH\",\"type\":\"term\"}]}",
+            // facets as well as price and stock ranges, which end up in the query instead of the post filter
+            "mixed", "{\"query\":\"Leichte Schuhe aus Leder\",\"from\":32,\"filters\":["
+                    + "{\"key\":\"color\",\"value\":\"rot\",\"type\":\"term\"},"
+                    + "{\"key\":\"brand\",\"value\":\"Müller GmbH\",\"type\":\"term\"},"
+                    + "{\"key\":\"brand\",\"value\":\"Schmidt AG\",\"type\":\"term\"},"
+                    + "{\"key\":\"material\",\"value\":\"Leder\",\"type\":\"term\"},"
+                    + "{\"key\":\"price\",\"value\":\"10-200\",\"type\":\"range\",\"from\":\"10\",\"to\":\"200\"},"
+                    + "{\"key\":\"stock\",\"value\":\"1-\",\"type\":\"range\",\"from\":\"1\",\"to\":\"\"}]}");
+
+    @Param({"products_only", "products_with_aggs", "products_with_filtered_aggs"})
+    public String endpoint;
+
+    @Param({"none", "terms", "mixed"})
+    public String filters;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private SearchTemplates templates;
+    private SearchEndpoint searchEndpoint;
+    private byte[] body;
+    private Query query;
+
+    @Setup
+    public void setup() throws IOException {
+        templates = new SearchTemplates();
+        for (SearchEndpoint value : SearchEndpoint.values()) {
+            if (value.getName().equals(endpoint)) {
+                searchEndpoint = value;
+            }
+        }
+        body = QUERIES.get(filters).getBytes(StandardCharsets.UTF_8);
+        query = mapper.readValue(body, Query.class);
+    }
+
+    @Benchmark
+    public BytesRef render() throws IOException {
+        return templates.render(searchEndpoint, query, SearchTier.FUZZY, SearchResponseFormat.FULL);
+    }
+
+    /**
+     * The two requests of a search with split facets, or the single one of a search without aggregations
+     */
+    @Benchmark
+    public void renderSplit(Blackhole blackhole) throws IOException {
+        blackhole.consume(templates.renderHits(query, SearchTier.FUZZY, SearchResponseFormat.FULL));
+        if (searchEndpoint != SearchEndpoint.PRODUCTS_ONLY) {
+            blackhole.consume(templates.renderFacets(searchEndpoint, query, SearchTier.FUZZY));
+        }
+    }
+
+    @Benchmark
+    public String canonicalForm() {
+        return query.canonicalForm();
+    }
+
+    /**
+     * Everything from the bytes of the HTTP body to the bytes of the search request
+     */
+    @Benchmark
+    public BytesRef parseAndRender() throws IOException {
+        Query parsed = mapper.readValue(body, Query.class);
+        return templates.render(searchEndpoint, parsed, SearchTier.FUZZY, SearchResponseFormat.FULL);
+    }
+}
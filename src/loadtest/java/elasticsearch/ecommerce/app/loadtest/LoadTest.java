@@ -0,0 +1,214 @@
+package elasticsearch.ecommerce.app.loadtest;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import elasticsearch.ecommerce.app.Application;
+import io.micronaut.context.ApplicationContext;
+import io.micronaut.runtime.Micronaut;
+import io.micronaut.runtime.server.EmbeddedServer;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the throughput and latency of the application itself, without Elasticsearch: the application is started
+ * against a {@link StubElasticsearch} in the same JVM, which answers after a fixed latency.
+ *
+ * First the catalog is generated and indexed once with /admin/index_data. Then every search endpoint is driven by an
+ * {@link OpenLoadGenerator} at increasing rates, until the 99th percentile latency exceeds its objective, too many
+ * requests fail, or the rate cannot be reached anymore. The last rate that passed is the maximum sustainable rate of
+ * the endpoint. Everything runs offline on a single machine, so results are only comparable on the same hardware.
+ *
+ * Configured with system properties, see README.md.
+ */
+public final class LoadTest {
+
+    private static final Pattern DURATION = Pattern.compile("(\\d+)(ms|s|m)");
+    private static final ObjectMapper MAPPER = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    private final Duration latency = duration("loadtest.latency", "5ms");
+    private final Duration latencyJitter = duration("loadtest.latency-jitter", "5ms");
+    private final int stubThreads = Integer.getInteger("loadtest.stub-threads", 32);
+    private final int products = Integer.getInteger("loadtest.products", 10_000);
+    private final int distinctQueries = Integer.getInteger("loadtest.distinct-queries", 10_000);
+    private final String format = System.getProperty("loadtest.format", "full");
+    private final List<String> endpoints = List.of(System.getProperty("loadtest.endpoints",
+            "products_only,products_with_aggs,products_with_filtered_aggs").split(","));
+    private final Duration warmup = duration("loadtest.warmup", "10s");
+    private final Duration stepDuration = duration("loadtest.step-duration", "10s");
+    private final double startRate = Double.parseDouble(System.getProperty("loadtest.start-rate", "100"));
+    private final double maxRate = Double.parseDouble(System.getProperty("loadtest.max-rate", "20000"));
+    private final double rateFactor = Double.parseDouble(System.getProperty("loadtest.rate-factor", "1.5"));
+    private final Duration latencyObjective = duration("loadtest.p99-objective", "100ms");
+    private final double maxFailureRatio = Double.parseDouble(System.getProperty("loadtest.max-failure-ratio", "0.01"));
+    private final long seed = Long.getLong("loadtest.seed", 42);
+    private final String report = System.getProperty("loadtest.report");
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+
+    public static void main(String[] args) throws Exception {
+        new LoadTest().run(args);
+    }
+
+    private void run(String[] args) throws Exception {
+        // warnings only, so that logging of the application does not end up in the measurements
+        ((Logger) LoggerFactory.getLogger("elasticsearch.ecommerce.app"))
+                .setLevel(Level.toLevel(System.getProperty("loadtest.app-log-level"), Level.WARN));
+
+        Map<String, Object> results = new LinkedHashMap<>();
+        results.put("latency_millis", latency.toMillis());
+        results.put("latency_jitter_millis", latencyJitter.toMillis());
+        results.put("format", format);
+        results.put("processors", Runtime.getRuntime().availableProcessors());
+
+        try (StubElasticsearch elasticsearch = new StubElasticsearch(latency, latencyJitter, stubThreads)) {
+            elasticsearch.start();
+            try (ApplicationContext application = Micronaut.build(args)
+                    .mainClass(Application.class)
+                    .properties(Map.of("micronaut.server.port", -1, "elasticsearch.http-hosts", elasticsearch.url()))
+                    .start()) {
+                String url = "http://localhost:" + application.getBean(EmbeddedServer.class).getPort();
+                System.out.printf("application at %s, elasticsearch stub at %s answering after %d ms + up to %d ms%n",
+                        url, elasticsearch.url(), latency.toMillis(), latencyJitter.toMillis());
+
+                results.put("index_data", indexData(url));
+                Map<String, Object> searches = new LinkedHashMap<>();
+                for (String endpoint : endpoints) {
+                    searches.put(endpoint, search(url, endpoint));
+                }
+                results.put("search", searches);
+                System.out.printf("%nElasticsearch stub answered %d searches and %d bulk requests%n",
+                        elasticsearch.searches(), elasticsearch.bulkRequests());
+            }
+        }
+
+        if (report != null) {
+            File file = new File(report);
+            file.getAbsoluteFile().getParentFile().mkdirs();
+            MAPPER.writeValue(file, results);
+            System.out.println("Results written to " + file);
+        }
+    }
+
+    /**
+     * Indexes the generated catalog once, which is a single job at a time, so it is measured as throughput
+     */
+    private Map<String, Object> indexData(String url) throws IOException, InterruptedException {
+        System.out.printf("%nindexing %d products generated with seed %d%n", products, seed);
+        HttpRequest start = HttpRequest.newBuilder(URI.create(url + "/admin/index_data?numberOfProducts=" + products + "&seed=" + seed))
+                .POST(HttpRequest.BodyPublishers.noBody())
+                .build();
+        Map<?, ?> job = MAPPER.readValue(client.send(start, HttpResponse.BodyHandlers.ofByteArray()).body(), Map.class);
+        HttpRequest status = HttpRequest.newBuilder(URI.create(url + "/admin/jobs/" + job.get("id"))).build();
+        while ("queued".equals(job.get("state")) || "running".equals(job.get("state"))) {
+            Thread.sleep(200);
+            job = MAPPER.readValue(client.send(status, HttpResponse.BodyHandlers.ofByteArray()).body(), Map.class);
+        }
+
+        long elapsedMillis = ((Number) job.get("elapsedMillis")).longValue();
+        double productsPerSecond = ((Number) job.get("processed")).longValue() / Math.max(1, elapsedMillis / 1000.0);
+        System.out.printf("%s after %d ms, %.0f products/s%n", job.get("state"), elapsedMillis, productsPerSecond);
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("state", job.get("state"));
+        result.put("products", products);
+        result.put("elapsed_millis", elapsedMillis);
+        result.put("products_per_second", Math.round(productsPerSecond));
+        return result;
+    }
+
+    /**
+     * Increases the rate until a step does not pass anymore
+     */
+    private Map<String, Object> search(String url, String endpoint) throws IOException, InterruptedException {
+        URI uri = URI.create(url + "/search/" + endpoint + "?format=" + format);
+        SearchWorkload workload = new SearchWorkload(distinctQueries, seed);
+        OpenLoadGenerator generator = new OpenLoadGenerator(client, seed);
+
+        System.out.printf("%n%s, passing with p99 <= %d ms and <= %.1f%% failures%n", endpoint, latencyObjective.toMillis(),
+                maxFailureRatio * 100);
+        generator.run(startRate, warmup, () -> request(uri, workload));
+        System.out.printf("%10s %10s %9s %9s %9s %9s  %s%n", "target/s", "achieved/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "failures");
+
+        List<Map<String, Object>> steps = new ArrayList<>();
+        double maxSustainableRate = 0;
+        for (double rate = startRate; rate <= maxRate; rate *= rateFactor) {
+            OpenLoadGenerator.Result result = generator.run(rate, stepDuration, () -> request(uri, workload));
+            boolean passed = result.percentileMillis(99) <= latencyObjective.toMillis()
+                    && result.failureRatio() <= maxFailureRatio
+                    && result.achievedRate() >= rate * 0.95;
+            System.out.printf("%10.0f %10.0f %9.1f %9.1f %9.1f %9.1f  %s%s%n", rate, result.achievedRate(),
+                    result.percentileMillis(50), result.percentileMillis(99), result.percentileMillis(99.9), result.maxMillis(),
+                    result.failures().isEmpty() ? "-" : result.failures(), passed ? "" : "  FAILED");
+            steps.add(step(result, passed));
+            if (passed == false) {
+                break;
+            }
+            maxSustainableRate = rate;
+            // let the application settle before the next step
+            Thread.sleep(1000);
+        }
+        System.out.printf("max sustainable rate of %s: %.0f/s%n", endpoint, maxSustainableRate);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("max_sustainable_rate", Math.round(maxSustainableRate));
+        result.put("steps", steps);
+        return result;
+    }
+
+    private static HttpRequest request(URI uri, SearchWorkload workload) {
+        return HttpRequest.newBuilder(uri)
+                .header("Content-Type", "application/json")
+                .timeout(Duration.ofSeconds(30))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(workload.next()))
+                .build();
+    }
+
+    private static Map<String, Object> step(OpenLoadGenerator.Result result, boolean passed) {
+        Map<String, Object> step = new LinkedHashMap<>();
+        step.put("target_rate", Math.round(result.targetRate()));
+        step.put("achieved_rate", Math.round(result.achievedRate()));
+        step.put("sent", result.sent());
+        step.put("failed", result.failed());
+        step.put("failures", result.failures());
+        step.put("p50_millis", result.percentileMillis(50));
+        step.put("p99_millis", result.percentileMillis(99));
+        step.put("p999_millis", result.percentileMillis(99.9));
+        step.put("max_millis", result.maxMillis());
+        step.put("passed", passed);
+        return step;
+    }
+
+    private static Duration duration(String property, String defaultValue) {
+        String value = System.getProperty(property, defaultValue);
+        Matcher matcher = DURATION.matcher(value);
+        if (matcher.matches() == false) {
+            throw new IllegalArgumentException("Expected a duration like 5ms, 10s or 1m for [" + property + "], but got [" + value + "]");
+        }
+        long amount = Long.parseLong(matcher.group(1));
+        switch (matcher.group(2)) {
+            case "ms":
+                return Duration.ofMillis(amount);
+            case "s":
+                return Duration.ofSeconds(amount);
+            default:
+                return Duration.ofMinutes(amount);
+        }
+    }
+}
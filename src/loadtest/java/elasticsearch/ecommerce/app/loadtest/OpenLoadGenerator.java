@@ -0,0 +1,156 @@
+package elasticsearch.ecommerce.app.loadtest;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Sends requests at a given rate, no matter how long the responses take, like independent users do. The time between
+ * two requests is exponentially distributed, so requests arrive as a Poisson process and not in lockstep.
+ *
+ * Latency is measured from the time a request was scheduled to be sent, not from the time it was actually sent. If the
+ * generator itself falls behind, the delay is part of the latency instead of being hidden by sending fewer requests.
+ */
+final class OpenLoadGenerator {
+
+    private static final long HIGHEST_LATENCY_NANOS = TimeUnit.MINUTES.toNanos(1);
+    // more requests than this in flight means the application cannot keep up, further requests are counted as failed
+    private static final int MAX_IN_FLIGHT = 20_000;
+
+    private final HttpClient client;
+    private final Random random;
+
+    OpenLoadGenerator(HttpClient client, long seed) {
+        this.client = client;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Sends requests for the given duration and waits for their responses
+     *
+     * @param rate requests per second
+     * @param requests creates the next request to send
+     */
+    Result run(double rate, Duration duration, Supplier<HttpRequest> requests) throws InterruptedException {
+        Histogram latencies = new ConcurrentHistogram(HIGHEST_LATENCY_NANOS, 3);
+        Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+        LongAdder succeeded = new LongAdder();
+        AtomicInteger inFlight = new AtomicInteger();
+
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+        long scheduled = start;
+        long sent = 0;
+        while (true) {
+            scheduled += (long) (-Math.log(1 - random.nextDouble()) / rate * TimeUnit.SECONDS.toNanos(1));
+            if (scheduled >= end) {
+                break;
+            }
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            sent++;
+            if (inFlight.get() >= MAX_IN_FLIGHT) {
+                failures.computeIfAbsent("overloaded", k -> new LongAdder()).increment();
+                continue;
+            }
+            inFlight.incrementAndGet();
+            long intendedStart = scheduled;
+            client.sendAsync(requests.get(), HttpResponse.BodyHandlers.discarding()).whenComplete((response, e) -> {
+                latencies.recordValue(Math.min(System.nanoTime() - intendedStart, HIGHEST_LATENCY_NANOS));
+                if (e != null) {
+                    failures.computeIfAbsent(e.getClass().getSimpleName(), k -> new LongAdder()).increment();
+                } else if (response.statusCode() >= 300) {
+                    failures.computeIfAbsent(String.valueOf(response.statusCode()), k -> new LongAdder()).increment();
+                } else {
+                    succeeded.increment();
+                }
+                inFlight.decrementAndGet();
+            });
+        }
+
+        // responses still missing after this are failures, they would have been answered far too late anyway
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (inFlight.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        if (inFlight.get() > 0) {
+            failures.computeIfAbsent("unanswered", k -> new LongAdder()).add(inFlight.get());
+        }
+
+        Map<String, Long> failureCounts = new TreeMap<>();
+        failures.forEach((reason, count) -> failureCounts.put(reason, count.sum()));
+        return new Result(rate, duration, sent, succeeded.sum(), failureCounts, latencies);
+    }
+
+    static final class Result {
+
+        private final double targetRate;
+        private final Duration duration;
+        private final long sent;
+        private final long succeeded;
+        private final Map<String, Long> failures;
+        private final Histogram latencies;
+
+        private Result(double targetRate, Duration duration, long sent, long succeeded, Map<String, Long> failures, Histogram latencies) {
+            this.targetRate = targetRate;
+            this.duration = duration;
+            this.sent = sent;
+            this.succeeded = succeeded;
+            this.failures = failures;
+            this.latencies = latencies;
+        }
+
+        double targetRate() {
+            return targetRate;
+        }
+
+        /**
+         * @return requests per second answered successfully
+         */
+        double achievedRate() {
+            return succeeded / (duration.toNanos() / 1e9);
+        }
+
+        long sent() {
+            return sent;
+        }
+
+        long failed() {
+            return failures.values().stream().mapToLong(Long::longValue).sum();
+        }
+
+        double failureRatio() {
+            return sent == 0 ? 0 : failed() / (double) sent;
+        }
+
+        /**
+         * @return failed requests by status code or exception
+         */
+        Map<String, Long> failures() {
+            return failures;
+        }
+
+        double percentileMillis(double percentile) {
+            return latencies.getValueAtPercentile(percentile) / 1e6;
+        }
+
+        double maxMillis() {
+            return latencies.getMaxValue() / 1e6;
+        }
+    }
+}
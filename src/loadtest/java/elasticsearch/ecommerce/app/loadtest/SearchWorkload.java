@@ -0,0 +1,122 @@
+package elasticsearch.ecommerce.app.loadtest;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The search requests the search page sends, drawn from a fixed set of distinct queries. Some queries are much more
+ * popular than others, queries are picked following a Zipf distribution, so the application caches see about the hit
+ * ratio they see in production.
+ *
+ * Half of the queries have no filters, like the first search of a page. The others select some facet values, and some
+ * of them a price range as well. Some queries ask for the second or third page.
+ */
+final class SearchWorkload {
+
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final String[] ADJECTIVES = {"Leichte", "Kleine", "Große", "Rustikale", "Elegante", "Robuste", "Praktische",
+            "Fantastische", "Ergonomische", "Glänzende"};
+    private static final String[] PRODUCTS = {"Schuhe", "Stuhl", "Tisch", "Lampe", "Hose", "Mantel", "Tasche", "Uhr", "Handschuhe", "Hut",
+            "Auto", "Computer", "Tastatur", "Hemd", "Messer"};
+    private static final String[] MATERIALS = {"Leder", "Holz", "Stahl", "Baumwolle", "Gummi", "Granit", "Plastik", "Kupfer", "Seide", "Wolle"};
+    private static final String[] COLORS = {"rot", "blau", "grün", "schwarz", "weiß", "gelb", "grau", "braun", "lila", "orange"};
+    private static final String[] BRANDS = {"Müller GmbH", "Schmidt AG", "Schneider KG", "Fischer OHG", "Weber GmbH", "Meyer AG",
+            "Wagner GmbH", "Becker KG", "Schulz AG", "Hoffmann GmbH"};
+
+    private final byte[][] bodies;
+    // cumulative probabilities of the bodies, the first one is the most popular
+    private final double[] popularity;
+    private final Random random;
+
+    SearchWorkload(int distinctQueries, long seed) throws IOException {
+        Random random = new Random(seed);
+        this.bodies = new byte[distinctQueries][];
+        for (int i = 0; i < distinctQueries; i++) {
+            bodies[i] = body(random);
+        }
+        this.popularity = new double[distinctQueries];
+        double sum = 0;
+        for (int i = 0; i < distinctQueries; i++) {
+            sum += 1.0 / (i + 1);
+            popularity[i] = sum;
+        }
+        for (int i = 0; i < distinctQueries; i++) {
+            popularity[i] /= sum;
+        }
+        this.random = new Random(seed + 1);
+    }
+
+    /**
+     * @return the body of the next search request, only called from the thread sending the requests
+     */
+    byte[] next() {
+        int index = Arrays.binarySearch(popularity, random.nextDouble());
+        return bodies[Math.min(index < 0 ? -index - 1 : index, bodies.length - 1)];
+    }
+
+    private static byte[] body(Random random) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        try (JsonGenerator gen = JSON.createGenerator(out, JsonEncoding.UTF8)) {
+            gen.writeStartObject();
+            StringBuilder query = new StringBuilder();
+            if (random.nextInt(3) > 0) {
+                query.append(pick(random, ADJECTIVES)).append(' ');
+            }
+            query.append(pick(random, PRODUCTS));
+            if (random.nextInt(4) == 0) {
+                query.append(" aus ").append(pick(random, MATERIALS));
+            }
+            gen.writeStringField("query", query.toString());
+            int page = random.nextInt(10);
+            gen.writeNumberField("from", page < 7 ? 0 : page < 9 ? 16 : 32);
+            gen.writeArrayFieldStart("filters");
+            if (random.nextBoolean()) {
+                int terms = 1 + random.nextInt(3);
+                for (int i = 0; i < terms; i++) {
+                    switch (random.nextInt(3)) {
+                        case 0:
+                            writeTermFilter(gen, "color", pick(random, COLORS));
+                            break;
+                        case 1:
+                            writeTermFilter(gen, "brand", pick(random, BRANDS));
+                            break;
+                        default:
+                            writeTermFilter(gen, "material", pick(random, MATERIALS));
+                    }
+                }
+                if (random.nextInt(3) == 0) {
+                    int from = 10 * random.nextInt(20);
+                    int to = from + 50 * (1 + random.nextInt(10));
+                    gen.writeStartObject();
+                    gen.writeStringField("key", "price");
+                    gen.writeStringField("value", from + "-" + to);
+                    gen.writeStringField("type", "range");
+                    gen.writeStringField("from", String.valueOf(from));
+                    gen.writeStringField("to", String.valueOf(to));
+                    gen.writeEndObject();
+                }
+            }
+            gen.writeEndArray();
+            gen.writeEndObject();
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeTermFilter(JsonGenerator gen, String key, String value) throws IOException {
+        gen.writeStartObject();
+        gen.writeStringField("key", key);
+        gen.writeStringField("value", value);
+        gen.writeStringField("type", "term");
+        gen.writeEndObject();
+    }
+
+    private static String pick(Random random, String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+}
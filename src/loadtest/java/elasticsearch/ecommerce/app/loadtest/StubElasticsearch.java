@@ -0,0 +1,386 @@
+package elasticsearch.ecommerce.app.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Plays the part of Elasticsearch for the load test, so that only the application itself is measured.
+ *
+ * Searches are answered with canned responses shaped like the real ones: a page of hits with their full source, or
+ * only the fields of a _source filter, plus the aggregations if the search asks for them. Bulk requests report every
+ * document as created, and the requests of an indexing run are acknowledged. Searches, multi searches and bulk
+ * requests are answered after the configured latency, without blocking a thread while waiting.
+ */
+final class StubElasticsearch implements Closeable {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final int HITS = 16;
+    private static final int SCROLL_HITS = 1000;
+    private static final String INDEX = "products-stub";
+    private static final String[] COLORS = {"rot", "blau", "grün", "schwarz", "weiß", "gelb", "grau", "braun", "lila", "orange"};
+    private static final String[] MATERIALS = {"Leder", "Holz", "Stahl", "Baumwolle", "Gummi", "Granit", "Plastik", "Kupfer", "Seide", "Wolle"};
+    private static final String[] BRANDS = {"Müller GmbH", "Schmidt AG", "Schneider KG", "Fischer OHG", "Weber GmbH", "Meyer AG",
+            "Wagner GmbH", "Becker KG", "Schulz AG", "Hoffmann GmbH"};
+    private static final String[] PRODUCTS = {"Schuhe", "Stuhl", "Tisch", "Lampe", "Hose", "Mantel", "Tasche", "Uhr", "Handschuhe", "Hut"};
+
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final ScheduledExecutorService delays;
+    private final long latencyNanos;
+    private final long latencyJitterNanos;
+    private final AtomicLong searches = new AtomicLong();
+    private final AtomicLong bulkRequests = new AtomicLong();
+
+    private final Canned hits;
+    private final Canned hitsWithAggs;
+    private final Canned filteredHits;
+    private final Canned filteredHitsWithAggs;
+    private final Canned aggs;
+    private final Canned scrollPage;
+    private final Canned lastScrollPage;
+
+    /**
+     * @param latency how long searches and bulk requests take at least
+     * @param latencyJitter up to how much longer they take, uniformly distributed
+     */
+    StubElasticsearch(Duration latency, Duration latencyJitter, int threads) throws IOException {
+        this.latencyNanos = latency.toNanos();
+        this.latencyJitterNanos = latencyJitter.toNanos();
+
+        List<Map<String, Object>> products = new ArrayList<>();
+        for (int i = 0; i < SCROLL_HITS; i++) {
+            products.add(product(i));
+        }
+        Map<String, Object> aggregations = aggregations();
+        this.hits = new Canned(searchResponse(products.subList(0, HITS), false, null));
+        this.hitsWithAggs = new Canned(searchResponse(products.subList(0, HITS), false, aggregations));
+        this.filteredHits = new Canned(searchResponse(products.subList(0, HITS), true, null));
+        this.filteredHitsWithAggs = new Canned(searchResponse(products.subList(0, HITS), true, aggregations));
+        this.aggs = new Canned(searchResponse(List.of(), false, aggregations));
+        Map<String, Object> scroll = searchResponse(products, false, null);
+        scroll.put("_scroll_id", "stub");
+        this.scrollPage = new Canned(scroll);
+        Map<String, Object> lastScroll = searchResponse(List.of(), false, null);
+        lastScroll.put("_scroll_id", "stub");
+        this.lastScrollPage = new Canned(lastScroll);
+
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        this.handlers = Executors.newFixedThreadPool(threads, daemon("stub-elasticsearch"));
+        this.delays = Executors.newSingleThreadScheduledExecutor(daemon("stub-elasticsearch-latency"));
+        server.createContext("/", this::handle);
+        server.setExecutor(handlers);
+    }
+
+    void start() {
+        server.start();
+    }
+
+    String url() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    long searches() {
+        return searches.get();
+    }
+
+    long bulkRequests() {
+        return bulkRequests.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        delays.shutdownNow();
+        handlers.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        String query = exchange.getRequestURI().getQuery();
+        byte[] body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = in.readAllBytes();
+        }
+
+        if (path.endsWith("/_msearch")) {
+            searches.incrementAndGet();
+            respondLater(exchange, multiSearch(body));
+        } else if (path.equals("/_search/scroll")) {
+            respond(exchange, "DELETE".equals(method) ? json(Map.of("succeeded", true, "num_freed", 1)) : lastScrollPage);
+        } else if (path.endsWith("/_search") && query != null && query.contains("scroll=")) {
+            respond(exchange, scrollPage);
+        } else if (path.endsWith("/_search")) {
+            searches.incrementAndGet();
+            respondLater(exchange, search(body));
+        } else if (path.endsWith("/_bulk")) {
+            bulkRequests.incrementAndGet();
+            respondLater(exchange, bulk(body));
+        } else if (path.endsWith("/_count")) {
+            respond(exchange, json(Map.of("count", SCROLL_HITS, "_shards", shards())));
+        } else if (path.endsWith("/_refresh") || path.endsWith("/_forcemerge")) {
+            respond(exchange, json(Map.of("_shards", shards())));
+        } else if (path.endsWith("/_settings") || path.equals("/_aliases") || "DELETE".equals(method)) {
+            respond(exchange, json(Map.of("acknowledged", true)));
+        } else if ("PUT".equals(method)) {
+            respond(exchange, json(Map.of("acknowledged", true, "shards_acknowledged", true, "index", path.substring(1))));
+        } else if ("HEAD".equals(method)) {
+            // every index exists
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        } else if ("GET".equals(method) && path.equals("/products")) {
+            // the products alias points to a single index
+            respond(exchange, json(Map.of(INDEX, Map.of("aliases", Map.of("products", Map.of()), "mappings", Map.of(),
+                    "settings", Map.of("index", Map.of("number_of_shards", "1"))))));
+        } else {
+            byte[] error = MAPPER.writeValueAsBytes(Map.of("error", Map.of("type", "stub_exception",
+                    "reason", "not played by the stub: " + method + " " + path), "status", 404));
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(404, error.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(error);
+            }
+        }
+    }
+
+    private Canned search(byte[] body) {
+        String source = new String(body, StandardCharsets.UTF_8);
+        boolean withAggs = source.contains("\"aggs\"");
+        if (withAggs && source.contains("\"size\":0")) {
+            return aggs;
+        }
+        if (source.contains("\"_source\"")) {
+            return withAggs ? filteredHitsWithAggs : filteredHits;
+        }
+        return withAggs ? hitsWithAggs : hits;
+    }
+
+    // every second line of a multi search is a search body
+    private Canned multiSearch(byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("{\"took\":1,\"responses\":[".getBytes(StandardCharsets.UTF_8));
+        String[] lines = new String(body, StandardCharsets.UTF_8).split("\n");
+        for (int i = 1; i < lines.length; i += 2) {
+            if (i > 1) {
+                out.write(',');
+            }
+            out.write(search(lines[i].getBytes(StandardCharsets.UTF_8)).inMultiSearch());
+        }
+        out.write("]}".getBytes(StandardCharsets.UTF_8));
+        return new Canned(out.toByteArray());
+    }
+
+    // every action has a source line
+    private Canned bulk(byte[] body) {
+        int actions = 0;
+        for (byte b : body) {
+            if (b == '\n') {
+                actions++;
+            }
+        }
+        actions /= 2;
+        List<Map<String, Object>> items = new ArrayList<>(actions);
+        for (int i = 0; i < actions; i++) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("_index", INDEX);
+            item.put("_type", "_doc");
+            item.put("_id", String.valueOf(i));
+            item.put("_version", 1);
+            item.put("result", "created");
+            item.put("_shards", Map.of("total", 1, "successful", 1, "failed", 0));
+            item.put("_seq_no", i);
+            item.put("_primary_term", 1);
+            item.put("status", 201);
+            items.add(Map.of("index", item));
+        }
+        return json(Map.of("took", 1, "errors", false, "items", items));
+    }
+
+    private void respondLater(HttpExchange exchange, Canned response) {
+        long delay = latencyNanos + (latencyJitterNanos > 0 ? ThreadLocalRandom.current().nextLong(latencyJitterNanos) : 0);
+        if (delay <= 0) {
+            respondQuietly(exchange, response);
+        } else {
+            delays.schedule(() -> handlers.execute(() -> respondQuietly(exchange, response)), delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void respondQuietly(HttpExchange exchange, Canned response) {
+        try {
+            respond(exchange, response);
+        } catch (IOException e) {
+            // the application went away, i.e. because it cancelled the search
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, Canned response) throws IOException {
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+        byte[] bytes = gzip ? response.gzipped() : response.plain;
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        if (gzip) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, Object> product(int i) {
+        Map<String, Object> product = new LinkedHashMap<>();
+        product.put("name", PRODUCTS[i % PRODUCTS.length] + " aus " + MATERIALS[(i / 10) % MATERIALS.length]);
+        product.put("price", 1 + (i * 7919 % 99900) / 100.0);
+        product.put("color", COLORS[i % COLORS.length]);
+        product.put("material", MATERIALS[(i / 10) % MATERIALS.length]);
+        product.put("id", String.format("%020d", i * 104729L));
+        product.put("productImageUrl", "https://picsum.photos/id/" + (i % 1000) + "/200/200?blur=1");
+        product.put("brand", BRANDS[(i / 100) % BRANDS.length]);
+        product.put("brandLogoUrl", "https://pigment.github.io/fake-logos/logos/medium/color/" + (i % 13) + ".png");
+        product.put("lastUpdated", "2020-03-14T09:26:53.589+0000");
+        product.put("stock", i % 10);
+        product.put("commission", 5 + i % 15);
+        return product;
+    }
+
+    private static Map<String, Object> searchResponse(List<Map<String, Object>> products, boolean filteredSource,
+                                                      Map<String, Object> aggregations) {
+        List<Map<String, Object>> hits = new ArrayList<>(products.size());
+        for (int i = 0; i < products.size(); i++) {
+            Map<String, Object> product = products.get(i);
+            Map<String, Object> source = new LinkedHashMap<>(product);
+            if (filteredSource) {
+                source.keySet().removeAll(List.of("lastUpdated", "stock", "commission"));
+            }
+            Map<String, Object> hit = new LinkedHashMap<>();
+            hit.put("_index", INDEX);
+            hit.put("_type", "_doc");
+            hit.put("_id", product.get("id"));
+            hit.put("_score", null);
+            hit.put("_source", source);
+            hit.put("sort", List.of(12.5 - i * 0.25, product.get("id")));
+            hits.add(hit);
+        }
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("took", 3);
+        response.put("timed_out", false);
+        response.put("_shards", shards());
+        Map<String, Object> hitsObject = new LinkedHashMap<>();
+        hitsObject.put("total", Map.of("value", 4711, "relation", "eq"));
+        hitsObject.put("max_score", null);
+        hitsObject.put("hits", hits);
+        response.put("hits", hitsObject);
+        if (aggregations != null) {
+            response.put("aggregations", aggregations);
+        }
+        return response;
+    }
+
+    private static Map<String, Object> aggregations() {
+        Map<String, Object> aggregations = new LinkedHashMap<>();
+        aggregations.put("by_color", terms(COLORS));
+        aggregations.put("by_brand", terms(BRANDS));
+        aggregations.put("by_material", terms(MATERIALS));
+        aggregations.put("min_price", Map.of("value", 1.0));
+        aggregations.put("max_price", Map.of("value", 999.0));
+        aggregations.put("by_stock", Map.of("buckets", Map.of("in_stock", Map.of("doc_count", 4240), "not_in_stock", Map.of("doc_count", 471))));
+        return aggregations;
+    }
+
+    private static Map<String, Object> terms(String[] values) {
+        List<Map<String, Object>> buckets = new ArrayList<>(values.length);
+        for (int i = 0; i < values.length; i++) {
+            buckets.add(Map.of("key", values[i], "doc_count", 1000 - i * 90));
+        }
+        return Map.of("doc_count_error_upper_bound", 0, "sum_other_doc_count", 0, "buckets", buckets);
+    }
+
+    private static Map<String, Object> shards() {
+        return Map.of("total", 1, "successful", 1, "skipped", 0, "failed", 0);
+    }
+
+    private static Canned json(Map<String, Object> response) {
+        return new Canned(response);
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * A response in all the forms it is sent in, the gzipped form is only created once it is asked for
+     */
+    private static final class Canned {
+
+        private final byte[] plain;
+        private volatile byte[] gzipped;
+        private volatile byte[] inMultiSearch;
+
+        private Canned(Map<String, Object> response) {
+            this(serialize(response));
+        }
+
+        private Canned(byte[] plain) {
+            this.plain = plain;
+        }
+
+        // the response as an item of a multi search response
+        private byte[] inMultiSearch() {
+            byte[] result = inMultiSearch;
+            if (result == null) {
+                String withStatus = new String(plain, 0, plain.length - 1, StandardCharsets.UTF_8) + ",\"status\":200}";
+                inMultiSearch = result = withStatus.getBytes(StandardCharsets.UTF_8);
+            }
+            return result;
+        }
+
+        private byte[] gzipped() throws IOException {
+            byte[] result = gzipped;
+            if (result == null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(plain.length / 4);
+                try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                    gzip.write(plain);
+                }
+                gzipped = result = out.toByteArray();
+            }
+            return result;
+        }
+
+        private static byte[] serialize(Map<String, Object> response) {
+            try {
+                return MAPPER.writeValueAsBytes(response);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
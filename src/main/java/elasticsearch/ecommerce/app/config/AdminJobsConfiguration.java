@@ -0,0 +1,47 @@
+package elasticsearch.ecommerce.app.config;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+
+/**
+ * Configuration of the threads running admin jobs like reindexing, configured under the {@code admin.jobs} prefix
+ */
+@ConfigurationProperties("admin.jobs")
+public class AdminJobsConfiguration {
+
+    private int threads = 2;
+    private int queueSize = 4;
+    private int retainedJobs = 50;
+
+    /**
+     * @return number of admin jobs running at the same time
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @return number of admin jobs waiting for a thread, before further jobs are rejected
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * @return number of jobs whose status can be retrieved, the oldest finished jobs are forgotten first
+     */
+    public int getRetainedJobs() {
+        return retainedJobs;
+    }
+
+    public void setRetainedJobs(int retainedJobs) {
+        this.retainedJobs = retainedJobs;
+    }
+}
@@ -0,0 +1,136 @@
+package elasticsearch.ecommerce.app.config;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Configuration of the connection to the Elasticsearch cluster, configured under the {@code elasticsearch} prefix
+ */
+@ConfigurationProperties("elasticsearch")
+public class ElasticsearchConfiguration {
+
+    private List<String> httpHosts = new ArrayList<>(List.of("http://localhost:9200"));
+    private int maxConnections = 100;
+    private int maxConnectionsPerRoute = 50;
+    private int ioThreads = Runtime.getRuntime().availableProcessors();
+    private Duration keepAlive = Duration.ofMinutes(1);
+    private boolean compression = false;
+    private boolean sniff = false;
+    private Duration sniffInterval = Duration.ofMinutes(5);
+    private Duration sniffAfterFailureDelay = Duration.ofMinutes(1);
+    private boolean skipDedicatedMasters = true;
+
+    /**
+     * @return urls of the nodes requests are sent to, in a round robin fashion, like {@code http://localhost:9200}
+     */
+    public List<String> getHttpHosts() {
+        return httpHosts;
+    }
+
+    public void setHttpHosts(List<String> httpHosts) {
+        this.httpHosts = httpHosts;
+    }
+
+    /**
+     * @return number of connections open to all nodes together
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * @return number of connections open to a single node
+     */
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    /**
+     * @return number of threads sending requests and receiving responses, defaults to the number of processors
+     */
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    /**
+     * @return how long an idle connection is kept open for further requests, unless the node asks for less
+     */
+    public Duration getKeepAlive() {
+        return keepAlive;
+    }
+
+    public void setKeepAlive(Duration keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * @return true to ask the nodes for gzip compressed responses, trading CPU for less network traffic
+     */
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * @return true to regularly replace the configured hosts with the nodes of the cluster, so all of them are used
+     * and nodes that joined or left are picked up. Only works if the nodes publish addresses reachable by the app.
+     */
+    public boolean isSniff() {
+        return sniff;
+    }
+
+    public void setSniff(boolean sniff) {
+        this.sniff = sniff;
+    }
+
+    /**
+     * @return how often the nodes of the cluster are fetched
+     */
+    public Duration getSniffInterval() {
+        return sniffInterval;
+    }
+
+    public void setSniffInterval(Duration sniffInterval) {
+        this.sniffInterval = sniffInterval;
+    }
+
+    /**
+     * @return how soon the nodes are fetched again after a node failed
+     */
+    public Duration getSniffAfterFailureDelay() {
+        return sniffAfterFailureDelay;
+    }
+
+    public void setSniffAfterFailureDelay(Duration sniffAfterFailureDelay) {
+        this.sniffAfterFailureDelay = sniffAfterFailureDelay;
+    }
+
+    /**
+     * @return true to send no requests to master only nodes, so they are not slowed down by searches
+     */
+    public boolean isSkipDedicatedMasters() {
+        return skipDedicatedMasters;
+    }
+
+    public void setSkipDedicatedMasters(boolean skipDedicatedMasters) {
+        this.skipDedicatedMasters = skipDedicatedMasters;
+    }
+}
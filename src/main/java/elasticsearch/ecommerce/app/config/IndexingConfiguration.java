@@ -0,0 +1,122 @@
+package elasticsearch.ecommerce.app.config;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+import io.micronaut.core.convert.format.ReadableBytes;
+
+import java.time.Duration;
+
+/**
+ * Tuning knobs of the bulk ingest pipeline, configured under the {@code indexing} prefix
+ */
+@ConfigurationProperties("indexing")
+public class IndexingConfiguration {
+
+    private int concurrentRequests = 4;
+    private int bulkActions = 5000;
+    private long bulkSize = 5 * 1024 * 1024;
+    private int maxRetries = 8;
+    private Duration initialBackoff = Duration.ofMillis(100);
+    private int warmupQueries = 50;
+    private int maxSegments = 1;
+    private int importMaxLineLength = 1024 * 1024;
+    private int generatorThreads = 0;
+
+    /**
+     * @return number of bulk requests that may be in flight at the same time, before adding documents blocks
+     */
+    public int getConcurrentRequests() {
+        return concurrentRequests;
+    }
+
+    public void setConcurrentRequests(int concurrentRequests) {
+        this.concurrentRequests = concurrentRequests;
+    }
+
+    /**
+     * @return maximum number of documents per bulk request
+     */
+    public int getBulkActions() {
+        return bulkActions;
+    }
+
+    public void setBulkActions(int bulkActions) {
+        this.bulkActions = bulkActions;
+    }
+
+    /**
+     * @return maximum size of a single bulk request in bytes, can be configured like {@code 5MB}
+     */
+    public long getBulkSize() {
+        return bulkSize;
+    }
+
+    public void setBulkSize(@ReadableBytes long bulkSize) {
+        this.bulkSize = bulkSize;
+    }
+
+    /**
+     * @return how often documents rejected with a 429 are sent again before they are counted as failed
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @return the delay before the first retry, doubles roughly with every further retry
+     */
+    public Duration getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    public void setInitialBackoff(Duration initialBackoff) {
+        this.initialBackoff = initialBackoff;
+    }
+
+    /**
+     * @return number of the most frequent searches sent to a new products index, before it replaces the current one
+     */
+    public int getWarmupQueries() {
+        return warmupQueries;
+    }
+
+    public void setWarmupQueries(int warmupQueries) {
+        this.warmupQueries = warmupQueries;
+    }
+
+    /**
+     * @return number of segments a new products index is force merged to before it is searched, 0 to skip the merge
+     */
+    public int getMaxSegments() {
+        return maxSegments;
+    }
+
+    public void setMaxSegments(int maxSegments) {
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * @return maximum length of a line of an imported catalog in bytes, longer lines are skipped as invalid
+     */
+    public int getImportMaxLineLength() {
+        return importMaxLineLength;
+    }
+
+    public void setImportMaxLineLength(@ReadableBytes int importMaxLineLength) {
+        this.importMaxLineLength = importMaxLineLength;
+    }
+
+    /**
+     * @return number of threads generating fake products, 0 for one per processor
+     */
+    public int getGeneratorThreads() {
+        return generatorThreads > 0 ? generatorThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    public void setGeneratorThreads(int generatorThreads) {
+        this.generatorThreads = generatorThreads;
+    }
+}
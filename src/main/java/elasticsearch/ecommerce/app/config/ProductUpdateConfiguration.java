@@ -0,0 +1,50 @@
+package elasticsearch.ecommerce.app.config;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * Configuration of buffering partial price and stock updates before they are written, configured under the
+ * {@code indexing.updates} prefix
+ */
+@ConfigurationProperties("indexing.updates")
+public class ProductUpdateConfiguration {
+
+    private Duration maxDelay = Duration.ofSeconds(1);
+    private int stripes = 16;
+    private int maxPending = 100_000;
+
+    /**
+     * @return how long an update may wait in the buffer, all buffered updates are written at this interval
+     */
+    public Duration getMaxDelay() {
+        return maxDelay;
+    }
+
+    public void setMaxDelay(Duration maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * @return number of independently locked parts of the buffer, a power of two
+     */
+    public int getStripes() {
+        return stripes;
+    }
+
+    public void setStripes(int stripes) {
+        this.stripes = stripes;
+    }
+
+    /**
+     * @return number of buffered products that triggers writing them before the delay is over
+     */
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    public void setMaxPending(int maxPending) {
+        this.maxPending = maxPending;
+    }
+}
@@ -0,0 +1,99 @@
+package elasticsearch.ecommerce.app.config;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Configuration of the concurrency limits of searches sent to Elasticsearch, configured under the
+ * {@code search.admission} prefix
+ */
+@ConfigurationProperties("search.admission")
+public class SearchAdmissionConfiguration {
+
+    private boolean enabled = true;
+    private Map<String, Integer> maxConcurrency = new HashMap<>();
+    private Map<String, Integer> maxQueued = new HashMap<>();
+    private Duration queueTimeout = Duration.ofMillis(500);
+    private boolean adaptive = true;
+    private int minConcurrency = 2;
+    private double latencyTolerance = 2.0;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return number of searches of each endpoint, by endpoint name, that are sent to Elasticsearch at the same time
+     */
+    public Map<String, Integer> getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public void setMaxConcurrency(Map<String, Integer> maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * @return number of searches of each endpoint, by endpoint name, that wait for others to finish, before further
+     * searches are rejected with 429
+     */
+    public Map<String, Integer> getMaxQueued() {
+        return maxQueued;
+    }
+
+    public void setMaxQueued(Map<String, Integer> maxQueued) {
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * @return how long a search waits for others to finish, before it is rejected with 503
+     */
+    public Duration getQueueTimeout() {
+        return queueTimeout;
+    }
+
+    public void setQueueTimeout(Duration queueTimeout) {
+        this.queueTimeout = queueTimeout;
+    }
+
+    /**
+     * @return true if the concurrency limits are lowered while Elasticsearch responds slower than usual, and raised
+     * back up to the configured maximum once it recovered
+     */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * @return the lowest limit an adaptive limit is lowered to
+     */
+    public int getMinConcurrency() {
+        return minConcurrency;
+    }
+
+    public void setMinConcurrency(int minConcurrency) {
+        this.minConcurrency = minConcurrency;
+    }
+
+    /**
+     * @return how many times slower than the average of the recent searches a search may be, before the limit is lowered
+     */
+    public double getLatencyTolerance() {
+        return latencyTolerance;
+    }
+
+    public void setLatencyTolerance(double latencyTolerance) {
+        this.latencyTolerance = latencyTolerance;
+    }
+}
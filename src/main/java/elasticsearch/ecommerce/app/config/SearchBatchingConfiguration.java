@@ -0,0 +1,61 @@
+package elasticsearch.ecommerce.app.config;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Configuration of batching concurrent searches into a single multi search, configured under the
+ * {@code search.batching} prefix
+ */
+@ConfigurationProperties("search.batching")
+public class SearchBatchingConfiguration {
+
+    private boolean enabled = false;
+    private Duration window = Duration.ofMillis(1);
+    private int maxBatchSize = 32;
+    private List<String> bypass = new ArrayList<>();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return how long the first search of a batch waits for others to join
+     */
+    public Duration getWindow() {
+        return window;
+    }
+
+    public void setWindow(Duration window) {
+        this.window = window;
+    }
+
+    /**
+     * @return number of searches that trigger sending a batch before the window is over
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @return names of latency critical endpoints, whose searches are always sent on their own
+     */
+    public List<String> getBypass() {
+        return bypass;
+    }
+
+    public void setBypass(List<String> bypass) {
+        this.bypass = bypass;
+    }
+}
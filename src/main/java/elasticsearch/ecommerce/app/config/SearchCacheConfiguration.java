@@ -0,0 +1,59 @@
+package elasticsearch.ecommerce.app.config;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+import io.micronaut.core.convert.format.ReadableBytes;
+
+import java.time.Duration;
+
+/**
+ * Configuration of the in-process search response cache, configured under the {@code search.cache} prefix
+ */
+@ConfigurationProperties("search.cache")
+public class SearchCacheConfiguration {
+
+    private boolean enabled = true;
+    private int maxEntries = 10_000;
+    private long maxSize = 64 * 1024 * 1024;
+    private Duration ttl = Duration.ofMinutes(1);
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return maximum number of cached responses
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return maximum number of bytes of all cached responses, can be configured like {@code 64MB}
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(@ReadableBytes long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return how long a response is served from the cache after it has been written
+     */
+    public Duration getTtl() {
+        return ttl;
+    }
+
+    public void setTtl(Duration ttl) {
+        this.ttl = ttl;
+    }
+}
@@ -0,0 +1,48 @@
+package elasticsearch.ecommerce.app.config;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Configuration of how long a search may take, configured under the {@code search.deadline} prefix
+ */
+@ConfigurationProperties("search.deadline")
+public class SearchDeadlineConfiguration {
+
+    private boolean enabled = true;
+    private Map<String, Duration> timeouts = new HashMap<>();
+    private Duration defaultTimeout = Duration.ofSeconds(5);
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return how long a search of each endpoint, by endpoint name, may take before it is cancelled and answered with 504
+     */
+    public Map<String, Duration> getTimeouts() {
+        return timeouts;
+    }
+
+    public void setTimeouts(Map<String, Duration> timeouts) {
+        this.timeouts = timeouts;
+    }
+
+    /**
+     * @return how long a search of an endpoint without a configured timeout may take
+     */
+    public Duration getDefaultTimeout() {
+        return defaultTimeout;
+    }
+
+    public void setDefaultTimeout(Duration defaultTimeout) {
+        this.defaultTimeout = defaultTimeout;
+    }
+}
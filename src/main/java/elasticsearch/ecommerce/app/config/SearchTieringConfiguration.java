@@ -0,0 +1,33 @@
+package elasticsearch.ecommerce.app.config;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+
+/**
+ * Configuration of answering searches with an exact query first and only falling back to a fuzzy query if needed,
+ * configured under the {@code search.tiering} prefix
+ */
+@ConfigurationProperties("search.tiering")
+public class SearchTieringConfiguration {
+
+    private boolean enabled = false;
+    private long minHits = 16;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return number of hits the exact query needs to find, otherwise the search is sent again with the fuzzy query
+     */
+    public long getMinHits() {
+        return minHits;
+    }
+
+    public void setMinHits(long minHits) {
+        this.minHits = minHits;
+    }
+}
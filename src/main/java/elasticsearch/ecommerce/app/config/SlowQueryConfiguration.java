@@ -0,0 +1,94 @@
+package elasticsearch.ecommerce.app.config;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * Configuration of capturing slow and sampled searches, configured under the {@code search.slow-queries} prefix
+ */
+@ConfigurationProperties("search.slow-queries")
+public class SlowQueryConfiguration {
+
+    private boolean enabled = true;
+    private Duration threshold = Duration.ofMillis(500);
+    private double sampleRate = 0.001;
+    private int size = 50;
+    private int sampledSize = 10;
+    private boolean profile = true;
+    private int maxConcurrentProfiles = 1;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return searches Elasticsearch took at least this long for are captured
+     */
+    public Duration getThreshold() {
+        return threshold;
+    }
+
+    public void setThreshold(Duration threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * @return share of all other searches that are captured, from 0 to 1
+     */
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    public void setSampleRate(double sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * @return number of distinct slow searches kept, the fastest of them is dropped for a slower one
+     */
+    public int getSize() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    /**
+     * @return number of distinct sampled searches kept, the oldest one is dropped for a new one
+     */
+    public int getSampledSize() {
+        return sampledSize;
+    }
+
+    public void setSampledSize(int sampledSize) {
+        this.sampledSize = sampledSize;
+    }
+
+    /**
+     * @return whether captured searches are sent again with profiling, to see where Elasticsearch spent the time
+     */
+    public boolean isProfile() {
+        return profile;
+    }
+
+    public void setProfile(boolean profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * @return number of profiled searches sent at the same time, searches captured meanwhile are kept without profile
+     */
+    public int getMaxConcurrentProfiles() {
+        return maxConcurrentProfiles;
+    }
+
+    public void setMaxConcurrentProfiles(int maxConcurrentProfiles) {
+        this.maxConcurrentProfiles = maxConcurrentProfiles;
+    }
+}
@@ -1,40 +1,151 @@
 package elasticsearch.ecommerce.app.controller;
 
+import elasticsearch.ecommerce.app.entities.AdminJobStatus;
+import elasticsearch.ecommerce.app.entities.ImportReport;
+import elasticsearch.ecommerce.app.entities.ProductUpdate;
+import elasticsearch.ecommerce.app.service.AdminJob;
+import elasticsearch.ecommerce.app.service.AdminJobs;
+import elasticsearch.ecommerce.app.service.ProductImportFormat;
 import elasticsearch.ecommerce.app.service.ProductIndexService;
+import elasticsearch.ecommerce.app.service.ProductUpdateBuffer;
+import io.micronaut.http.HttpHeaders;
+import io.micronaut.http.HttpRequest;
+import io.micronaut.http.HttpResponse;
 import io.micronaut.http.HttpStatus;
 import io.micronaut.http.MediaType;
 import io.micronaut.http.annotation.Body;
 import io.micronaut.http.annotation.Controller;
+import io.micronaut.http.annotation.Delete;
+import io.micronaut.http.annotation.Get;
 import io.micronaut.http.annotation.Post;
 import io.micronaut.http.annotation.QueryValue;
+import io.micronaut.http.exceptions.HttpStatusException;
+import io.micronaut.http.netty.stream.StreamedHttpRequest;
+import io.micronaut.http.server.netty.NettyHttpRequest;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.reactivex.Flowable;
+import org.reactivestreams.Publisher;
 
 import javax.inject.Inject;
-import java.io.IOException;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
 
 @Controller("/admin")
 public class AdminController {
 
     private final ProductIndexService indexService;
+    private final ProductUpdateBuffer updateBuffer;
+    private final AdminJobs jobs;
 
     @Inject
-    public AdminController(ProductIndexService indexService) {
+    public AdminController(ProductIndexService indexService, ProductUpdateBuffer updateBuffer, AdminJobs jobs) {
         this.indexService = indexService;
+        this.updateBuffer = updateBuffer;
+        this.jobs = jobs;
     }
 
+    /**
+     * Starts indexing random products as a job, its progress can be polled with {@link #job(String)}. The same seed
+     * always indexes the same products, without a seed the products are different every time.
+     */
     @Post("/index_data")
-    public CompletableFuture<HttpStatus> index(@QueryValue Integer numberOfProducts) throws IOException {
-        if (numberOfProducts <= 0) {
-            numberOfProducts = 50000;
-        }
+    public HttpResponse<AdminJobStatus> index(@QueryValue Integer numberOfProducts, @QueryValue Optional<Long> seed) {
+        int count = numberOfProducts <= 0 ? 50000 : numberOfProducts;
+        long catalogSeed = seed.orElseGet(() -> ThreadLocalRandom.current().nextLong());
+        AdminJob<?> job = jobs.submit("index_data", j -> indexService.indexProducts(count, catalogSeed, j));
+        return HttpResponse.<AdminJobStatus>accepted().body(job.status());
+    }
+
+    /**
+     * Replaces all products with the ones of a catalog export, streamed as NDJSON or CSV with a header line.
+     *
+     * Unlike the other operations, the response is only sent once the import finished, as the body is read while
+     * the job runs. The progress can be polled with {@link #job(String)} in the meantime.
+     */
+    @Post(value = "import", consumes = { "application/x-ndjson", "text/csv" }, produces = MediaType.APPLICATION_JSON)
+    public CompletableFuture<ImportReport> importProducts(HttpRequest<?> request) {
+        ProductImportFormat format = ProductImportFormat.fromContentType(request.getHeaders().get(HttpHeaders.CONTENT_TYPE));
+        Publisher<byte[]> body = streamedBody(request);
+        AdminJob<ImportReport> job = jobs.submit("import", j -> indexService.importProducts(body, format, j));
+        return job.result();
+    }
 
-        return indexService.indexProducts(numberOfProducts);
+    /**
+     * Changes the price or stock of products, the changes are buffered and written within a short delay
+     */
+    @Post(value = "update_products", consumes = MediaType.APPLICATION_JSON)
+    public HttpStatus updateProducts(@Body List<ProductUpdate> updates) {
+        updateBuffer.add(updates);
+        return HttpStatus.ACCEPTED;
     }
 
+    /**
+     * Starts rebuilding the index with new synonyms as a job, its progress can be polled with {@link #job(String)}
+     */
     @Post(value = "configure_synonyms", consumes = MediaType.APPLICATION_JSON)
-    public CompletableFuture<HttpStatus> index(@Body Map<String, String> synonyms) throws IOException {
-        return indexService.configureSynonyms(synonyms.get("synonyms"));
+    public HttpResponse<AdminJobStatus> index(@Body Map<String, String> synonyms) {
+        String rules = synonyms.get("synonyms");
+        AdminJob<?> job = jobs.submit("configure_synonyms", j -> indexService.configureSynonyms(rules, j));
+        return HttpResponse.<AdminJobStatus>accepted().body(job.status());
+    }
+
+    @Get("/jobs")
+    public List<AdminJobStatus> jobs() {
+        return jobs.list().stream().map(AdminJob::status).collect(Collectors.toList());
+    }
+
+    @Get("/jobs/{id}")
+    public AdminJobStatus job(String id) {
+        return existingJob(id).status();
     }
 
+    /**
+     * Cancels a job, a running job stops at its next check and removes the index it was building
+     */
+    @Delete("/jobs/{id}")
+    public AdminJobStatus cancelJob(String id) {
+        AdminJob<?> job = existingJob(id);
+        job.cancel();
+        return job.status();
+    }
+
+    private AdminJob<?> existingJob(String id) {
+        AdminJob<?> job = jobs.get(id);
+        if (job == null) {
+            throw new HttpStatusException(HttpStatus.NOT_FOUND, "No job with id [" + id + "]");
+        }
+        return job;
+    }
+
+    /**
+     * Returns the chunks of the request body as they are received. Binding the body as a publisher buffers chunks
+     * that arrive before they are requested, so they are taken from the Netty request directly instead, which stops
+     * reading from the connection until the next chunk is requested.
+     *
+     * As Micronaut never processes this body, {@code micronaut.server.max-request-size} does not apply to it. That limit
+     * stays in place for all endpoints that bind their body, while exports of any size can be imported.
+     */
+    private static Publisher<byte[]> streamedBody(HttpRequest<?> request) {
+        if (request instanceof NettyHttpRequest) {
+            io.netty.handler.codec.http.HttpRequest nativeRequest = ((NettyHttpRequest<?>) request).getNativeRequest();
+            if (nativeRequest instanceof StreamedHttpRequest) {
+                return Flowable.fromPublisher((StreamedHttpRequest) nativeRequest).map(content -> {
+                    try {
+                        return ByteBufUtil.getBytes(content.content());
+                    } finally {
+                        content.release();
+                    }
+                });
+            }
+            if (nativeRequest instanceof FullHttpRequest) {
+                return Flowable.just(ByteBufUtil.getBytes(((FullHttpRequest) nativeRequest).content()));
+            }
+        }
+        throw new HttpStatusException(HttpStatus.BAD_REQUEST, "Request body cannot be streamed");
+    }
 }
@@ -1,39 +1,86 @@
 package elasticsearch.ecommerce.app.controller;
 
 import elasticsearch.ecommerce.app.entities.Query;
+import elasticsearch.ecommerce.app.json.RawJsonResponse;
 import elasticsearch.ecommerce.app.service.ProductQueryService;
+import elasticsearch.ecommerce.app.service.LocalProductIndexes;
+import elasticsearch.ecommerce.app.service.SearchResponseFormat;
+import io.micronaut.core.annotation.NonBlocking;
+import io.micronaut.http.HttpRequest;
+import io.micronaut.http.HttpResponse;
+import io.micronaut.http.HttpStatus;
 import io.micronaut.http.MediaType;
 import io.micronaut.http.annotation.Body;
 import io.micronaut.http.annotation.Controller;
+import io.micronaut.http.annotation.Error;
+import io.micronaut.http.annotation.Get;
 import io.micronaut.http.annotation.Post;
-import org.elasticsearch.client.Response;
+import io.micronaut.http.annotation.QueryValue;
+import io.micronaut.http.server.netty.NettyHttpRequest;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 
 import javax.inject.Inject;
 import java.io.IOException;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 
 @Controller("/search")
 public class SearchController {
 
     private final ProductQueryService service;
+    private final LocalProductIndexes localIndexes;
 
     @Inject
-    public SearchController(ProductQueryService service) {
+    public SearchController(ProductQueryService service, LocalProductIndexes localIndexes) {
         this.service = service;
+        this.localIndexes = localIndexes;
     }
 
     @Post(value = "products_only", produces = MediaType.APPLICATION_JSON, consumes = MediaType.APPLICATION_JSON)
-    public CompletableFuture<Response> searchProductsOnly(@Body Query query) throws IOException {
-        return service.searchProductsOnly(query);
+    public CompletableFuture<RawJsonResponse> searchProductsOnly(HttpRequest<?> request, @Body Query query,
+                                                                 @QueryValue(defaultValue = "full") String format) throws IOException {
+        return cancelOnDisconnect(request, service.searchProductsOnly(query, SearchResponseFormat.fromName(format)));
     }
 
     @Post(value = "products_with_aggs", produces = MediaType.APPLICATION_JSON, consumes = MediaType.APPLICATION_JSON)
-    public CompletableFuture<Response> searchWithAggs(@Body Query query) throws IOException {
-        return service.searchWithAggs(query);
+    public CompletableFuture<RawJsonResponse> searchWithAggs(HttpRequest<?> request, @Body Query query,
+                                                             @QueryValue(defaultValue = "full") String format) throws IOException {
+        return cancelOnDisconnect(request, service.searchWithAggs(query, SearchResponseFormat.fromName(format)));
     }
 
     @Post(value = "products_with_filtered_aggs", produces = MediaType.APPLICATION_JSON, consumes = MediaType.APPLICATION_JSON)
-    public CompletableFuture<Response> searchWithFilteredAggs(@Body Query query) throws IOException {
-        return service.searchWithFilteredAggs(query);
+    public CompletableFuture<RawJsonResponse> searchWithFilteredAggs(HttpRequest<?> request, @Body Query query,
+                                                                     @QueryValue(defaultValue = "full") String format) throws IOException {
+        return cancelOnDisconnect(request, service.searchWithFilteredAggs(query, SearchResponseFormat.fromName(format)));
+    }
+
+    /**
+     * Cancels the search once the connection is closed before the response is sent, i.e. because the user typed on
+     * or left the page, so Elasticsearch stops working on it
+     */
+    private static <T> CompletableFuture<T> cancelOnDisconnect(HttpRequest<?> request, CompletableFuture<T> response) {
+        if (request instanceof NettyHttpRequest && response.isDone() == false) {
+            ChannelFuture closeFuture = ((NettyHttpRequest<?>) request).getChannelHandlerContext().channel().closeFuture();
+            ChannelFutureListener listener = future -> response.cancel(false);
+            closeFuture.addListener(listener);
+            response.whenComplete((result, e) -> closeFuture.removeListener(listener));
+        }
+        return response;
+    }
+
+    /**
+     * Searches are only cancelled once the connection has been closed, there is nobody left to answer
+     */
+    @Error(exception = CancellationException.class)
+    public HttpResponse<?> cancelled() {
+        return HttpResponse.status(HttpStatus.NO_CONTENT);
+    }
+
+    // answered from memory, so there is no need to hand this off to another thread
+    @NonBlocking
+    @Get(value = "suggest", produces = MediaType.APPLICATION_JSON)
+    public RawJsonResponse suggest(@QueryValue String q) {
+        return new RawJsonResponse(localIndexes.suggest(q));
     }
 }
@@ -0,0 +1,34 @@
+package elasticsearch.ecommerce.app.controller;
+
+import elasticsearch.ecommerce.app.entities.SlowQuery;
+import elasticsearch.ecommerce.app.service.SlowQueryLog;
+import io.micronaut.management.endpoint.annotation.Delete;
+import io.micronaut.management.endpoint.annotation.Endpoint;
+import io.micronaut.management.endpoint.annotation.Read;
+
+import javax.inject.Inject;
+import java.util.List;
+
+/**
+ * Lists the searches captured by the {@link SlowQueryLog} at /slowqueries, the slowest first, and clears them on delete
+ */
+@Endpoint(value = "slowqueries", defaultSensitive = false)
+public class SlowQueriesEndpoint {
+
+    private final SlowQueryLog slowQueryLog;
+
+    @Inject
+    public SlowQueriesEndpoint(SlowQueryLog slowQueryLog) {
+        this.slowQueryLog = slowQueryLog;
+    }
+
+    @Read
+    public List<SlowQuery> slowQueries() {
+        return slowQueryLog.slowest();
+    }
+
+    @Delete
+    public void clear() {
+        slowQueryLog.clear();
+    }
+}
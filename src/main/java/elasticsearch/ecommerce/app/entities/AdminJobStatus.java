@@ -0,0 +1,96 @@
+package elasticsearch.ecommerce.app.entities;
+
+// adhere to bean properties, so we can use jackson bean introspection
+public class AdminJobStatus {
+
+    private final String id;
+    private final String type;
+    private final String state;
+    private final long total;
+    private final long processed;
+    private final long indexed;
+    private final long failed;
+    private final long bytesSent;
+    private final long elapsedMillis;
+    private final String error;
+    private final Object result;
+
+    public AdminJobStatus(String id, String type, String state, long total, long processed, long indexed, long failed,
+                          long bytesSent, long elapsedMillis, String error, Object result) {
+        this.id = id;
+        this.type = type;
+        this.state = state;
+        this.total = total;
+        this.processed = processed;
+        this.indexed = indexed;
+        this.failed = failed;
+        this.bytesSent = bytesSent;
+        this.elapsedMillis = elapsedMillis;
+        this.error = error;
+        this.result = result;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * @return one of queued, running, succeeded, failed or cancelled
+     */
+    public String getState() {
+        return state;
+    }
+
+    /**
+     * @return number of documents the job is going to process, or -1 if that is not known upfront
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    public long getProcessed() {
+        return processed;
+    }
+
+    public long getIndexed() {
+        return indexed;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * @return the percentage of processed documents, or -1 if the total is not known
+     */
+    public double getPercentDone() {
+        return total <= 0 ? -1 : Math.min(100.0, processed * 100.0 / total);
+    }
+
+    public double getDocsPerSecond() {
+        return elapsedMillis == 0 ? 0 : processed * 1000.0 / elapsedMillis;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return the report of a succeeded job
+     */
+    public Object getResult() {
+        return result;
+    }
+}
@@ -0,0 +1,70 @@
+package elasticsearch.ecommerce.app.entities;
+
+import java.util.List;
+
+// adhere to bean properties, so we can use jackson bean introspection
+public class ImportReport {
+
+    private final long rows;
+    private final long invalidRows;
+    private final long indexed;
+    private final long failed;
+    private final long bytesReceived;
+    private final long tookInMillis;
+    private final List<String> errors;
+
+    public ImportReport(long rows, long invalidRows, long indexed, long failed, long bytesReceived, long tookInMillis, List<String> errors) {
+        this.rows = rows;
+        this.invalidRows = invalidRows;
+        this.indexed = indexed;
+        this.failed = failed;
+        this.bytesReceived = bytesReceived;
+        this.tookInMillis = tookInMillis;
+        this.errors = errors;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public long getInvalidRows() {
+        return invalidRows;
+    }
+
+    public long getIndexed() {
+        return indexed;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getTookInMillis() {
+        return tookInMillis;
+    }
+
+    public double getRowsPerSecond() {
+        return tookInMillis == 0 ? rows : rows * 1000.0 / tookInMillis;
+    }
+
+    public double getMegabytesPerSecond() {
+        return (tookInMillis == 0 ? bytesReceived : bytesReceived * 1000.0 / tookInMillis) / (1024 * 1024);
+    }
+
+    /**
+     * @return the first errors of invalid rows, with their line numbers
+     */
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    @Override
+    public String toString() {
+        return "rows [" + rows + "], invalid rows [" + invalidRows + "], indexed [" + indexed + "], failed [" + failed +
+                "], bytes [" + bytesReceived + "], took [" + tookInMillis + "ms]";
+    }
+}
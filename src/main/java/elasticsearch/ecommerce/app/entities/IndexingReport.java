@@ -0,0 +1,55 @@
+package elasticsearch.ecommerce.app.entities;
+
+// adhere to bean properties, so we can use jackson bean introspection
+public class IndexingReport {
+
+    private final long indexed;
+    private final long failed;
+    private final long retries;
+    private final long bulkRequests;
+    private final long bytesSent;
+    private final long tookInMillis;
+
+    public IndexingReport(long indexed, long failed, long retries, long bulkRequests, long bytesSent, long tookInMillis) {
+        this.indexed = indexed;
+        this.failed = failed;
+        this.retries = retries;
+        this.bulkRequests = bulkRequests;
+        this.bytesSent = bytesSent;
+        this.tookInMillis = tookInMillis;
+    }
+
+    public long getIndexed() {
+        return indexed;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public long getRetries() {
+        return retries;
+    }
+
+    public long getBulkRequests() {
+        return bulkRequests;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getTookInMillis() {
+        return tookInMillis;
+    }
+
+    public double getDocsPerSecond() {
+        return tookInMillis == 0 ? indexed : indexed * 1000.0 / tookInMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "indexed [" + indexed + "], failed [" + failed + "], retries [" + retries + "], bulk requests [" + bulkRequests +
+                "], bytes [" + bytesSent + "], took [" + tookInMillis + "ms]";
+    }
+}
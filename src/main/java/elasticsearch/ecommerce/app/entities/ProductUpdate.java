@@ -0,0 +1,51 @@
+package elasticsearch.ecommerce.app.entities;
+
+/**
+ * A partial update of a product, only the fields that are set are changed
+ */
+public class ProductUpdate {
+
+    private String id;
+    private Double price;
+    private Integer stock;
+
+    public ProductUpdate() {
+    }
+
+    public ProductUpdate(String id, Double price, Integer stock) {
+        this.id = id;
+        this.price = price;
+        this.stock = stock;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public Double getPrice() {
+        return price;
+    }
+
+    public void setPrice(Double price) {
+        this.price = price;
+    }
+
+    public Integer getStock() {
+        return stock;
+    }
+
+    public void setStock(Integer stock) {
+        this.stock = stock;
+    }
+
+    /**
+     * @return this update with the fields set in the later one replaced
+     */
+    public ProductUpdate merge(ProductUpdate later) {
+        return new ProductUpdate(id, later.price != null ? later.price : price, later.stock != null ? later.stock : stock);
+    }
+}
@@ -1,17 +1,22 @@
 package elasticsearch.ecommerce.app.entities;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import org.elasticsearch.common.Strings;
-import org.elasticsearch.index.query.QueryBuilder;
-import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.index.query.RangeQueryBuilder;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.regex.Pattern;
 
 public class Query {
 
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final char SEPARATOR = '\u001f';
+
     private String query;
     private Integer from = 0;
+    private String cursor;
     private List<Filter> filters = new ArrayList<>();
 
     public String getQuery() {
@@ -38,7 +43,60 @@ public class Query {
         this.from = from;
     }
 
+    /**
+     * The next_cursor of the previous page, if set this is used instead of from
+     */
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    /**
+     * Returns a string that is equal for all queries returning the same results. Whitespace in the query text is
+     * collapsed, as the search analyzer tokenizes on whitespace anyway, but case is kept, as there is no lowercase
+     * filter in the search analyzer. Filters are sorted, so that their order does not matter.
+     */
+    public String canonicalForm() {
+        return canonicalForm(true);
+    }
+
+    /**
+     * Like {@link #canonicalForm()}, but equal for all pages of a query
+     */
+    public String canonicalFormIgnoringPaging() {
+        return canonicalForm(false);
+    }
+
+    private String canonicalForm(boolean includePaging) {
+        StringBuilder sb = new StringBuilder();
+        if (query != null) {
+            sb.append(WHITESPACE.matcher(query.strip()).replaceAll(" "));
+        }
+        if (includePaging) {
+            if (Strings.isEmpty(cursor)) {
+                sb.append(SEPARATOR).append(from == null ? 0 : from);
+            } else {
+                sb.append(SEPARATOR).append('>').append(cursor);
+            }
+        }
+        if (filters != null) {
+            filters.stream().sorted(Filter.ORDER).forEach(filter -> filter.appendCanonicalForm(sb.append(SEPARATOR)));
+        }
+        return sb.toString();
+    }
+
     public static final class Filter {
+
+        private static final Comparator<Filter> ORDER = Comparator
+                .comparing(Filter::getKey, Comparator.nullsFirst(Comparator.naturalOrder()))
+                .thenComparing(Filter::getValue, Comparator.nullsFirst(Comparator.naturalOrder()))
+                .thenComparing(Filter::getType, Comparator.nullsFirst(Comparator.naturalOrder()))
+                .thenComparing(Filter::getFrom, Comparator.nullsFirst(Comparator.naturalOrder()))
+                .thenComparing(Filter::getTo, Comparator.nullsFirst(Comparator.naturalOrder()));
+
         private String key;
         private String value;
         private String from;
@@ -65,26 +123,39 @@ public class Query {
             return value;
         }
 
-        public QueryBuilder toQuery() {
+        /**
+         * Writes this filter as a term or range query
+         */
+        public void writeQuery(JsonGenerator gen) throws IOException {
             if ("term".equals(type)) {
-                return QueryBuilders.termQuery(this.key + ".keyword", this.value);
+                gen.writeStartObject();
+                gen.writeObjectFieldStart("term");
+                gen.writeStringField(this.key + ".keyword", this.value);
+                gen.writeEndObject();
+                gen.writeEndObject();
             } else if ("range".equals(type)) {
-                return createRangeQueryBuilder(key, from, to);
+                gen.writeStartObject();
+                gen.writeObjectFieldStart("range");
+                gen.writeObjectFieldStart(key);
+                if (Strings.isEmpty(from) == false) {
+                    gen.writeStringField("gte", from);
+                }
+                if (Strings.isEmpty(to) == false) {
+                    gen.writeStringField("lte", to);
+                }
+                gen.writeEndObject();
+                gen.writeEndObject();
+                gen.writeEndObject();
             } else {
                 throw new RuntimeException("Unknown type: " + type);
             }
         }
 
-        private RangeQueryBuilder createRangeQueryBuilder(String name, String from, String to) {
-            RangeQueryBuilder rangeQueryBuilder = QueryBuilders.rangeQuery(name);
-            if (Strings.isEmpty(from) == false) {
-                rangeQueryBuilder.from(from);
+        private void appendCanonicalForm(StringBuilder sb) {
+            sb.append(type).append(':').append(key).append('=').append(value);
+            if ("range".equals(type)) {
+                sb.append('[').append(from).append(',').append(to).append(']');
             }
-            if (Strings.isEmpty(to) == false) {
-                rangeQueryBuilder.to(to);
-            }
-
-            return rangeQueryBuilder;
         }
     }
 }
@@ -0,0 +1,76 @@
+package elasticsearch.ecommerce.app.entities;
+
+import com.fasterxml.jackson.annotation.JsonRawValue;
+
+import java.time.Instant;
+
+// adhere to bean properties, so we can use jackson bean introspection
+public class SlowQuery {
+
+    private final String endpoint;
+    private final String reason;
+    private final String query;
+    private final long count;
+    private final long maxTookMillis;
+    private final long lastTookMillis;
+    private final Instant lastSeen;
+    private final String profile;
+
+    public SlowQuery(String endpoint, String reason, String query, long count, long maxTookMillis, long lastTookMillis,
+                     Instant lastSeen, String profile) {
+        this.endpoint = endpoint;
+        this.reason = reason;
+        this.query = query;
+        this.count = count;
+        this.maxTookMillis = maxTookMillis;
+        this.lastTookMillis = lastTookMillis;
+        this.lastSeen = lastSeen;
+        this.profile = profile;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return slow if it took longer than the threshold, sampled otherwise
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * @return the search request sent to Elasticsearch
+     */
+    @JsonRawValue
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * @return how often the search was captured since it was first captured
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public long getMaxTookMillis() {
+        return maxTookMillis;
+    }
+
+    public long getLastTookMillis() {
+        return lastTookMillis;
+    }
+
+    public Instant getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * @return the profile section of the response to the search sent again with profiling, null until it returned
+     */
+    @JsonRawValue
+    public String getProfile() {
+        return profile;
+    }
+}
@@ -0,0 +1,45 @@
+package elasticsearch.ecommerce.app.entities;
+
+// adhere to bean properties, so we can use jackson bean introspection
+public class SynonymsUpdateReport {
+
+    private final String index;
+    private final String previousIndex;
+    private final long documents;
+    private final int warmupRequests;
+    private final long tookInMillis;
+
+    public SynonymsUpdateReport(String index, String previousIndex, long documents, int warmupRequests, long tookInMillis) {
+        this.index = index;
+        this.previousIndex = previousIndex;
+        this.documents = documents;
+        this.warmupRequests = warmupRequests;
+        this.tookInMillis = tookInMillis;
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public String getPreviousIndex() {
+        return previousIndex;
+    }
+
+    public long getDocuments() {
+        return documents;
+    }
+
+    public int getWarmupRequests() {
+        return warmupRequests;
+    }
+
+    public long getTookInMillis() {
+        return tookInMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "index [" + index + "], previous index [" + previousIndex + "], documents [" + documents +
+                "], warmup requests [" + warmupRequests + "], took [" + tookInMillis + "ms]";
+    }
+}
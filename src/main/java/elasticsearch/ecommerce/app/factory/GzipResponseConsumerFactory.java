@@ -0,0 +1,41 @@
+package elasticsearch.ecommerce.app.factory;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.elasticsearch.client.HeapBufferedAsyncResponseConsumer;
+import org.elasticsearch.client.HttpAsyncResponseConsumerFactory;
+
+/**
+ * Buffers responses like the default consumers of the client do, but decompresses gzip encoded responses while they
+ * are read. The client of this version does not decompress responses on its own, and its response interceptors run
+ * before the buffered entity is set, so this is the only place to do it for every request with the same options.
+ */
+final class GzipResponseConsumerFactory implements HttpAsyncResponseConsumerFactory {
+
+    // same limit as the default consumer factory of the client
+    private static final int BUFFER_LIMIT = 100 * 1024 * 1024;
+
+    @Override
+    public HttpAsyncResponseConsumer<HttpResponse> createHttpAsyncResponseConsumer() {
+        return new HeapBufferedAsyncResponseConsumer(BUFFER_LIMIT) {
+
+            @Override
+            protected HttpResponse buildResult(HttpContext context) throws Exception {
+                HttpResponse response = super.buildResult(context);
+                HttpEntity entity = response.getEntity();
+                Header encoding = entity == null ? null : entity.getContentEncoding();
+                if (encoding != null && "gzip".equalsIgnoreCase(encoding.getValue())) {
+                    response.setEntity(new GzipDecompressingEntity(entity));
+                    response.removeHeaders(HttpHeaders.CONTENT_ENCODING);
+                    response.removeHeaders(HttpHeaders.CONTENT_LENGTH);
+                }
+                return response;
+            }
+        };
+    }
+}
@@ -1,23 +1,129 @@
 package elasticsearch.ecommerce.app.factory;
 
+import elasticsearch.ecommerce.app.config.ElasticsearchConfiguration;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.micronaut.context.annotation.Factory;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
 import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.client.NodeSelector;
+import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestClientBuilder;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.sniff.ElasticsearchNodesSniffer;
+import org.elasticsearch.client.sniff.SniffOnFailureListener;
+import org.elasticsearch.client.sniff.Sniffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.annotation.PreDestroy;
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.inject.Singleton;
 
+/**
+ * Creates the client from the {@link ElasticsearchConfiguration}. Requests are spread over all configured hosts in a
+ * round robin fashion, a host that fails is left out until it responds again. With sniffing, the hosts are replaced
+ * by the nodes of the cluster, and fetched again right after a node failed.
+ *
+ * The connection pool is created here instead of by the client, so that its usage can be exposed as gauges: connections
+ * leased to requests, idle connections, and requests waiting for a connection because the pool is exhausted.
+ */
 @Factory
 public class HighLevelRestClientFactory {
 
+    private static final Logger LOG = LoggerFactory.getLogger(HighLevelRestClientFactory.class);
+
     private final RestHighLevelClient client;
+    private final Sniffer sniffer;
+    private final RequestOptions searchRequestOptions;
 
     @Inject
-    public HighLevelRestClientFactory() {
-        this.client = new RestHighLevelClient(RestClient.builder(new HttpHost("localhost", 9200, "http")));
+    public HighLevelRestClientFactory(ElasticsearchConfiguration configuration, MeterRegistry registry) throws IOReactorException {
+        HttpHost[] hosts = configuration.getHttpHosts().stream().map(String::strip).map(HttpHost::create).toArray(HttpHost[]::new);
+        PoolingNHttpClientConnectionManager connectionManager = connectionManager(configuration);
+        registerGauges(connectionManager, registry);
+        RestClientBuilder builder = RestClient.builder(hosts);
+        builder.setHttpClientConfigCallback(httpClientBuilder -> {
+            httpClientBuilder
+                    .setConnectionManager(connectionManager)
+                    .setKeepAliveStrategy((response, context) -> configuration.getKeepAlive().toMillis());
+            return httpClientBuilder;
+        });
+        if (configuration.isSkipDedicatedMasters()) {
+            builder.setNodeSelector(NodeSelector.SKIP_DEDICATED_MASTERS);
+        }
+        SniffOnFailureListener sniffOnFailureListener = configuration.isSniff() ? new SniffOnFailureListener() : null;
+        if (sniffOnFailureListener != null) {
+            builder.setFailureListener(sniffOnFailureListener);
+        }
+
+        this.client = new RestHighLevelClient(builder);
+
+        if (sniffOnFailureListener != null) {
+            ElasticsearchNodesSniffer.Scheme scheme = "https".equals(hosts[0].getSchemeName()) ?
+                    ElasticsearchNodesSniffer.Scheme.HTTPS : ElasticsearchNodesSniffer.Scheme.HTTP;
+            RestClient lowLevelClient = client.getLowLevelClient();
+            this.sniffer = Sniffer.builder(lowLevelClient)
+                    .setNodesSniffer(new ElasticsearchNodesSniffer(lowLevelClient, ElasticsearchNodesSniffer.DEFAULT_SNIFF_REQUEST_TIMEOUT, scheme))
+                    .setSniffIntervalMillis((int) configuration.getSniffInterval().toMillis())
+                    .setSniffAfterFailureDelayMillis((int) configuration.getSniffAfterFailureDelay().toMillis())
+                    .build();
+            sniffOnFailureListener.setSniffer(sniffer);
+        } else {
+            this.sniffer = null;
+        }
+        if (configuration.isCompression()) {
+            RequestOptions.Builder options = RequestOptions.DEFAULT.toBuilder();
+            options.addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+            options.setHttpAsyncResponseConsumerFactory(new GzipResponseConsumerFactory());
+            this.searchRequestOptions = options.build();
+        } else {
+            this.searchRequestOptions = RequestOptions.DEFAULT;
+        }
+        LOG.info("Connecting to {}, sniffing [{}], compression [{}]", configuration.getHttpHosts(), configuration.isSniff(),
+                configuration.isCompression());
+    }
+
+    /**
+     * The pool the client would create itself, including TLS set up from the system properties like the client does
+     */
+    private static PoolingNHttpClientConnectionManager connectionManager(ElasticsearchConfiguration configuration) throws IOReactorException {
+        DefaultConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(IOReactorConfig.custom()
+                .setIoThreadCount(configuration.getIoThreads())
+                .setSoKeepAlive(true)
+                .build());
+        Registry<SchemeIOSessionStrategy> schemes = RegistryBuilder.<SchemeIOSessionStrategy>create()
+                .register("http", NoopIOSessionStrategy.INSTANCE)
+                .register("https", SSLIOSessionStrategy.getSystemDefaultStrategy())
+                .build();
+        PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(ioReactor, schemes);
+        connectionManager.setMaxTotal(configuration.getMaxConnections());
+        connectionManager.setDefaultMaxPerRoute(configuration.getMaxConnectionsPerRoute());
+        return connectionManager;
+    }
+
+    // the stats are taken under the lock of the pool, but only when the gauges are read
+    private static void registerGauges(PoolingNHttpClientConnectionManager connectionManager, MeterRegistry registry) {
+        Gauge.builder("elasticsearch.connections", connectionManager, m -> m.getTotalStats().getLeased()).tag("state", "leased")
+                .description("connections to Elasticsearch").strongReference(true).register(registry);
+        Gauge.builder("elasticsearch.connections", connectionManager, m -> m.getTotalStats().getAvailable()).tag("state", "idle")
+                .description("connections to Elasticsearch").strongReference(true).register(registry);
+        Gauge.builder("elasticsearch.connections.pending", connectionManager, m -> m.getTotalStats().getPending())
+                .description("requests waiting for a connection to Elasticsearch").strongReference(true).register(registry);
+        Gauge.builder("elasticsearch.connections.max", connectionManager, PoolingNHttpClientConnectionManager::getMaxTotal)
+                .description("maximum number of connections to Elasticsearch").strongReference(true).register(registry);
     }
 
     @Singleton
@@ -25,8 +131,19 @@ public class HighLevelRestClientFactory {
         return client;
     }
 
+    /**
+     * Options of the searches sent on behalf of users, whose responses are asked for gzip compressed if compression
+     * is enabled. Other requests use the default options, their responses are small or read by the high level client.
+     */
+    @Singleton
+    @Named("search")
+    public RequestOptions getSearchRequestOptions() {
+        return searchRequestOptions;
+    }
+
     @PreDestroy
     public void closeClient() {
-        IOUtils.closeWhileHandlingException(client);
+        // the sniffer uses the client, so it has to go first
+        IOUtils.closeWhileHandlingException(sniffer, client);
     }
 }
@@ -0,0 +1,228 @@
+package elasticsearch.ecommerce.app.json;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Turns a search response into a flat response holding only what the search page renders, for clients that pay for
+ * every byte and every parsed token, like phones. A compact response looks like this:
+ *
+ * <pre>
+ * {
+ *   "total": 123, "total_relation": "eq",
+ *   "hits": [ { "id": "...", "name": "...", ... } ],
+ *   "facets": { "color": [ { "key": "red", "count": 12 } ], ..., "stock": [ { "key": "in_stock", "count": 100 } ] },
+ *   "min_price": 1.99, "max_price": 249.0,
+ *   "next_cursor": "...", "tier": "exact"
+ * }
+ * </pre>
+ *
+ * Hits are the _source of the products, which should already be reduced to the rendered fields by the search request.
+ * Filtered aggregations are unwrapped, so every facet is a plain array of keys and counts, no matter how it was
+ * aggregated. The response is transformed in a single pass of the parser, without building a tree of it.
+ */
+public final class CompactSearchResponse {
+
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final String BY_PREFIX = "by_";
+
+    private CompactSearchResponse() {
+    }
+
+    public static byte[] compact(byte[] response) throws IOException {
+        // a compact response is a fraction of the full one, mostly because of the dropped hit metadata
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(256, response.length / 2));
+        try (JsonParser parser = JSON.createParser(response);
+             JsonGenerator gen = JSON.createGenerator(out, JsonEncoding.UTF8)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("expected an object as search response");
+            }
+            gen.writeStartObject();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("hits".equals(field) && value == JsonToken.START_OBJECT) {
+                    writeHits(parser, gen);
+                } else if ("aggregations".equals(field) && value == JsonToken.START_OBJECT) {
+                    writeAggregations(parser, gen);
+                } else if ("timed_out".equals(field) && value == JsonToken.VALUE_TRUE) {
+                    // the hits are what was found until the search timeout
+                    gen.writeBooleanField("timed_out", true);
+                } else if ("next_cursor".equals(field) || "tier".equals(field)) {
+                    gen.writeFieldName(field);
+                    gen.copyCurrentStructure(parser);
+                } else {
+                    // took, _shards
+                    parser.skipChildren();
+                }
+            }
+            gen.writeEndObject();
+        }
+        return out.toByteArray();
+    }
+
+    // response.hits: total and the _source of every hit
+    private static void writeHits(JsonParser parser, JsonGenerator gen) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("total".equals(field)) {
+                writeTotal(parser, gen, value);
+            } else if ("hits".equals(field) && value == JsonToken.START_ARRAY) {
+                gen.writeArrayFieldStart("hits");
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    writeHit(parser, gen);
+                }
+                gen.writeEndArray();
+            } else {
+                // max_score
+                parser.skipChildren();
+            }
+        }
+    }
+
+    // either a number, or an object of value and relation since Elasticsearch 7
+    private static void writeTotal(JsonParser parser, JsonGenerator gen, JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_NUMBER_INT) {
+            gen.writeNumberField("total", parser.getLongValue());
+            return;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("value".equals(field)) {
+                gen.writeNumberField("total", parser.getLongValue());
+            } else if ("relation".equals(field)) {
+                gen.writeStringField("total_relation", parser.getText());
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    // drops _index, _id, _score and sort, the fields of the product are all in _source
+    private static void writeHit(JsonParser parser, JsonGenerator gen) throws IOException {
+        gen.writeStartObject();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("_source".equals(field) && value == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    gen.copyCurrentEvent(parser);
+                    parser.nextToken();
+                    gen.copyCurrentStructure(parser);
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        gen.writeEndObject();
+    }
+
+    /**
+     * Bucket aggregations become facets, named without their by_ prefix. Metric aggregations, which are only the min
+     * and max price, become top level numbers named like the aggregation. They show up in between the facets, so they
+     * are kept until all facets are written.
+     */
+    private static void writeAggregations(JsonParser parser, JsonGenerator gen) throws IOException {
+        Map<String, Double> metrics = new LinkedHashMap<>(4);
+        gen.writeObjectFieldStart("facets");
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            writeAggregation(parser, gen, name, metrics);
+        }
+        gen.writeEndObject();
+        for (Map.Entry<String, Double> metric : metrics.entrySet()) {
+            gen.writeFieldName(metric.getKey());
+            if (metric.getValue() == null) {
+                gen.writeNull();
+            } else {
+                gen.writeNumber(metric.getValue());
+            }
+        }
+    }
+
+    // a filtered aggregation wraps the actual aggregation as an object with the same name next to its doc_count
+    private static void writeAggregation(JsonParser parser, JsonGenerator gen, String name, Map<String, Double> metrics) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("buckets".equals(field) && value == JsonToken.START_ARRAY) {
+                writeBuckets(parser, gen, name);
+            } else if ("buckets".equals(field) && value == JsonToken.START_OBJECT) {
+                writeKeyedBuckets(parser, gen, name);
+            } else if ("value".equals(field)) {
+                // null if there was nothing to aggregate
+                metrics.put(name, value == JsonToken.VALUE_NULL ? null : parser.getDoubleValue());
+            } else if (value == JsonToken.START_OBJECT) {
+                writeAggregation(parser, gen, name, metrics);
+            } else {
+                // doc_count, doc_count_error_upper_bound, sum_other_doc_count, value_as_string
+                parser.skipChildren();
+            }
+        }
+    }
+
+    // terms aggregations: [{"key": "red", "doc_count": 12}]
+    private static void writeBuckets(JsonParser parser, JsonGenerator gen, String name) throws IOException {
+        gen.writeArrayFieldStart(facetName(name));
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            gen.writeStartObject();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("key".equals(field)) {
+                    gen.writeFieldName("key");
+                    gen.copyCurrentEvent(parser);
+                } else if ("doc_count".equals(field)) {
+                    gen.writeNumberField("count", parser.getLongValue());
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            gen.writeEndObject();
+        }
+        gen.writeEndArray();
+    }
+
+    // filters aggregations: {"in_stock": {"doc_count": 100}}
+    private static void writeKeyedBuckets(JsonParser parser, JsonGenerator gen, String name) throws IOException {
+        gen.writeArrayFieldStart(facetName(name));
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String key = parser.getCurrentName();
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            gen.writeStartObject();
+            gen.writeStringField("key", key);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("doc_count".equals(field)) {
+                    gen.writeNumberField("count", parser.getLongValue());
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            gen.writeEndObject();
+        }
+        gen.writeEndArray();
+    }
+
+    private static String facetName(String aggregation) {
+        return aggregation.startsWith(BY_PREFIX) ? aggregation.substring(BY_PREFIX.length()) : aggregation;
+    }
+}
@@ -0,0 +1,101 @@
+package elasticsearch.ecommerce.app.json;
+
+import io.micronaut.core.io.Writable;
+import io.netty.buffer.ByteBufOutputStream;
+import org.apache.http.HttpEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A JSON response from Elasticsearch, that is written to the HTTP response without being parsed or decoded.
+ *
+ * Micronaut writes a {@link Writable} body into a pooled buffer it allocates on the event loop, and Netty releases
+ * that buffer once it has been written or the write failed, i.e. because the client went away. If the client
+ * disconnected before Elasticsearch returned, no buffer is ever allocated.
+ *
+ * A response is either backed by the entity of the low level response, which can only be written once, or by a byte
+ * array, which can be shared between any number of requests.
+ */
+public class RawJsonResponse implements Writable {
+
+    private final HttpEntity entity;
+    private final byte[] bytes;
+
+    public RawJsonResponse(HttpEntity entity) {
+        this.entity = entity;
+        this.bytes = null;
+    }
+
+    public RawJsonResponse(byte[] bytes) {
+        this.entity = null;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Reads the whole entity into a byte array of its exact size
+     */
+    public static byte[] readFully(HttpEntity entity) throws IOException {
+        long length = entity.getContentLength();
+        try (InputStream in = entity.getContent()) {
+            if (length < 0 || length > Integer.MAX_VALUE) {
+                return in.readAllBytes();
+            }
+            byte[] bytes = new byte[(int) length];
+            int read = in.readNBytes(bytes, 0, bytes.length);
+            if (read != bytes.length) {
+                throw new IOException("expected [" + bytes.length + "] bytes in response, but got [" + read + "]");
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Returns the bytes of this response, an entity backed response is consumed by this
+     */
+    public byte[] toBytes() throws IOException {
+        return bytes != null ? bytes : readFully(entity);
+    }
+
+    /**
+     * @return the number of bytes of this response, or a negative number if not known up front
+     */
+    public long length() {
+        return bytes != null ? bytes.length : entity.getContentLength();
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream, Charset charset) throws IOException {
+        long length = length();
+        if (outputStream instanceof ByteBufOutputStream && length > 0 && length <= Integer.MAX_VALUE) {
+            // size the target buffer once, instead of growing it from its initial size while copying
+            ((ByteBufOutputStream) outputStream).buffer().ensureWritable((int) length);
+        }
+        if (bytes != null) {
+            outputStream.write(bytes);
+        } else {
+            entity.writeTo(outputStream);
+        }
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+        writeTo(outputStream, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void writeTo(Writer out) throws IOException {
+        // only used for character based targets, the HTTP response is written as bytes
+        try (InputStream content = bytes != null ? new ByteArrayInputStream(bytes) : entity.getContent();
+             Reader in = new InputStreamReader(content, StandardCharsets.UTF_8)) {
+            in.transferTo(out);
+        }
+    }
+}
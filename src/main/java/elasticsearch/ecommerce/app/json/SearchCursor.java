@@ -0,0 +1,73 @@
+package elasticsearch.ecommerce.app.json;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.exceptions.HttpStatusException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * An opaque cursor pointing behind the last hit of a page, which is the base64 encoded sort values of that hit.
+ *
+ * The next page is requested with these sort values as search_after, so every shard only needs to collect a single
+ * page of hits, no matter how deep the page is.
+ */
+public final class SearchCursor {
+
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final int MAX_SORT_VALUES = 8;
+
+    private SearchCursor() {
+    }
+
+    /**
+     * Encodes the JSON array of sort values in the given range
+     */
+    public static String encode(byte[] bytes, int offset, int length) {
+        byte[] sortValues = new byte[length];
+        System.arraycopy(bytes, offset, sortValues, 0, length);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(sortValues);
+    }
+
+    /**
+     * Decodes a cursor into the JSON array of its sort values, which can be used as search_after as it is
+     *
+     * @throws HttpStatusException if the cursor is not valid, so it is returned as bad request
+     */
+    public static String decode(String cursor) {
+        final byte[] sortValues;
+        try {
+            sortValues = Base64.getUrlDecoder().decode(cursor);
+        } catch (IllegalArgumentException e) {
+            throw invalid(cursor);
+        }
+
+        // the sort values are written to the search request without escaping, so only an array of scalars is accepted
+        try (JsonParser parser = JSON.createParser(sortValues)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw invalid(cursor);
+            }
+            int count = 0;
+            JsonToken token;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (token == null || token.isScalarValue() == false || ++count > MAX_SORT_VALUES) {
+                    throw invalid(cursor);
+                }
+            }
+            if (count == 0 || parser.nextToken() != null) {
+                throw invalid(cursor);
+            }
+        } catch (IOException e) {
+            throw invalid(cursor);
+        }
+        return new String(sortValues, StandardCharsets.UTF_8);
+    }
+
+    private static HttpStatusException invalid(String cursor) {
+        return new HttpStatusException(HttpStatus.BAD_REQUEST, "Invalid cursor: " + cursor);
+    }
+}
@@ -0,0 +1,191 @@
+package elasticsearch.ecommerce.app.json;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Combines the raw bytes of search responses, without decoding and encoding them again
+ */
+public final class SearchResponses {
+
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final byte[] AGGREGATIONS_FIELD = ",\"aggregations\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NEXT_CURSOR_FIELD = ",\"next_cursor\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TIER_FIELD = ",\"tier\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TOOK_PREFIX = "{\"took\":".getBytes(StandardCharsets.UTF_8);
+
+    private SearchResponses() {
+    }
+
+    /**
+     * Appends the aggregations of one search response to another search response without aggregations, so that the
+     * result looks like a single search response. Only the aggregations are parsed, all bytes are copied as they are.
+     */
+    public static byte[] mergeAggregations(byte[] hits, byte[] aggregations) throws IOException {
+        try (JsonParser parser = JSON.createParser(aggregations)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("expected an object as search response");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("aggregations".equals(field) == false) {
+                    parser.skipChildren();
+                    continue;
+                }
+                int start = (int) parser.getTokenLocation().getByteOffset();
+                parser.skipChildren();
+                int length = (int) parser.getCurrentLocation().getByteOffset() - start;
+                return appendField(hits, AGGREGATIONS_FIELD, aggregations, start, length);
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Adds an already rendered aggregations object to a search response without aggregations
+     */
+    public static byte[] addAggregations(byte[] response, byte[] aggregations) throws IOException {
+        return appendField(response, AGGREGATIONS_FIELD, aggregations, 0, aggregations.length);
+    }
+
+    /**
+     * Adds a next_cursor field to a search response, if it returned a full page. The cursor contains the sort values
+     * of the last hit, see {@link SearchCursor}.
+     */
+    public static byte[] addNextCursor(byte[] response, int pageSize) throws IOException {
+        int count = 0;
+        int start = -1;
+        int length = 0;
+        try (JsonParser parser = JSON.createParser(response)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("expected an object as search response");
+            }
+            // response.hits.hits[].sort
+            if (nextObjectField(parser, "hits") && nextArrayField(parser, "hits")) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    count++;
+                    start = -1;
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String field = parser.getCurrentName();
+                        parser.nextToken();
+                        if ("sort".equals(field)) {
+                            start = (int) parser.getTokenLocation().getByteOffset();
+                            parser.skipChildren();
+                            length = (int) parser.getCurrentLocation().getByteOffset() - start;
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                }
+            }
+        }
+        if (count < pageSize || start < 0) {
+            // last page, or not sorted
+            return response;
+        }
+        return addStringField(response, NEXT_CURSOR_FIELD, SearchCursor.encode(response, start, length));
+    }
+
+    /**
+     * Adds a tier field to a search response, naming the query that answered the search
+     */
+    public static byte[] addTier(byte[] response, String tier) throws IOException {
+        return addStringField(response, TIER_FIELD, tier);
+    }
+
+    /**
+     * Returns the total number of hits of a search response, without parsing more than needed to find it
+     */
+    public static long totalHits(byte[] response) throws IOException {
+        try (JsonParser parser = JSON.createParser(response)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("expected an object as search response");
+            }
+            // response.hits.total.value
+            if (nextObjectField(parser, "hits") && nextField(parser, "total")) {
+                if (parser.currentToken() == JsonToken.VALUE_NUMBER_INT) {
+                    return parser.getLongValue();
+                }
+                if (parser.currentToken() == JsonToken.START_OBJECT && nextField(parser, "value")) {
+                    return parser.getLongValue();
+                }
+            }
+        }
+        throw new IOException("no total hits in search response");
+    }
+
+    /**
+     * Returns the milliseconds Elasticsearch took for a search, which it writes as the first field of every search
+     * response. Only the leading bytes are looked at, nothing is parsed or allocated.
+     *
+     * @return the took of the response, or -1 if it does not start with it
+     */
+    public static long took(byte[] response) {
+        if (response.length <= TOOK_PREFIX.length
+                || Arrays.equals(response, 0, TOOK_PREFIX.length, TOOK_PREFIX, 0, TOOK_PREFIX.length) == false) {
+            return -1;
+        }
+        int i = TOOK_PREFIX.length;
+        while (i < response.length && response[i] == ' ') {
+            i++;
+        }
+        int start = i;
+        long took = 0;
+        for (; i < response.length && response[i] >= '0' && response[i] <= '9'; i++) {
+            took = took * 10 + response[i] - '0';
+        }
+        return i == start ? -1 : took;
+    }
+
+    // moves the parser into the value of the given field of the current object, if it is an object
+    private static boolean nextObjectField(JsonParser parser, String name) throws IOException {
+        return nextField(parser, name) && parser.currentToken() == JsonToken.START_OBJECT;
+    }
+
+    // moves the parser into the value of the given field of the current object, if it is an array
+    private static boolean nextArrayField(JsonParser parser, String name) throws IOException {
+        return nextField(parser, name) && parser.currentToken() == JsonToken.START_ARRAY;
+    }
+
+    private static boolean nextField(JsonParser parser, String name) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if (name.equals(field)) {
+                return true;
+            }
+            parser.skipChildren();
+        }
+        return false;
+    }
+
+    // the value must not need any escaping
+    private static byte[] addStringField(byte[] response, byte[] field, String value) throws IOException {
+        byte[] quoted = ("\"" + value + "\"").getBytes(StandardCharsets.UTF_8);
+        return appendField(response, field, quoted, 0, quoted.length);
+    }
+
+    // adds a field to the end of the top level object of a response, the field name has to include its comma and colon
+    private static byte[] appendField(byte[] response, byte[] field, byte[] value, int offset, int length) throws IOException {
+        int end = response.length - 1;
+        while (end >= 0 && response[end] != '}') {
+            end--;
+        }
+        if (end < 0) {
+            throw new IOException("expected an object as search response");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(end + field.length + length + 1);
+        out.write(response, 0, end);
+        out.write(field, 0, field.length);
+        out.write(value, offset, length);
+        out.write('}');
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,137 @@
+package elasticsearch.ecommerce.app.service;
+
+import elasticsearch.ecommerce.app.entities.AdminJobStatus;
+import elasticsearch.ecommerce.app.entities.IndexingReport;
+import org.elasticsearch.common.CheckedFunction;
+
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A long running admin operation, run by {@link AdminJobs}. The operation reports its progress to the job and checks
+ * regularly whether it has been cancelled, see {@link #checkCancelled()}.
+ */
+public final class AdminJob<T> {
+
+    public enum State {
+        QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED
+    }
+
+    private final String id;
+    private final String type;
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+    private final LongAdder processed = new LongAdder();
+    private volatile State state = State.QUEUED;
+    private volatile boolean cancelled = false;
+    private volatile long total = -1;
+    private volatile BulkIngester ingester;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private volatile String error;
+
+    AdminJob(String id, String type) {
+        this.id = id;
+        this.type = type;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return the future completed with the result of the operation, or exceptionally if it failed or was cancelled
+     */
+    public CompletableFuture<T> result() {
+        return result;
+    }
+
+    /**
+     * Sets the number of documents the operation is going to process, if known upfront
+     */
+    public void setTotal(long total) {
+        this.total = total;
+    }
+
+    public void processed(long documents) {
+        processed.add(documents);
+    }
+
+    /**
+     * The number of indexed documents and bytes sent by this ingester are part of the status
+     */
+    public void track(BulkIngester ingester) {
+        this.ingester = ingester;
+    }
+
+    /**
+     * Asks the operation to stop, it stops the next time it checks for cancellation. A queued job does not run at all.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @throws CancellationException if the job has been cancelled
+     */
+    public void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException("Job [" + id + "] has been cancelled");
+        }
+    }
+
+    public boolean isDone() {
+        return result.isDone();
+    }
+
+    void run(CheckedFunction<AdminJob<T>, T, Exception> operation) {
+        startedAt = System.nanoTime();
+        try {
+            checkCancelled();
+            state = State.RUNNING;
+            T value = operation.apply(this);
+            finish(State.SUCCEEDED, null);
+            result.complete(value);
+        } catch (CancellationException e) {
+            finish(State.CANCELLED, e.getMessage());
+            result.completeExceptionally(e);
+        } catch (InterruptedException e) {
+            // interrupted while waiting, i.e. when the executor shuts down, the pool thread keeps its interrupt
+            Thread.currentThread().interrupt();
+            cancelled = true;
+            CancellationException cancellation = new CancellationException("Job [" + id + "] has been interrupted");
+            cancellation.initCause(e);
+            finish(State.CANCELLED, cancellation.getMessage());
+            result.completeExceptionally(cancellation);
+        } catch (Exception e) {
+            finish(State.FAILED, e.toString());
+            result.completeExceptionally(e);
+        }
+    }
+
+    private void finish(State finalState, String message) {
+        finishedAt = System.nanoTime();
+        error = message;
+        state = finalState;
+    }
+
+    public AdminJobStatus status() {
+        State currentState = state;
+        long elapsedNanos = currentState == State.QUEUED ? 0 : (finishedAt != 0 ? finishedAt : System.nanoTime()) - startedAt;
+        BulkIngester currentIngester = ingester;
+        IndexingReport report = currentIngester == null ? null : currentIngester.report();
+        return new AdminJobStatus(id, type, currentState.name().toLowerCase(Locale.ROOT), total, processed.sum(),
+                report == null ? 0 : report.getIndexed(), report == null ? 0 : report.getFailed(),
+                report == null ? 0 : report.getBytesSent(), elapsedNanos / 1_000_000, error,
+                currentState == State.SUCCEEDED ? result.join() : null);
+    }
+}
@@ -0,0 +1,110 @@
+package elasticsearch.ecommerce.app.service;
+
+import elasticsearch.ecommerce.app.config.AdminJobsConfiguration;
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.exceptions.HttpStatusException;
+import org.elasticsearch.common.CheckedFunction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs admin operations as jobs on a small dedicated thread pool, so that their blocking calls to Elasticsearch never
+ * occupy threads of the common fork join pool or of the HTTP server. Jobs can be looked up by their id while they
+ * run and for a while after they finished.
+ */
+@Singleton
+public class AdminJobs {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AdminJobs.class);
+
+    private final ThreadPoolExecutor executor;
+    private final int retainedJobs;
+    private final AtomicLong ids = new AtomicLong();
+    // in submission order, guarded by itself
+    private final Map<String, AdminJob<?>> jobs = new LinkedHashMap<>();
+
+    @Inject
+    public AdminJobs(AdminJobsConfiguration configuration) {
+        this.retainedJobs = configuration.getRetainedJobs();
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(configuration.getThreads(), configuration.getThreads(), 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, configuration.getQueueSize())), r -> {
+                    Thread thread = new Thread(r, "admin-job-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Queues an operation as a new job
+     *
+     * @throws HttpStatusException with 503 if too many jobs are queued already
+     */
+    public <T> AdminJob<T> submit(String type, CheckedFunction<AdminJob<T>, T, Exception> operation) {
+        AdminJob<T> job = new AdminJob<>(Long.toString(ids.incrementAndGet()), type);
+        synchronized (jobs) {
+            jobs.put(job.getId(), job);
+            evictFinishedJobs();
+        }
+        try {
+            executor.execute(() -> {
+                job.run(operation);
+                LOG.info("Job [{}] of type [{}] finished as [{}]", job.getId(), type, job.getState());
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (jobs) {
+                jobs.remove(job.getId());
+            }
+            throw new HttpStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many admin jobs are queued, try again later");
+        }
+        return job;
+    }
+
+    private void evictFinishedJobs() {
+        Iterator<AdminJob<?>> iterator = jobs.values().iterator();
+        while (jobs.size() > retainedJobs && iterator.hasNext()) {
+            if (iterator.next().isDone()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the job, or null if there is no such job or it has been forgotten
+     */
+    public AdminJob<?> get(String id) {
+        synchronized (jobs) {
+            return jobs.get(id);
+        }
+    }
+
+    /**
+     * @return all retained jobs, the oldest first
+     */
+    public List<AdminJob<?>> list() {
+        synchronized (jobs) {
+            return new ArrayList<>(jobs.values());
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        list().forEach(AdminJob::cancel);
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,204 @@
+package elasticsearch.ecommerce.app.service;
+
+import elasticsearch.ecommerce.app.config.IndexingConfiguration;
+import elasticsearch.ecommerce.app.entities.IndexingReport;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Sends documents to Elasticsearch using several concurrent bulk requests.
+ *
+ * The caller only creates and encodes documents, while up to {@code concurrentRequests} bulk requests are in flight
+ * on the IO threads of the client. Once all of them are busy, {@link #add(DocWriteRequest)} blocks until one returns,
+ * so that a fast producer cannot pile up an unbounded amount of documents on the heap.
+ * Documents rejected with a 429 are sent again with an exponential backoff.
+ *
+ * Progress is counted per ingester for its {@link IndexingReport}, and recorded in the {@link IndexingMetrics} shared
+ * by all ingesters. A {@link WriteListener} can be told which documents were written and which failed.
+ */
+public class BulkIngester implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BulkIngester.class);
+
+    private final BulkProcessor processor;
+    private final long startedAt = System.nanoTime();
+    private final LongAdder indexed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder bulkRequests = new LongAdder();
+    // every execution of a bulk request, including retries of rejected items
+    private final LongAdder executions = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    // bulk requests handed to the listener and not executed yet, any other execution is a retry of rejected items
+    private final Set<BulkRequest> firstExecutions = ConcurrentHashMap.newKeySet();
+    private final IndexingMetrics metrics;
+    private final WriteListener writeListener;
+
+    public BulkIngester(RestHighLevelClient client, IndexingConfiguration configuration, IndexingMetrics metrics) {
+        this(client, configuration, metrics, null);
+    }
+
+    public BulkIngester(RestHighLevelClient client, IndexingConfiguration configuration, IndexingMetrics metrics,
+                        WriteListener writeListener) {
+        this.metrics = metrics;
+        this.writeListener = writeListener;
+        BiConsumer<BulkRequest, ActionListener<BulkResponse>> consumer = (request, listener) -> {
+            long sentAt = System.nanoTime();
+            long bytes = request.estimatedSizeInBytes();
+            executions.increment();
+            bytesSent.add(bytes);
+            metrics.sent(request.numberOfActions(), bytes, firstExecutions.remove(request) == false);
+            client.bulkAsync(request, RequestOptions.DEFAULT, ActionListener.runBefore(listener, () -> metrics.returned(sentAt)));
+        };
+        BackoffPolicy backoffPolicy = BackoffPolicy.exponentialBackoff(
+                TimeValue.timeValueMillis(configuration.getInitialBackoff().toMillis()), configuration.getMaxRetries());
+
+        this.processor = BulkProcessor.builder(consumer, new Listener())
+                .setConcurrentRequests(configuration.getConcurrentRequests())
+                .setBulkActions(configuration.getBulkActions())
+                .setBulkSize(new ByteSizeValue(configuration.getBulkSize()))
+                .setBackoffPolicy(backoffPolicy)
+                .build();
+    }
+
+    /**
+     * Adds a document to the current bulk request, blocks if all concurrent bulk requests are in flight
+     */
+    public void add(DocWriteRequest<?> request) {
+        processor.add(request);
+    }
+
+    /**
+     * Sends the documents added so far, without waiting for the current bulk request to fill up
+     */
+    public void flush() {
+        processor.flush();
+    }
+
+    /**
+     * Sends the remaining documents and waits until all bulk requests have returned
+     */
+    public IndexingReport awaitCompletion() throws InterruptedException {
+        processor.awaitClose(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        return report();
+    }
+
+    public IndexingReport report() {
+        long bulks = bulkRequests.sum();
+        long retries = Math.max(0, executions.sum() - bulks);
+        long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+        return new IndexingReport(indexed.sum(), failed.sum(), retries, bulks, bytesSent.sum(), took);
+    }
+
+    @Override
+    public void close() {
+        processor.close();
+    }
+
+    /**
+     * Is told about the documents of every bulk request once it returned, after rejected documents have been retried
+     */
+    public interface WriteListener {
+
+        /**
+         * Called on a thread of the client
+         *
+         * @param failed the documents that could not be written, with the status of their failure
+         */
+        void afterBulk(List<DocWriteRequest<?>> written, Map<DocWriteRequest<?>, RestStatus> failed);
+    }
+
+    private class Listener implements BulkProcessor.Listener {
+
+        @Override
+        public void beforeBulk(long executionId, BulkRequest request) {
+            bulkRequests.increment();
+            firstExecutions.add(request);
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+            int failures = 0;
+            String firstFailure = null;
+            for (BulkItemResponse item : response.getItems()) {
+                if (item.isFailed()) {
+                    if (failures++ == 0) {
+                        firstFailure = item.getFailureMessage();
+                    }
+                }
+            }
+            indexed.add(response.getItems().length - failures);
+            failed.add(failures);
+            metrics.indexed(response.getItems().length, failures, response.getTook().millis());
+            if (failures > 0) {
+                LOG.warn("Bulk request [{}] failed to index [{}] of [{}] documents, first failure [{}]", executionId, failures,
+                        response.getItems().length, firstFailure);
+            } else {
+                LOG.debug("Bulk request [{}] indexed [{}] documents in [{}]", executionId, response.getItems().length, response.getTook());
+            }
+            if (writeListener != null) {
+                notifyWriteListener(request, response);
+            }
+        }
+
+        // the items of retried documents are not in the order of the request, so they are matched by id, which is
+        // unique within a bulk request
+        private void notifyWriteListener(BulkRequest request, BulkResponse response) {
+            Map<String, DocWriteRequest<?>> requestsById = new HashMap<>();
+            for (DocWriteRequest<?> document : request.requests()) {
+                requestsById.put(document.id(), document);
+            }
+            List<DocWriteRequest<?>> written = new ArrayList<>(response.getItems().length);
+            Map<DocWriteRequest<?>, RestStatus> failed = new IdentityHashMap<>();
+            for (BulkItemResponse item : response.getItems()) {
+                DocWriteRequest<?> document = requestsById.get(item.getId());
+                if (document == null) {
+                    continue;
+                }
+                if (item.isFailed()) {
+                    failed.put(document, item.getFailure().getStatus());
+                } else {
+                    written.add(document);
+                }
+            }
+            writeListener.afterBulk(written, failed);
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+            failed.add(request.numberOfActions());
+            metrics.failed(request.numberOfActions());
+            LOG.error("Bulk request [{}] with [{}] documents failed", executionId, request.numberOfActions(), failure);
+            if (writeListener != null) {
+                RestStatus status = ExceptionsHelper.status(failure);
+                Map<DocWriteRequest<?>, RestStatus> failed = new IdentityHashMap<>();
+                request.requests().forEach(document -> failed.put(document, status));
+                writeListener.afterBulk(List.of(), failed);
+            }
+        }
+    }
+}
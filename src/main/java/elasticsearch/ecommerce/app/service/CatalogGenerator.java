@@ -0,0 +1,198 @@
+package elasticsearch.ecommerce.app.service;
+
+import com.github.javafaker.Faker;
+import com.github.javafaker.service.FakeValuesService;
+import com.github.javafaker.service.RandomService;
+import elasticsearch.ecommerce.app.entities.Product;
+import org.elasticsearch.common.CheckedConsumer;
+import org.elasticsearch.common.CheckedFunction;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates a catalog of fake products, the same seed always generates the same products in the same order.
+ *
+ * Faker is only used once, to set up the tables products are drawn from: the brands, the words of product names,
+ * colors and the ids of images that exist. Products are then generated in chunks of {@value #CHUNK_SIZE}, each drawn
+ * from its own random stream derived from the seed and the number of the chunk, so the chunks can be generated on
+ * any number of threads and the catalog does not depend on how many there are.
+ */
+public class CatalogGenerator {
+
+    static final int CHUNK_SIZE = 1000;
+
+    private static final int BRANDS = 10;
+    private static final int MAX_IMAGE_ID = 1000;
+    private static final int LOGOS = 13;
+    // Found via
+    // for i in $(jot 1000) ; do curl -s -X HEAD "https://picsum.photos/id/$i/200/200" -w '%{http_code} %{url_effective}\n' | tee -a /tmp/head.log ; done
+    // for i in $(grep "^404" /tmp/head.log | cut -d '/' -f 5) ; do echo -n "$i, " ; done
+    private static final int[] NON_EXISTING_IMAGE_IDS = {86, 97, 105, 138, 148, 150, 205, 207, 224, 226, 245, 246, 262, 285, 286,
+            298, 303, 332, 333, 346, 359, 394, 414, 422, 438, 462, 463, 470, 489, 540, 561, 578, 587, 589, 592, 595, 597, 601, 624, 632,
+            636, 644, 647, 673, 697, 706, 707, 708, 709, 710, 711, 712, 713, 714, 720, 725, 734, 745, 746, 747, 748, 749, 750, 751, 752,
+            753, 754, 759, 761, 762, 763, 771, 792, 801, 812, 843, 850, 854, 895, 897, 899, 917, 920, 934, 956, 963, 968};
+    // products were last updated within a year before this day, a fixed day keeps the catalog the same across runs
+    private static final long LAST_UPDATED_BEFORE = 1593561600000L; // 2020-07-01T00:00:00Z
+    private static final long YEAR_MILLIS = TimeUnit.DAYS.toMillis(365);
+
+    private final long seed;
+    private final String[] brands;
+    private final String[] adjectives;
+    private final String[] materials;
+    private final String[] productTypes;
+    private final String[] colors;
+    private final String[] imageUrls;
+    private final String[] logoUrls;
+
+    public CatalogGenerator(long seed) {
+        this.seed = seed;
+        Random random = new Random(seed);
+        Faker faker = new Faker(Locale.GERMAN, random);
+        FakeValuesService values = new FakeValuesService(Locale.GERMAN, new RandomService(random));
+        TreeSet<String> brands = new TreeSet<>();
+        while (brands.size() < BRANDS) {
+            brands.add(faker.company().name());
+        }
+        this.brands = brands.toArray(new String[0]);
+        this.adjectives = words(values, "commerce.product_name.adjective");
+        this.materials = words(values, "commerce.product_name.material");
+        this.productTypes = words(values, "commerce.product_name.product");
+        this.colors = words(values, "color.name");
+
+        int[] imageIds = new int[MAX_IMAGE_ID - 1 - NON_EXISTING_IMAGE_IDS.length];
+        for (int id = 1, i = 0, missing = 0; id < MAX_IMAGE_ID; id++) {
+            if (missing < NON_EXISTING_IMAGE_IDS.length && NON_EXISTING_IMAGE_IDS[missing] == id) {
+                missing++;
+            } else {
+                imageIds[i++] = id;
+            }
+        }
+        this.imageUrls = new String[imageIds.length];
+        for (int i = 0; i < imageIds.length; i++) {
+            // no text, we would need to deal with spaces and umlauts
+            imageUrls[i] = "https://picsum.photos/id/" + imageIds[i] + "/200/200?blur=1";
+        }
+        this.logoUrls = new String[LOGOS];
+        for (int i = 0; i < LOGOS; i++) {
+            logoUrls[i] = "https://pigment.github.io/fake-logos/logos/medium/color/" + (i + 1) + ".png";
+        }
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @return the products of the given chunk, the last chunk of a catalog may be smaller
+     */
+    public Product[] chunk(long chunk, int size) {
+        SplittableRandom random = new SplittableRandom(chunkSeed(chunk));
+        Product[] products = new Product[size];
+        for (int i = 0; i < size; i++) {
+            products[i] = product(random);
+        }
+        return products;
+    }
+
+    /**
+     * Generates a catalog on several threads and hands its chunks to the consumer in order, on the calling thread.
+     * Only a few chunks per thread are generated ahead of the consumer, so a slow consumer holds back the generation.
+     *
+     * @param count number of products
+     * @param threads number of threads generating chunks
+     * @param transform applied to every chunk on the generating threads, i.e. to encode it
+     * @param consumer receives the transformed chunks in the order of the catalog
+     */
+    public <T> void generate(long count, int threads, CheckedFunction<Product[], T, IOException> transform,
+                             CheckedConsumer<T, IOException> consumer) throws IOException, InterruptedException {
+        long chunks = (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, "catalog-generator-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            ArrayDeque<Future<T>> pending = new ArrayDeque<>();
+            long submitted = 0;
+            int maxPending = 2 * Math.max(1, threads);
+            while (submitted < chunks || pending.isEmpty() == false) {
+                while (submitted < chunks && pending.size() < maxPending) {
+                    long chunk = submitted++;
+                    int size = (int) Math.min(CHUNK_SIZE, count - chunk * CHUNK_SIZE);
+                    pending.add(executor.submit(() -> transform.apply(chunk(chunk, size))));
+                }
+                consumer.accept(next(pending.poll()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <T> T next(Future<T> chunk) throws IOException, InterruptedException {
+        try {
+            return chunk.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Could not generate products", e.getCause());
+        }
+    }
+
+    private Product product(SplittableRandom random) {
+        String name = pick(random, adjectives) + " " + pick(random, materials) + " " + pick(random, productTypes);
+        double price = random.nextInt(100, 100_000) / 100.0;
+        String material = pick(random, materials);
+        String color = pick(random, colors);
+        String id = digits(random, 20);
+        String imageUrl = imageUrls[random.nextInt(imageUrls.length)];
+        String brand = pick(random, brands);
+        String logoUrl = pick(random, logoUrls);
+        Date lastUpdated = new Date(LAST_UPDATED_BEFORE - random.nextLong(YEAR_MILLIS));
+        int stock = random.nextInt(0, 10);
+        int commission = random.nextInt(5, 20);
+        return new Product(name, price, color, material, id, imageUrl, brand, logoUrl, lastUpdated, stock, commission);
+    }
+
+    // the seeds of neighbouring chunks are spread, so that their random streams do not overlap
+    private long chunkSeed(long chunk) {
+        long z = seed * 0x9E3779B97F4A7C15L + chunk;
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+
+    private static String digits(SplittableRandom random, int length) {
+        char[] digits = new char[length];
+        for (int i = 0; i < length; i++) {
+            digits[i] = (char) ('0' + random.nextInt(10));
+        }
+        return new String(digits);
+    }
+
+    private static String pick(SplittableRandom random, String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String[] words(FakeValuesService values, String key) {
+        return ((List<String>) values.fetchObject(key)).toArray(new String[0]);
+    }
+}
@@ -0,0 +1,109 @@
+package elasticsearch.ecommerce.app.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import elasticsearch.ecommerce.app.entities.Product;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Writes a generated catalog to disk as bodies of bulk requests, so that the same catalog can be indexed again and
+ * again without generating and encoding it every time, i.e. with
+ * {@code curl -XPOST localhost:9200/products/_bulk -H 'Content-Type: application/x-ndjson' --data-binary @products-00000.ndjson}.
+ *
+ * Products are encoded on the generating threads, the files are written in the order of the catalog, so the same
+ * seed always writes the same files. Run with {@code ./gradlew generateCatalog}, configured with system properties,
+ * see README.md.
+ */
+public final class CatalogWriter {
+
+    private static final ObjectWriter WRITER = new ObjectMapper()
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+            .writerFor(Product.class);
+
+    private CatalogWriter() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        long products = Long.getLong("catalog.products", 1_000_000);
+        long seed = Long.getLong("catalog.seed", 42);
+        int threads = Integer.getInteger("catalog.threads", Runtime.getRuntime().availableProcessors());
+        Path directory = Paths.get(System.getProperty("catalog.directory", "build/catalog"));
+        // every file is a whole number of chunks
+        int chunksPerFile = Math.max(1, Integer.getInteger("catalog.products-per-file", 5000) / CatalogGenerator.CHUNK_SIZE);
+
+        Files.createDirectories(directory);
+        long startedAt = System.nanoTime();
+        try (BulkFiles files = new BulkFiles(directory, chunksPerFile)) {
+            new CatalogGenerator(seed).generate(products, threads, CatalogWriter::encode, files::write);
+            double seconds = (System.nanoTime() - startedAt) / 1e9;
+            System.out.printf("Wrote %d products with seed %d into %d files in %s, %d MB in %.1f s, %.0f products/s%n", products, seed,
+                    files.count(), directory.toAbsolutePath(), files.bytes() / (1024 * 1024), seconds, products / seconds);
+        }
+    }
+
+    /**
+     * Encodes products as the lines of a bulk request, the index is taken from the URL the bulk request is sent to
+     */
+    static byte[] encode(Product[] products) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(products.length * 512);
+        for (Product product : products) {
+            // ids are digits only, so they need no escaping
+            out.write(("{\"index\":{\"_id\":\"" + product.getId() + "\"}}\n").getBytes(StandardCharsets.UTF_8));
+            WRITER.writeValue(out, product);
+            out.write('\n');
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Appends chunks to numbered files, starting a new file after the given number of chunks
+     */
+    private static class BulkFiles implements Closeable {
+
+        private final Path directory;
+        private final int chunksPerFile;
+        private OutputStream file;
+        private long chunks = 0;
+        private long bytes = 0;
+
+        private BulkFiles(Path directory, int chunksPerFile) {
+            this.directory = directory;
+            this.chunksPerFile = chunksPerFile;
+        }
+
+        private void write(byte[] chunk) throws IOException {
+            if (chunks % chunksPerFile == 0) {
+                close();
+                file = Files.newOutputStream(directory.resolve(String.format("products-%05d.ndjson", count())));
+            }
+            file.write(chunk);
+            chunks++;
+            bytes += chunk.length;
+        }
+
+        private long count() {
+            return (chunks + chunksPerFile - 1) / chunksPerFile;
+        }
+
+        private long bytes() {
+            return bytes;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (file != null) {
+                file.close();
+                file = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package elasticsearch.ecommerce.app.service;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import elasticsearch.ecommerce.app.entities.ProductUpdate;
+import elasticsearch.ecommerce.app.entities.Query;
+import org.apache.lucene.util.IntroSorter;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.hash.MurmurHash3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable columnar copy of the facet fields of all products, that computes the aggregations of a search in memory, in the
+ * same format as Elasticsearch returns them.
+ *
+ * Every facet field is dictionary encoded, with an ordinal per product. Price and stock are kept as plain arrays. The
+ * aggregations of a search are counted in a single pass over these arrays: a product is checked against the range
+ * filters and the selected values of every facet, and counted for the facets it matches. Apart from the counts per
+ * value, nothing is allocated per search, and the memory needed is a few bytes per product, no matter how many
+ * values the facets have or how many products have a value.
+ *
+ * Price and stock updates create a copy of those two arrays, sharing everything else, see
+ * {@link #withUpdates(Collection)}. Searches keep counting the instance they started with, so they never see a
+ * partially applied update. Products are found by a 64 bit hash of their id, kept sorted next to the number of the
+ * product.
+ *
+ * This can only count searches that match all products, that is without query text.
+ */
+public final class FacetIndex {
+
+    // the fields that become terms aggregations, in the order they show up in the response
+    private static final List<String> FACETS = List.of("color", "brand", "material");
+    // the default size of a terms aggregation
+    private static final int TERMS_SIZE = 10;
+    private static final JsonFactory JSON = new JsonFactory();
+
+    static final FacetIndex EMPTY = new Builder().build();
+
+    private final int numDocs;
+    // in the order of FACETS
+    private final Column[] columns;
+    private final double[] prices;
+    private final int[] stocks;
+    // sorted, with the number of the product of each id hash at the same position
+    private final long[] idHashes;
+    private final int[] idDocs;
+
+    private FacetIndex(int numDocs, Column[] columns, double[] prices, int[] stocks, long[] idHashes, int[] idDocs) {
+        this.numDocs = numDocs;
+        this.columns = columns;
+        this.prices = prices;
+        this.stocks = stocks;
+        this.idHashes = idHashes;
+        this.idDocs = idDocs;
+    }
+
+    public int size() {
+        return numDocs;
+    }
+
+    /**
+     * Returns a copy with the price and stock of the given products changed, fields that are null are left as they
+     * are. Updates of unknown products are ignored, if none of the products is known this index is returned.
+     */
+    public FacetIndex withUpdates(Collection<ProductUpdate> updates) {
+        double[] updatedPrices = null;
+        int[] updatedStocks = null;
+        for (ProductUpdate update : updates) {
+            int i = Arrays.binarySearch(idHashes, idHash(update.getId()));
+            if (i < 0) {
+                continue;
+            }
+            if (updatedPrices == null) {
+                updatedPrices = prices.clone();
+                updatedStocks = stocks.clone();
+            }
+            int doc = idDocs[i];
+            if (update.getPrice() != null) {
+                updatedPrices[doc] = update.getPrice();
+            }
+            if (update.getStock() != null) {
+                updatedStocks[doc] = update.getStock();
+            }
+        }
+        return updatedPrices == null ? this : new FacetIndex(numDocs, columns, updatedPrices, updatedStocks, idHashes, idDocs);
+    }
+
+    private static long idHash(String id) {
+        byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        return MurmurHash3.hash128(bytes, 0, bytes.length, 0, new MurmurHash3.Hash128()).h1;
+    }
+
+    /**
+     * @return true if the aggregations of this query can be computed here
+     */
+    public boolean canCount(Query query) {
+        if (Strings.isEmpty(query.getQuery()) == false && query.getQuery().isBlank() == false) {
+            return false;
+        }
+        for (Query.Filter filter : query.getFilters()) {
+            if ("term".equals(filter.getType())) {
+                if (FACETS.contains(filter.getKey()) == false) {
+                    return false;
+                }
+            } else if ("range".equals(filter.getType())) {
+                if (("price".equals(filter.getKey()) || "stock".equals(filter.getKey())) == false
+                        || isNumber(filter.getFrom()) == false || isNumber(filter.getTo()) == false) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Renders the aggregations object of a search response of the given endpoint, see {@link SearchTemplates} for the
+     * aggregations requested from Elasticsearch. Only call this if {@link #canCount(Query)} returned true.
+     */
+    public byte[] aggregations(SearchEndpoint endpoint, Query query) throws IOException {
+        Counts counts = count(query, endpoint == SearchEndpoint.PRODUCTS_WITH_FILTERED_AGGS);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(2048);
+        try (JsonGenerator gen = JSON.createGenerator(out, JsonEncoding.UTF8)) {
+            gen.writeStartObject();
+            for (int facet = 0; facet < columns.length; facet++) {
+                String name = "by_" + FACETS.get(facet);
+                gen.writeObjectFieldStart(name);
+                if (endpoint == SearchEndpoint.PRODUCTS_WITH_FILTERED_AGGS && isFilteredByOthers(query, FACETS.get(facet))) {
+                    // every facet is filtered by the selected values of all the other facets
+                    gen.writeNumberField("doc_count", counts.docCounts[facet]);
+                    gen.writeObjectFieldStart(name);
+                    writeTerms(gen, columns[facet], counts.values[facet]);
+                    gen.writeEndObject();
+                } else {
+                    writeTerms(gen, columns[facet], counts.values[facet]);
+                }
+                gen.writeEndObject();
+            }
+            writePriceAndStock(gen, counts);
+            gen.writeEndObject();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Range filters are part of the query, so they apply to all aggregations. Selected values are a post filter, they
+     * only apply to the hits, unless the facets are filtered: then every facet counts the products matching the
+     * selected values of all other facets. Values of the same facet are OR'ed, different facets are AND'ed.
+     */
+    private Counts count(Query query, boolean filterFacets) {
+        List<Query.Filter> ranges = new ArrayList<>();
+        // the selected ordinals of every facet, null if no value of a facet is selected
+        boolean[][] selected = new boolean[columns.length][];
+        for (Query.Filter filter : query.getFilters()) {
+            if ("range".equals(filter.getType())) {
+                ranges.add(filter);
+            } else if (filterFacets) {
+                int facet = FACETS.indexOf(filter.getKey());
+                Column column = columns[facet];
+                if (selected[facet] == null) {
+                    selected[facet] = new boolean[column.values.length];
+                }
+                int ord = Arrays.binarySearch(column.values, filter.getValue());
+                if (ord >= 0) {
+                    selected[facet][ord] = true;
+                }
+            }
+        }
+        boolean[] rangeOnPrice = new boolean[ranges.size()];
+        double[] rangeFrom = new double[ranges.size()];
+        double[] rangeTo = new double[ranges.size()];
+        for (int i = 0; i < ranges.size(); i++) {
+            Query.Filter range = ranges.get(i);
+            rangeOnPrice[i] = "price".equals(range.getKey());
+            rangeFrom[i] = Strings.isEmpty(range.getFrom()) ? Double.NEGATIVE_INFINITY : Double.parseDouble(range.getFrom());
+            rangeTo[i] = Strings.isEmpty(range.getTo()) ? Double.POSITIVE_INFINITY : Double.parseDouble(range.getTo());
+        }
+
+        Counts counts = new Counts(columns);
+        docs:
+        for (int doc = 0; doc < numDocs; doc++) {
+            for (int i = 0; i < rangeFrom.length; i++) {
+                double value = rangeOnPrice[i] ? prices[doc] : stocks[doc];
+                if (value < rangeFrom[i] || value > rangeTo[i]) {
+                    continue docs;
+                }
+            }
+            counts.matching++;
+            counts.minPrice = Math.min(counts.minPrice, prices[doc]);
+            counts.maxPrice = Math.max(counts.maxPrice, prices[doc]);
+            if (stocks[doc] > 0) {
+                counts.inStock++;
+            }
+
+            // the only facet whose selected values this product does not match, a product not matching two facets
+            // is not counted by any of them
+            int unmatchedFacet = -1;
+            for (int facet = 0; facet < columns.length; facet++) {
+                if (selected[facet] != null) {
+                    int ord = columns[facet].ordinals[doc];
+                    if (ord < 0 || selected[facet][ord] == false) {
+                        if (unmatchedFacet >= 0) {
+                            continue docs;
+                        }
+                        unmatchedFacet = facet;
+                    }
+                }
+            }
+            for (int facet = 0; facet < columns.length; facet++) {
+                if (unmatchedFacet < 0 || unmatchedFacet == facet) {
+                    counts.docCounts[facet]++;
+                    int ord = columns[facet].ordinals[doc];
+                    if (ord >= 0) {
+                        counts.values[facet][ord]++;
+                    }
+                }
+            }
+        }
+        return counts;
+    }
+
+    // mirrors the filter aggregation wrapping a facet in SearchTemplates, which also counts range filters
+    private static boolean isFilteredByOthers(Query query, String facet) {
+        for (Query.Filter filter : query.getFilters()) {
+            if (filter.getKey().equals(facet) == false) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void writeTerms(JsonGenerator gen, Column column, int[] counts) throws IOException {
+        // ordered by count, then by value, like a terms aggregation
+        Integer[] ords = new Integer[counts.length];
+        for (int i = 0; i < ords.length; i++) {
+            ords[i] = i;
+        }
+        Arrays.sort(ords, (a, b) -> counts[a] != counts[b] ? Integer.compare(counts[b], counts[a]) : Integer.compare(a, b));
+
+        long other = 0;
+        gen.writeNumberField("doc_count_error_upper_bound", 0);
+        for (int i = TERMS_SIZE; i < ords.length; i++) {
+            other += counts[ords[i]];
+        }
+        gen.writeNumberField("sum_other_doc_count", other);
+        gen.writeArrayFieldStart("buckets");
+        for (int i = 0; i < Math.min(TERMS_SIZE, ords.length) && counts[ords[i]] > 0; i++) {
+            gen.writeStartObject();
+            gen.writeStringField("key", column.values[ords[i]]);
+            gen.writeNumberField("doc_count", counts[ords[i]]);
+            gen.writeEndObject();
+        }
+        gen.writeEndArray();
+    }
+
+    private static void writePriceAndStock(JsonGenerator gen, Counts counts) throws IOException {
+        gen.writeObjectFieldStart("min_price");
+        writeValue(gen, counts.minPrice);
+        gen.writeEndObject();
+        gen.writeObjectFieldStart("max_price");
+        writeValue(gen, counts.maxPrice);
+        gen.writeEndObject();
+
+        gen.writeObjectFieldStart("by_stock");
+        gen.writeObjectFieldStart("buckets");
+        gen.writeObjectFieldStart("in_stock");
+        gen.writeNumberField("doc_count", counts.inStock);
+        gen.writeEndObject();
+        gen.writeObjectFieldStart("not_in_stock");
+        gen.writeNumberField("doc_count", counts.matching - counts.inStock);
+        gen.writeEndObject();
+        gen.writeEndObject();
+        gen.writeEndObject();
+    }
+
+    private static void writeValue(JsonGenerator gen, double value) throws IOException {
+        if (Double.isInfinite(value)) {
+            gen.writeNullField("value");
+        } else {
+            gen.writeNumberField("value", value);
+        }
+    }
+
+    private static boolean isNumber(String value) {
+        if (Strings.isEmpty(value)) {
+            return true;
+        }
+        try {
+            Double.parseDouble(value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A dictionary encoded facet field, the values are sorted so that an ordinal can be found with a binary search
+     */
+    private static final class Column {
+
+        private final String[] values;
+        // the ordinal of the value of every product, -1 if it has none
+        private final int[] ordinals;
+
+        private Column(String[] values, int[] ordinals) {
+            this.values = values;
+            this.ordinals = ordinals;
+        }
+    }
+
+    /**
+     * The counts of a single search
+     */
+    private static final class Counts {
+
+        // products matching the range filters
+        private int matching = 0;
+        private int inStock = 0;
+        private double minPrice = Double.POSITIVE_INFINITY;
+        private double maxPrice = Double.NEGATIVE_INFINITY;
+        // per facet, the products counted and their counts per ordinal
+        private final int[] docCounts;
+        private final int[][] values;
+
+        private Counts(Column[] columns) {
+            this.docCounts = new int[columns.length];
+            this.values = new int[columns.length][];
+            for (int facet = 0; facet < columns.length; facet++) {
+                values[facet] = new int[columns[facet].values.length];
+            }
+        }
+    }
+
+    /**
+     * Collects the facet fields of a stream of products, not thread safe
+     */
+    public static final class Builder {
+
+        private final Map<String, ColumnBuilder> columns = new LinkedHashMap<>();
+        private double[] prices = new double[1024];
+        private int[] stocks = new int[1024];
+        private long[] idHashes = new long[1024];
+        private int numDocs = 0;
+
+        public Builder() {
+            for (String facet : FACETS) {
+                columns.put(facet, new ColumnBuilder());
+            }
+        }
+
+        public Builder add(String id, String brand, String color, String material, double price, int stock) {
+            if (numDocs == prices.length) {
+                prices = Arrays.copyOf(prices, numDocs * 2);
+                stocks = Arrays.copyOf(stocks, numDocs * 2);
+                idHashes = Arrays.copyOf(idHashes, numDocs * 2);
+            }
+            idHashes[numDocs] = id == null ? 0 : idHash(id);
+            columns.get("brand").add(numDocs, brand);
+            columns.get("color").add(numDocs, color);
+            columns.get("material").add(numDocs, material);
+            prices[numDocs] = price;
+            stocks[numDocs] = stock;
+            numDocs++;
+            return this;
+        }
+
+        public FacetIndex build() {
+            Column[] built = new Column[FACETS.size()];
+            for (int facet = 0; facet < built.length; facet++) {
+                built[facet] = columns.get(FACETS.get(facet)).build(numDocs);
+            }
+            long[] sortedHashes = Arrays.copyOf(idHashes, numDocs);
+            int[] docs = new int[numDocs];
+            for (int doc = 0; doc < numDocs; doc++) {
+                docs[doc] = doc;
+            }
+            new IntroSorter() {
+
+                private long pivot;
+
+                @Override
+                protected void swap(int i, int j) {
+                    long hash = sortedHashes[i];
+                    sortedHashes[i] = sortedHashes[j];
+                    sortedHashes[j] = hash;
+                    int doc = docs[i];
+                    docs[i] = docs[j];
+                    docs[j] = doc;
+                }
+
+                @Override
+                protected int compare(int i, int j) {
+                    return Long.compare(sortedHashes[i], sortedHashes[j]);
+                }
+
+                @Override
+                protected void setPivot(int i) {
+                    pivot = sortedHashes[i];
+                }
+
+                @Override
+                protected int comparePivot(int j) {
+                    return Long.compare(pivot, sortedHashes[j]);
+                }
+            }.sort(0, numDocs);
+            return new FacetIndex(numDocs, built, Arrays.copyOf(prices, numDocs), Arrays.copyOf(stocks, numDocs), sortedHashes, docs);
+        }
+    }
+
+    private static final class ColumnBuilder {
+
+        // ordinals in the order values were first seen, sorted when building
+        private final Map<String, Integer> ords = new HashMap<>();
+        private int[] ordinals = new int[1024];
+
+        private void add(int doc, String value) {
+            if (doc == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, doc * 2);
+            }
+            ordinals[doc] = value == null ? -1 : ords.computeIfAbsent(value, v -> ords.size());
+        }
+
+        private Column build(int numDocs) {
+            String[] values = ords.keySet().toArray(new String[0]);
+            Arrays.sort(values);
+            int[] sortedOrd = new int[values.length];
+            for (int i = 0; i < values.length; i++) {
+                sortedOrd[ords.get(values[i])] = i;
+            }
+            int[] docOrdinals = new int[numDocs];
+            for (int doc = 0; doc < numDocs; doc++) {
+                docOrdinals[doc] = ordinals[doc] < 0 ? -1 : sortedOrd[ordinals[doc]];
+            }
+            return new Column(values, docOrdinals);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package elasticsearch.ecommerce.app.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput, bulk sizes, latency and failures of all bulk requests, whether they load a catalog or write updates.
+ * Every {@link BulkIngester} records into the same meters, the rate of indexed documents is the indexing throughput.
+ */
+@Singleton
+public class IndexingMetrics {
+
+    private final Counter indexed;
+    private final Counter failed;
+    private final Counter retries;
+    private final DistributionSummary bulkDocuments;
+    private final DistributionSummary bulkBytes;
+    private final Timer bulkLatency;
+    private final Timer bulkTook;
+
+    @Inject
+    public IndexingMetrics(MeterRegistry registry) {
+        this.indexed = Counter.builder("indexing.documents").tag("result", "indexed")
+                .description("documents sent in bulk requests").register(registry);
+        this.failed = Counter.builder("indexing.documents").tag("result", "failed")
+                .description("documents sent in bulk requests").register(registry);
+        this.retries = Counter.builder("indexing.bulk.retries")
+                .description("bulk requests sent again with the documents rejected by Elasticsearch").register(registry);
+        this.bulkDocuments = DistributionSummary.builder("indexing.bulk.documents")
+                .description("documents per bulk request").register(registry);
+        this.bulkBytes = DistributionSummary.builder("indexing.bulk.bytes").baseUnit("bytes")
+                .description("estimated size of the bulk requests").register(registry);
+        this.bulkLatency = Timer.builder("indexing.bulk.latency")
+                .description("round trip of the bulk requests, retries included")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(registry);
+        this.bulkTook = Timer.builder("indexing.bulk.took")
+                .description("time Elasticsearch spent on the bulk requests, as reported in their responses")
+                .register(registry);
+    }
+
+    void sent(int documents, long bytes, boolean retry) {
+        bulkDocuments.record(documents);
+        bulkBytes.record(bytes);
+        if (retry) {
+            retries.increment();
+        }
+    }
+
+    void returned(long sentAt) {
+        bulkLatency.record(System.nanoTime() - sentAt, TimeUnit.NANOSECONDS);
+    }
+
+    void indexed(int documents, int failures, long tookMillis) {
+        indexed.increment(documents - failures);
+        failed.increment(failures);
+        bulkTook.record(tookMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void failed(int documents) {
+        failed.increment(documents);
+    }
+}
@@ -0,0 +1,247 @@
+package elasticsearch.ecommerce.app.service;
+
+import elasticsearch.ecommerce.app.entities.ProductUpdate;
+import io.micronaut.context.annotation.Value;
+import io.micronaut.context.event.StartupEvent;
+import io.micronaut.runtime.event.annotation.EventListener;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps copies of the products in memory, that answer requests without sending anything to Elasticsearch: the
+ * {@link SuggestIndex} for autocompletion and, if enabled, the {@link FacetIndex} for aggregations.
+ *
+ * Both are built from the products while they are indexed, see {@link #startBuild()}. Any other change of the
+ * products index triggers a rebuild from the documents in Elasticsearch on a background thread, as does the startup
+ * of the application. Until a new build is done, the previous one keeps answering.
+ *
+ * Price and stock updates replace the current facets with an updated copy right away. Updates applied while a build is running are
+ * applied again to the indexes it publishes, as the build may have seen the products before they were updated.
+ */
+@Singleton
+public class LocalProductIndexes {
+
+    private static final String INDEX = "products";
+    private static final String[] FIELDS = new String[] { "name", "brand", "color", "material", "price", "stock" };
+    private static final int SCROLL_SIZE = 5000;
+    private static final TimeValue SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+    private static final Logger LOG = LoggerFactory.getLogger(LocalProductIndexes.class);
+
+    private final RestHighLevelClient client;
+    private final boolean facetsEnabled;
+    private final ExecutorService rebuilder;
+    private final AtomicBoolean rebuildPending = new AtomicBoolean();
+    // builds from products being indexed right now, index changes caused by those do not need a rebuild
+    private final AtomicInteger runningBuilds = new AtomicInteger();
+    // incremented for every build from indexed products, so that an older rebuild cannot replace its indexes
+    private final AtomicLong buildGeneration = new AtomicLong();
+    private volatile SuggestIndex suggestions = SuggestIndex.EMPTY;
+    private volatile FacetIndex facets = null;
+    // guarded by this, the updates applied since the oldest of the open builds started
+    private final Map<String, ProductUpdate> updatesDuringBuilds = new HashMap<>();
+    private int openBuilds = 0;
+
+    @Inject
+    public LocalProductIndexes(RestHighLevelClient client, @Value("${search.local-facets.enabled:false}") boolean facetsEnabled) {
+        this.client = client;
+        this.facetsEnabled = facetsEnabled;
+        this.rebuilder = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "local-index-rebuilder");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns the JSON response with the best suggestions for the given prefix
+     */
+    public byte[] suggest(String prefix) {
+        return suggestions.suggest(prefix);
+    }
+
+    /**
+     * @return the facets of all products, or null if local facets are disabled or have not been built yet
+     */
+    public FacetIndex facets() {
+        return facets;
+    }
+
+    /**
+     * Starts building new indexes from products that are about to be indexed. They replace the current ones once
+     * {@link Build#publish()} is called, closing the build without publishing keeps the current ones.
+     */
+    public Build startBuild() {
+        buildGeneration.incrementAndGet();
+        runningBuilds.incrementAndGet();
+        return new Build(true);
+    }
+
+    /**
+     * Applies price and stock updates that have been written to the products index
+     */
+    public synchronized void update(Collection<ProductUpdate> updates) {
+        if (facetsEnabled == false) {
+            return;
+        }
+        if (facets != null) {
+            facets = facets.withUpdates(updates);
+        }
+        if (openBuilds > 0) {
+            for (ProductUpdate update : updates) {
+                updatesDuringBuilds.merge(update.getId(), update, ProductUpdate::merge);
+            }
+        }
+    }
+
+    @EventListener
+    public void onStartup(StartupEvent event) {
+        scheduleRebuild();
+    }
+
+    @EventListener
+    public void onProductIndexChanged(ProductIndexChangedEvent event) {
+        if (runningBuilds.get() == 0) {
+            scheduleRebuild();
+        }
+    }
+
+    private void scheduleRebuild() {
+        // a rebuild that has not started yet will see all changes up to now as well
+        if (rebuildPending.compareAndSet(false, true)) {
+            rebuilder.execute(this::rebuild);
+        }
+    }
+
+    private void rebuild() {
+        rebuildPending.set(false);
+        long generation = buildGeneration.get();
+        long startedAt = System.nanoTime();
+        // not started as a build from indexed products, so it is not counted as running
+        try (Build build = new Build(false)) {
+            // updates written before the build started are visible to the scroll, later ones are applied on publish
+            client.indices().refresh(new RefreshRequest(INDEX), RequestOptions.DEFAULT);
+            SearchRequest request = new SearchRequest(INDEX).scroll(SCROLL_KEEP_ALIVE)
+                    .source(new SearchSourceBuilder().size(SCROLL_SIZE).fetchSource(FIELDS, null).sort("_doc"));
+            SearchResponse response = client.search(request, RequestOptions.DEFAULT);
+            String scrollId = response.getScrollId();
+            try {
+                while (response.getHits().getHits().length > 0) {
+                    for (SearchHit hit : response.getHits().getHits()) {
+                        Map<String, Object> source = hit.getSourceAsMap();
+                        Number price = (Number) source.get("price");
+                        Number stock = (Number) source.get("stock");
+                        build.add(hit.getId(), (String) source.get("name"), (String) source.get("brand"), (String) source.get("color"),
+                                (String) source.get("material"), price == null ? 0 : price.doubleValue(), stock == null ? 0 : stock.intValue());
+                    }
+                    response = client.scroll(new SearchScrollRequest(scrollId).scroll(SCROLL_KEEP_ALIVE), RequestOptions.DEFAULT);
+                    scrollId = response.getScrollId();
+                }
+            } finally {
+                ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
+                clearScrollRequest.addScrollId(scrollId);
+                client.clearScroll(clearScrollRequest, RequestOptions.DEFAULT);
+            }
+
+            if (runningBuilds.get() == 0 && buildGeneration.get() == generation) {
+                build.publish();
+                LOG.info("Rebuilt local indexes from index [{}] in [{}ms]", INDEX, (System.nanoTime() - startedAt) / 1_000_000);
+            }
+        } catch (ElasticsearchStatusException e) {
+            if (e.status() == RestStatus.NOT_FOUND) {
+                LOG.info("Index [{}] does not exist, nothing to build local indexes from", INDEX);
+            } else {
+                LOG.error("Could not rebuild local indexes", e);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Could not rebuild local indexes", e);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        rebuilder.shutdownNow();
+    }
+
+    /**
+     * Collects products while they are indexed, not thread safe. Index changes while a build is running do not
+     * trigger a rebuild, and updates are kept for it, so a build has to be closed once indexing is done, whether it
+     * succeeded or not.
+     */
+    public final class Build implements Closeable {
+
+        private final SuggestIndex.Builder suggestBuilder = new SuggestIndex.Builder();
+        private final FacetIndex.Builder facetBuilder = facetsEnabled ? new FacetIndex.Builder() : null;
+        // builds from indexed products are counted as running
+        private final boolean running;
+        private boolean closed = false;
+
+        private Build(boolean running) {
+            this.running = running;
+            synchronized (LocalProductIndexes.this) {
+                openBuilds++;
+            }
+        }
+
+        public void add(String id, String name, String brand, String color, String material, double price, int stock) {
+            suggestBuilder.add(name, brand, color, material);
+            if (facetBuilder != null) {
+                facetBuilder.add(id, brand, color, material, price, stock);
+            }
+        }
+
+        /**
+         * Replaces the current indexes with the ones built from the added products
+         */
+        public void publish() {
+            SuggestIndex builtSuggestions = suggestBuilder.build();
+            FacetIndex builtFacets = facetBuilder == null ? null : facetBuilder.build();
+            synchronized (LocalProductIndexes.this) {
+                suggestions = builtSuggestions;
+                facets = builtFacets == null ? null : builtFacets.withUpdates(updatesDuringBuilds.values());
+            }
+            LOG.info("Built [{}] suggestions and facets of [{}] products", builtSuggestions.size(),
+                    builtFacets == null ? 0 : builtFacets.size());
+        }
+
+        @Override
+        public void close() {
+            if (closed == false) {
+                closed = true;
+                if (running) {
+                    runningBuilds.decrementAndGet();
+                }
+                synchronized (LocalProductIndexes.this) {
+                    if (--openBuilds == 0) {
+                        updatesDuringBuilds.clear();
+                    }
+                }
+            }
+        }
+    }
+}
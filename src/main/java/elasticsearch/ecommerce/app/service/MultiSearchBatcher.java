@@ -0,0 +1,287 @@
+package elasticsearch.ecommerce.app.service;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import elasticsearch.ecommerce.app.config.SearchBatchingConfiguration;
+import elasticsearch.ecommerce.app.json.RawJsonResponse;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.rest.RestStatus;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the searches arriving within a short window and sends them as a single multi search request.
+ *
+ * A batch is sent once its window is over or it reached its maximum size, whatever comes first. Each search gets its
+ * own part of the multi search response, in the same format as a response of the search API, or fails on its own if
+ * its part is an error.
+ */
+@Singleton
+public class MultiSearchBatcher {
+
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final ContentType NDJSON = createNdJsonContentType();
+
+    private final RestHighLevelClient client;
+    private final RequestOptions requestOptions;
+    private final boolean enabled;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final Set<String> bypass;
+    private final ScheduledExecutorService scheduler;
+    private final DistributionSummary batchSizes;
+
+    private final Object lock = new Object();
+    private List<PendingSearch> batch = new ArrayList<>();
+
+    @Inject
+    public MultiSearchBatcher(RestHighLevelClient client, @Named("search") RequestOptions requestOptions,
+                              SearchBatchingConfiguration configuration, MeterRegistry registry) {
+        this.client = client;
+        this.requestOptions = requestOptions;
+        this.enabled = configuration.isEnabled();
+        this.windowNanos = configuration.getWindow().toNanos();
+        this.maxBatchSize = configuration.getMaxBatchSize();
+        this.bypass = Set.copyOf(configuration.getBypass());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "msearch-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.batchSizes = DistributionSummary.builder("search.batching.batch_size").register(registry);
+    }
+
+    /**
+     * @return true if searches of this endpoint should be batched
+     */
+    public boolean accepts(SearchEndpoint endpoint) {
+        return enabled && bypass.contains(endpoint.getName()) == false;
+    }
+
+    /**
+     * Adds a search to the current batch, the returned future completes once the whole batch has returned. A search
+     * cancelled before its batch is sent is left out of the batch.
+     *
+     * @param timeout the timeout Elasticsearch should stop searching after, or null
+     */
+    public CompletableFuture<RawJsonResponse> submit(String index, BytesRef source, boolean requestCache, String preference,
+                                                     String timeout) {
+        PendingSearch search = new PendingSearch(index, source, requestCache, preference, timeout);
+        List<PendingSearch> full = null;
+        synchronized (lock) {
+            batch.add(search);
+            if (batch.size() >= maxBatchSize) {
+                full = batch;
+                batch = new ArrayList<>();
+            } else if (batch.size() == 1) {
+                List<PendingSearch> scheduled = batch;
+                scheduler.schedule(() -> flush(scheduled), windowNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+        return search.future;
+    }
+
+    private void flush(List<PendingSearch> scheduled) {
+        synchronized (lock) {
+            // the batch might have been sent already, because it got full
+            if (batch != scheduled) {
+                return;
+            }
+            batch = new ArrayList<>();
+        }
+        send(scheduled);
+    }
+
+    private void send(List<PendingSearch> batched) {
+        List<PendingSearch> searches = new ArrayList<>(batched.size());
+        for (PendingSearch search : batched) {
+            if (search.future.isDone() == false) {
+                searches.add(search);
+            }
+        }
+        if (searches.isEmpty()) {
+            return;
+        }
+        batchSizes.record(searches.size());
+        ByteArrayOutputStream body = new ByteArrayOutputStream(searches.size() * 2048);
+        for (PendingSearch search : searches) {
+            StringBuilder header = new StringBuilder("{\"index\":\"").append(search.index).append('"');
+            if (search.requestCache) {
+                header.append(",\"request_cache\":true");
+            }
+            if (search.preference != null) {
+                header.append(",\"preference\":\"").append(search.preference).append('"');
+            }
+            byte[] headerBytes = header.append("}\n").toString().getBytes(StandardCharsets.UTF_8);
+            body.write(headerBytes, 0, headerBytes.length);
+            // the rendered search bodies never contain a raw line break
+            if (search.timeout != null) {
+                // the header of a search cannot hold a timeout, so it is put first into the body
+                byte[] timeout = ("{\"timeout\":\"" + search.timeout + "\",").getBytes(StandardCharsets.UTF_8);
+                body.write(timeout, 0, timeout.length);
+                body.write(search.source.bytes, search.source.offset + 1, search.source.length - 1);
+            } else {
+                body.write(search.source.bytes, search.source.offset, search.source.length);
+            }
+            body.write('\n');
+        }
+
+        Request request = new Request(HttpPost.METHOD_NAME, "/_msearch");
+        request.setEntity(new NByteArrayEntity(body.toByteArray(), NDJSON));
+        request.setOptions(requestOptions);
+        client.getLowLevelClient().performRequestAsync(request, new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                try {
+                    split(response, searches);
+                } catch (IOException | RuntimeException e) {
+                    searches.forEach(search -> search.future.completeExceptionally(e));
+                }
+            }
+
+            @Override
+            public void onFailure(Exception exception) {
+                searches.forEach(search -> search.future.completeExceptionally(exception));
+            }
+        });
+    }
+
+    /**
+     * Hands every part of the multi search response to its search, without the status field that is only part of
+     * multi search responses
+     */
+    private void split(Response response, List<PendingSearch> searches) throws IOException {
+        int i = 0;
+        try (InputStream in = response.getEntity().getContent(); JsonParser parser = JSON.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("expected an object as multi search response");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("responses".equals(field) == false) {
+                    parser.skipChildren();
+                    continue;
+                }
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    if (i >= searches.size()) {
+                        throw new IOException("got more responses than searches in batch");
+                    }
+                    completeSearch(parser, searches.get(i++));
+                }
+            }
+        }
+        if (i != searches.size()) {
+            IOException e = new IOException("got [" + i + "] responses for [" + searches.size() + "] searches");
+            searches.forEach(search -> search.future.completeExceptionally(e));
+        }
+    }
+
+    private static void completeSearch(JsonParser parser, PendingSearch search) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+        int status = 200;
+        String error = null;
+        try (JsonGenerator gen = JSON.createGenerator(out, JsonEncoding.UTF8)) {
+            gen.writeStartObject();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("status".equals(field)) {
+                    status = parser.getIntValue();
+                    continue;
+                }
+                if ("error".equals(field)) {
+                    error = parser.currentToken() == JsonToken.START_OBJECT ? readReason(parser) : parser.getValueAsString();
+                    continue;
+                }
+                gen.writeFieldName(field);
+                gen.copyCurrentStructure(parser);
+            }
+            gen.writeEndObject();
+        }
+
+        if (error != null) {
+            search.future.completeExceptionally(new ElasticsearchStatusException(error, RestStatus.fromCode(status)));
+        } else {
+            search.future.complete(new RawJsonResponse(out.toByteArray()));
+        }
+    }
+
+    private static String readReason(JsonParser parser) throws IOException {
+        String type = null;
+        String reason = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("type".equals(field)) {
+                type = parser.getValueAsString();
+            } else if ("reason".equals(field)) {
+                reason = parser.getValueAsString();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return type + ": " + reason;
+    }
+
+    @PreDestroy
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    @SuppressForbidden(reason = "Only allowed place to create the ContentType of a multi search")
+    private static ContentType createNdJsonContentType() {
+        return ContentType.create("application/x-ndjson", (Charset) null);
+    }
+
+    private static final class PendingSearch {
+
+        private final String index;
+        private final BytesRef source;
+        private final boolean requestCache;
+        private final String preference;
+        private final String timeout;
+        private final CompletableFuture<RawJsonResponse> future = new CompletableFuture<>();
+
+        private PendingSearch(String index, BytesRef source, boolean requestCache, String preference, String timeout) {
+            this.index = index;
+            this.source = source;
+            this.requestCache = requestCache;
+            this.preference = preference;
+            this.timeout = timeout;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package elasticsearch.ecommerce.app.service;
+
+/**
+ * The formats of catalog exports read by the {@link ProductImportReader}
+ */
+public enum ProductImportFormat {
+
+    NDJSON("application/x-ndjson"),
+    CSV("text/csv");
+
+    private final String contentType;
+
+    ProductImportFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return the format of the given content type, NDJSON for anything that is not CSV
+     */
+    public static ProductImportFormat fromContentType(String contentType) {
+        return contentType != null && contentType.startsWith(CSV.contentType) ? CSV : NDJSON;
+    }
+}
@@ -0,0 +1,330 @@
+package elasticsearch.ecommerce.app.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import elasticsearch.ecommerce.app.entities.Product;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads products from a catalog export, one product per line, either as NDJSON or as CSV with a header line naming
+ * the columns. The fields are named like the properties of {@link Product}, unknown fields are ignored.
+ *
+ * Lines are read into a single buffer that is reused for the whole input, so the memory needed does not depend on
+ * the size of the input, but a line cannot be longer than the buffer. Invalid lines are counted and skipped, the
+ * first few errors are kept for the report. Not thread safe.
+ */
+final class ProductImportReader {
+
+    static final int MAX_REPORTED_ERRORS = 100;
+
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final String[] FIELDS = new String[] { "id", "name", "price", "color", "material", "brand", "productImageUrl",
+            "brandLogoUrl", "lastUpdated", "stock", "commission" };
+    private static final List<String> FIELD_NAMES = List.of(FIELDS);
+    private static final int ID = 0, NAME = 1, PRICE = 2, COLOR = 3, MATERIAL = 4, BRAND = 5, PRODUCT_IMAGE_URL = 6,
+            BRAND_LOGO_URL = 7, LAST_UPDATED = 8, STOCK = 9, COMMISSION = 10;
+    private static final int READ_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private final ProductImportFormat format;
+    private final byte[] buffer;
+    private final String[] values = new String[FIELDS.length];
+    private final List<String> errors = new ArrayList<>();
+    // the field of each CSV column, -1 for unknown columns
+    private int[] columns;
+    private int start = 0;
+    private int end = 0;
+    // end of the current line, and how far the buffer has been searched for it
+    private int lineEnd = -1;
+    private int scanned = 0;
+    private boolean eof = false;
+    private long line = 0;
+    private long rows = 0;
+    private long invalidRows = 0;
+
+    ProductImportReader(InputStream in, ProductImportFormat format, int maxLineLength) {
+        this.in = in;
+        this.format = format;
+        this.buffer = new byte[Math.max(maxLineLength, READ_SIZE)];
+    }
+
+    /**
+     * @return the next valid product, or null once the input is exhausted
+     */
+    Product next() throws IOException {
+        while (nextLine()) {
+            int length = lineEnd - start;
+            if (length > 0 && buffer[lineEnd - 1] == '\r') {
+                length--;
+            }
+            int lineStart = start;
+            start = Math.min(end, lineEnd + 1);
+            if (isBlank(lineStart, length)) {
+                continue;
+            }
+            if (format == ProductImportFormat.CSV && columns == null) {
+                readHeader(new String(buffer, lineStart, length, StandardCharsets.UTF_8));
+                continue;
+            }
+
+            rows++;
+            try {
+                Arrays.fill(values, null);
+                if (format == ProductImportFormat.CSV) {
+                    readCsv(new String(buffer, lineStart, length, StandardCharsets.UTF_8));
+                } else {
+                    readJson(lineStart, length);
+                }
+                return toProduct();
+            } catch (IllegalArgumentException e) {
+                invalid(e.getMessage());
+            } catch (JsonProcessingException e) {
+                invalid("invalid JSON, " + e.getOriginalMessage());
+            }
+        }
+        return null;
+    }
+
+    long rows() {
+        return rows;
+    }
+
+    long invalidRows() {
+        return invalidRows;
+    }
+
+    List<String> errors() {
+        return Collections.unmodifiableList(errors);
+    }
+
+    /**
+     * Makes sure the buffer contains a complete line starting at {@link #start} and ending at {@link #lineEnd},
+     * skipping lines that are too long
+     *
+     * @return false if there are no more lines
+     */
+    private boolean nextLine() throws IOException {
+        scanned = Math.max(scanned, start);
+        while (true) {
+            for (; scanned < end; scanned++) {
+                if (buffer[scanned] == '\n') {
+                    lineEnd = scanned++;
+                    line++;
+                    return true;
+                }
+            }
+            if (eof) {
+                if (start < end) {
+                    lineEnd = end;
+                    line++;
+                    return true;
+                }
+                return false;
+            }
+            if (start == 0 && end == buffer.length) {
+                // no line break in the whole buffer, drop everything up to the next one
+                line++;
+                rows++;
+                invalid("line is longer than " + buffer.length + " bytes");
+                skipLine();
+                continue;
+            }
+            fill();
+        }
+    }
+
+    private void fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            scanned -= start;
+            start = 0;
+        }
+        int read = in.read(buffer, end, Math.min(READ_SIZE, buffer.length - end));
+        if (read < 0) {
+            eof = true;
+        } else {
+            end += read;
+        }
+    }
+
+    private void skipLine() throws IOException {
+        while (true) {
+            start = end = scanned = 0;
+            fill();
+            if (eof) {
+                return;
+            }
+            for (; scanned < end; scanned++) {
+                if (buffer[scanned] == '\n') {
+                    start = ++scanned;
+                    return;
+                }
+            }
+        }
+    }
+
+    private boolean isBlank(int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (buffer[i] != ' ' && buffer[i] != '\t') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void invalid(String message) {
+        invalidRows++;
+        if (errors.size() < MAX_REPORTED_ERRORS) {
+            errors.add("line " + line + ": " + message);
+        }
+    }
+
+    private void readHeader(String header) {
+        List<String> names = splitCsv(header);
+        columns = new int[names.size()];
+        for (int i = 0; i < names.size(); i++) {
+            columns[i] = FIELD_NAMES.indexOf(names.get(i).strip());
+        }
+    }
+
+    private void readCsv(String csvLine) {
+        List<String> cells = splitCsv(csvLine);
+        if (cells.size() != columns.length) {
+            throw new IllegalArgumentException("expected " + columns.length + " columns, but got " + cells.size());
+        }
+        for (int i = 0; i < cells.size(); i++) {
+            if (columns[i] >= 0) {
+                values[columns[i]] = cells.get(i);
+            }
+        }
+    }
+
+    /**
+     * Splits a line into cells, cells may be quoted to contain commas and doubled quotes, but no line breaks
+     */
+    private static List<String> splitCsv(String csvLine) {
+        List<String> cells = new ArrayList<>();
+        StringBuilder cell = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < csvLine.length(); i++) {
+            char c = csvLine.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < csvLine.length() && csvLine.charAt(i + 1) == '"') {
+                    cell.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    cell.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                cells.add(cell.toString());
+                cell.setLength(0);
+            } else {
+                cell.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("unterminated quote");
+        }
+        cells.add(cell.toString());
+        return cells;
+    }
+
+    private void readJson(int offset, int length) throws IOException {
+        try (JsonParser parser = JSON.createParser(buffer, offset, length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IllegalArgumentException("expected a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                int field = FIELD_NAMES.indexOf(parser.getCurrentName());
+                JsonToken value = parser.nextToken();
+                if (value.isStructStart()) {
+                    if (field >= 0) {
+                        throw new IllegalArgumentException("field [" + FIELDS[field] + "] must not be an object or array");
+                    }
+                    parser.skipChildren();
+                } else if (field >= 0 && value != JsonToken.VALUE_NULL) {
+                    values[field] = parser.getText();
+                }
+            }
+            if (parser.nextToken() != null) {
+                throw new IllegalArgumentException("unexpected content after the JSON object");
+            }
+        }
+    }
+
+    private Product toProduct() {
+        String id = required(ID);
+        String name = required(NAME);
+        double price = parseDouble(PRICE);
+        int stock = values[STOCK] == null || values[STOCK].isBlank() ? 0 : parseInt(STOCK);
+        int commission = values[COMMISSION] == null || values[COMMISSION].isBlank() ? 0 : parseInt(COMMISSION);
+        if (price < 0 || stock < 0 || commission < 0) {
+            throw new IllegalArgumentException("price, stock and commission must not be negative");
+        }
+        return new Product(name, price, values[COLOR], values[MATERIAL], id, values[PRODUCT_IMAGE_URL], values[BRAND],
+                values[BRAND_LOGO_URL], parseDate(LAST_UPDATED), stock, commission);
+    }
+
+    private String required(int field) {
+        String value = values[field];
+        if (value == null || value.isBlank()) {
+            throw new IllegalArgumentException("field [" + FIELDS[field] + "] is missing");
+        }
+        return value.strip();
+    }
+
+    private double parseDouble(int field) {
+        try {
+            double value = Double.parseDouble(required(field));
+            if (Double.isFinite(value) == false) {
+                throw new NumberFormatException();
+            }
+            return value;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("field [" + FIELDS[field] + "] is not a number [" + values[field] + "]");
+        }
+    }
+
+    private int parseInt(int field) {
+        try {
+            return Integer.parseInt(values[field].strip());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("field [" + FIELDS[field] + "] is not an integer [" + values[field] + "]");
+        }
+    }
+
+    private Date parseDate(int field) {
+        String value = values[field];
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        try {
+            if (value.length() == 10) {
+                return Date.from(LocalDate.parse(value.strip()).atStartOfDay(ZoneOffset.UTC).toInstant());
+            }
+            return Date.from(OffsetDateTime.parse(value.strip().toUpperCase(Locale.ROOT)).toInstant());
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("field [" + FIELDS[field] + "] is not an ISO-8601 date [" + value + "]");
+        }
+    }
+}
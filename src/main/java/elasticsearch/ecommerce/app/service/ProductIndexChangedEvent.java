@@ -0,0 +1,17 @@
+package elasticsearch.ecommerce.app.service;
+
+import io.micronaut.context.event.ApplicationEvent;
+
+/**
+ * Published whenever the contents or the analysis of the products index have changed
+ */
+public class ProductIndexChangedEvent extends ApplicationEvent {
+
+    public ProductIndexChangedEvent(String index) {
+        super(index);
+    }
+
+    public String getIndex() {
+        return (String) getSource();
+    }
+}
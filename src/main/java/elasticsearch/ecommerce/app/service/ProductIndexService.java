@@ -1,26 +1,33 @@
 package elasticsearch.ecommerce.app.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.github.javafaker.Faker;
+import elasticsearch.ecommerce.app.config.IndexingConfiguration;
+import elasticsearch.ecommerce.app.entities.ImportReport;
+import elasticsearch.ecommerce.app.entities.IndexingReport;
 import elasticsearch.ecommerce.app.entities.Product;
-import io.micronaut.http.HttpStatus;
+import elasticsearch.ecommerce.app.entities.SynonymsUpdateReport;
+import io.micronaut.context.event.ApplicationEventPublisher;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
-import org.elasticsearch.action.admin.indices.open.OpenIndexRequest;
+import org.elasticsearch.action.admin.indices.forcemerge.ForceMergeRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
 import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
-import org.elasticsearch.action.bulk.BulkRequest;
-import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.index.IndexRequest;
-import org.elasticsearch.action.support.WriteRequest;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
-import org.elasticsearch.client.indices.CloseIndexRequest;
+import org.elasticsearch.client.core.CountRequest;
 import org.elasticsearch.client.indices.CreateIndexRequest;
 import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.client.tasks.CancelTasksRequest;
+import org.elasticsearch.client.tasks.GetTaskRequest;
+import org.elasticsearch.client.tasks.GetTaskResponse;
+import org.elasticsearch.client.tasks.TaskId;
+import org.elasticsearch.common.CheckedConsumer;
 import org.elasticsearch.common.io.Streams;
 import org.elasticsearch.common.settings.Settings;
-import org.elasticsearch.common.unit.ByteSizeUnit;
-import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.reindex.ReindexRequest;
+import org.reactivestreams.Publisher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,124 +36,309 @@ import javax.inject.Singleton;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.util.Date;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Locale;
-import java.util.Set;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.TimeUnit;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Optional;
 
 @Singleton
 public class ProductIndexService {
 
-    // Found via
-    // for i in $(jot 1000) ; do curl -s -X HEAD "https://picsum.photos/id/$i/200/200" -w '%{http_code} %{url_effective}\n' | tee -a /tmp/head.log ; done
-    // for i in $(grep "^404" /tmp/head.log | cut -d '/' -f 5) ; do echo -n "$i, " ; done
-    private static List<Integer> NON_EXISTING_IMAGE_IDS = List.of(86, 97, 105, 138, 148, 150, 205, 207, 224, 226, 245, 246, 262, 285, 286,
-            298, 303, 332, 333, 346, 359, 394, 414, 422, 438, 462, 463, 470, 489, 540, 561, 578, 587, 589, 592, 595, 597, 601, 624, 632,
-            636, 644, 647, 673, 697, 706, 707, 708, 709, 710, 711, 712, 713, 714, 720, 725, 734, 745, 746, 747, 748, 749, 750, 751, 752,
-            753, 754, 759, 761, 762, 763, 771, 792, 801, 812, 843, 850, 854, 895, 897, 899, 917, 920, 934, 956, 963, 968);
-
-    private static final int BRANDS_MAX = 10;
-    private static final long MAX_BULK_SIZE_IN_BYTES = new ByteSizeValue(5, ByteSizeUnit.MB).getBytes();
     private static final String INDEX = "products";
-    private static final Faker faker = Faker.instance(Locale.GERMAN);
+    private static final int SCROLL_SIZE = 5000;
+    // no refreshes and no replicas while loading, both are restored before the index is searched
+    private static final Settings BULK_LOAD_SETTINGS = Settings.builder()
+            .put("index.refresh_interval", "-1")
+            .put("index.number_of_replicas", 0)
+            .build();
+    private static final long TASK_POLL_INTERVAL_MILLIS = 500;
     private static final Logger LOG = LoggerFactory.getLogger(ProductIndexService.class);
 
     private final RestHighLevelClient client;
     private final ObjectMapper mapper;
+    private final IndexingConfiguration indexingConfiguration;
+    private final IndexingMetrics indexingMetrics;
+    private final ApplicationEventPublisher eventPublisher;
+    private final LocalProductIndexes localIndexes;
+    private final ProductUpdateBuffer updateBuffer;
+    private final SearchWarmer warmer;
 
     @Inject
-    public ProductIndexService(RestHighLevelClient client, ObjectMapper mapper) {
+    public ProductIndexService(RestHighLevelClient client, ObjectMapper mapper, IndexingConfiguration indexingConfiguration,
+                               IndexingMetrics indexingMetrics, ApplicationEventPublisher eventPublisher,
+                               LocalProductIndexes localIndexes, ProductUpdateBuffer updateBuffer, SearchWarmer warmer) {
         this.client = client;
         this.mapper = mapper;
+        this.indexingConfiguration = indexingConfiguration;
+        this.indexingMetrics = indexingMetrics;
+        this.eventPublisher = eventPublisher;
+        this.localIndexes = localIndexes;
+        this.updateBuffer = updateBuffer;
+        this.warmer = warmer;
     }
 
     /**
-     * Create some random products, the user can specify how many
+     * Creates a catalog of fake products, the same seed always creates the same products
      *
      * @param count Number of products to be created
+     * @param seed the seed of the {@link CatalogGenerator}
+     * @param job the job running the indexing, for progress and cancellation
+     * @return a report about how many products were indexed or failed
      * @throws IOException
      */
-    public CompletableFuture<HttpStatus> indexProducts(int count) throws IOException {
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-
-                Set<String> brands = new HashSet<>();
-                while (brands.size() < BRANDS_MAX) {
-                    brands.add(faker.company().name());
-                }
-                String[] brandsArray = brands.toArray(new String[0]);
+    public IndexingReport indexProducts(int count, long seed, AdminJob<?> job) throws IOException, InterruptedException {
+        job.setTotal(count);
+        LOG.info("Indexing [{}] products generated with seed [{}]", count, seed);
+        CatalogGenerator generator = new CatalogGenerator(seed);
+        return loadProducts(job, true, products -> generator.generate(count, indexingConfiguration.getGeneratorThreads(), chunk -> chunk,
+                chunk -> {
+                    for (Product product : chunk) {
+                        products.accept(product);
+                    }
+                }));
+    }
 
-                boolean exists = client.indices().exists(new GetIndexRequest(INDEX), RequestOptions.DEFAULT);
-                if (exists) {
-                    client.indices().delete(new DeleteIndexRequest(INDEX), RequestOptions.DEFAULT);
+    /**
+     * Imports a catalog export, replacing all current products like {@link #indexProducts(int, long, AdminJob)} does.
+     *
+     * The body is read while it is received, one line at a time, and every product is handed to the bulk requests
+     * right away. Reading stops while all bulk requests are in flight, which in turn stops reading from the connection,
+     * so the memory needed does not depend on the size of the export. For the same reason the local indexes are not
+     * built while importing, they are rebuilt from the new index once it replaced the current one.
+     *
+     * @param body the chunks of the request body
+     * @param format the format of the export, one product per line
+     * @param job the job running the import, for progress and cancellation
+     * @return a report about the rows read, the products indexed and the first errors of invalid rows
+     */
+    public ImportReport importProducts(Publisher<byte[]> body, ProductImportFormat format, AdminJob<?> job)
+            throws IOException, InterruptedException {
+        long startedAt = System.nanoTime();
+        try (PublisherInputStream in = new PublisherInputStream(body)) {
+            ProductImportReader reader = new ProductImportReader(in, format, indexingConfiguration.getImportMaxLineLength());
+            IndexingReport report = loadProducts(job, false, products -> {
+                for (Product product = reader.next(); product != null; product = reader.next()) {
+                    products.accept(product);
                 }
+            });
+            ImportReport importReport = new ImportReport(reader.rows(), reader.invalidRows(), report.getIndexed(), report.getFailed(),
+                    in.bytesRead(), (System.nanoTime() - startedAt) / 1_000_000, reader.errors());
+            LOG.info("Finished import: {}", importReport);
+            return importReport;
+        }
+    }
 
-                try (Reader readerSettings = new InputStreamReader(this.getClass().getResourceAsStream("/index-settings.json"));
-                     Reader readerMappings = new InputStreamReader(this.getClass().getResourceAsStream("/index-mappings.json"))) {
-                    String settings = Streams.copyToString(readerSettings);
-                    String mapping = Streams.copyToString(readerMappings);
-                    CreateIndexRequest createIndexRequest = new CreateIndexRequest(INDEX).settings(settings, XContentType.JSON).mapping(mapping, XContentType.JSON);
-                    client.indices().create(createIndexRequest, RequestOptions.DEFAULT);
-                }
+    /**
+     * Indexes products into a new index, while the current one keeps answering searches. The new index is created
+     * with settings for bulk loading, see {@link #prepareForSearch(String)} for what happens before the products alias
+     * is switched over to it. Price and stock updates written meanwhile are written again to the new index.
+     *
+     * @param buildLocalIndexes whether the local indexes are built from the products as they are indexed, instead of
+     *                          reading them again afterwards. This keeps all products on the heap until the end.
+     */
+    private IndexingReport loadProducts(AdminJob<?> job, boolean buildLocalIndexes, ProductSource source)
+            throws IOException, InterruptedException {
+        String newIndex = newIndexName();
+        boolean swapped = false;
+        try (ProductUpdateBuffer.Recording updates = updateBuffer.startRecording();
+             LocalProductIndexes.Build localIndexBuild = buildLocalIndexes ? localIndexes.startBuild() : null) {
+            boolean exists = client.indices().exists(new GetIndexRequest(INDEX), RequestOptions.DEFAULT);
+            String previousIndex = exists ? concreteIndex() : null;
+            createIndex(newIndex, BULK_LOAD_SETTINGS);
 
-                BulkRequest request = new BulkRequest();
-                for (int i = 0; i < count; i++) {
-                    String productName = faker.commerce().productName();
-                    // This is to replace german prices with a comma with a proper decimal space...
-                    double price = Double.valueOf(faker.commerce().price(1, 1000).replace(",", "."));
-                    String material = faker.commerce().material();
-                    String color = faker.color().name();
-                    String id = faker.number().digits(20);
-                    String brand = faker.options().nextElement(brandsArray);
-                    // no text, we would need to deal with spaces and umlauts
-                    int productImageId = faker.number().numberBetween(1, 1000);
-                    while (NON_EXISTING_IMAGE_IDS.contains(productImageId)) {
-                        productImageId = faker.number().numberBetween(1, 1000);
+            IndexingReport report;
+            try (BulkIngester ingester = new BulkIngester(client, indexingConfiguration, indexingMetrics)) {
+                job.track(ingester);
+                source.produce(product -> {
+                    job.checkCancelled();
+                    IndexRequest indexRequest = new IndexRequest(newIndex).id(product.getId());
+                    indexRequest.source(mapper.writeValueAsBytes(product), XContentType.JSON);
+                    // blocks while all concurrent bulk requests are in flight
+                    ingester.add(indexRequest);
+                    if (localIndexBuild != null) {
+                        localIndexBuild.add(product.getId(), product.getName(), product.getBrand(), product.getColor(),
+                                product.getMaterial(), product.getPrice(), product.getStock());
                     }
-                    String productImage = "https://picsum.photos/id/" + productImageId + "/200/200?blur=1";
-                    String brandLogo = faker.company().logo();
-                    Date lastUpdated = faker.date().past(365, TimeUnit.DAYS);
-                    int remainingStock = faker.number().numberBetween(0, 10);
-                    int commission = faker.number().numberBetween(5, 20);
-
-                    Product product = new Product(productName, price, color, material, id, productImage, brand, brandLogo, lastUpdated, remainingStock, commission);
-                    IndexRequest indexRequest = new IndexRequest(INDEX).id(id);
-                    indexRequest.source(mapper.writeValueAsString(product), XContentType.JSON);
-                    request.add(indexRequest);
-
-                    if (request.estimatedSizeInBytes() > MAX_BULK_SIZE_IN_BYTES) {
-                        BulkResponse response = client.bulk(request, RequestOptions.DEFAULT);
-                        LOG.info("Indexed [{}] documents in [{}]", response.getItems().length, response.getTook());
-                        request = new BulkRequest();
-                    }
-                }
+                    job.processed(1);
+                });
+                report = ingester.awaitCompletion();
+            }
+
+            job.checkCancelled();
+            int warmupRequests = prepareForSearch(newIndex);
+            job.checkCancelled();
+            swapIndex(previousIndex, newIndex);
+            swapped = true;
+            if (localIndexBuild != null) {
+                localIndexBuild.publish();
+            }
+            updates.replay();
+            // without a build from the indexed products, this rebuilds the local indexes
+            eventPublisher.publishEvent(new ProductIndexChangedEvent(INDEX));
+            LOG.info("Finished indexing run into index [{}] with [{}] warmup requests: {}", newIndex, warmupRequests, report);
+            return report;
+        } finally {
+            if (swapped == false) {
+                deleteQuietly(newIndex);
+            }
+        }
+    }
+
+    /**
+     * Changes the synonyms without closing the products index, which would fail all searches in the meantime.
+     *
+     * The synonyms are part of the search analyzer, which cannot be changed on an open index unless they are read
+     * from a file. So a new index with the new synonyms is created and the products are copied over with a reindex
+     * task. Once the new index is prepared like a freshly indexed one, the products alias is switched to it. Price and
+     * stock updates written while the products are copied are written again to the new index.
+     *
+     * @param synonyms the synonyms, one rule per line
+     * @param job the job running the update, for progress and cancellation
+     * @return a report about the new index and how long the update took
+     */
+    public SynonymsUpdateReport configureSynonyms(String synonyms, AdminJob<?> job) throws IOException, InterruptedException {
+        long startedAt = System.nanoTime();
+        String newIndex = newIndexName();
+        boolean swapped = false;
+        try (ProductUpdateBuffer.Recording updates = updateBuffer.startRecording()) {
+            String previousIndex = concreteIndex();
+            Settings synonymSettings = Settings.builder()
+                    .put(BULK_LOAD_SETTINGS)
+                    .putList("index.analysis.filter.my_synonym_filter.synonyms", synonyms.split("\n"))
+                    .build();
+            createIndex(newIndex, synonymSettings);
+
+            copyDocuments(previousIndex, newIndex, job);
+            int warmupRequests = prepareForSearch(newIndex);
+            job.checkCancelled();
+            long expected = client.count(new CountRequest(previousIndex), RequestOptions.DEFAULT).getCount();
+            long documents = client.count(new CountRequest(newIndex), RequestOptions.DEFAULT).getCount();
+            if (documents != expected) {
+                throw new IllegalStateException("Copied [" + documents + "] of [" + expected + "] products from index [" +
+                        previousIndex + "] to [" + newIndex + "]");
+            }
 
-                request.setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE);
-                BulkResponse response = client.bulk(request, RequestOptions.DEFAULT);
-                LOG.info("Finished indexing run. Indexed [{}] documents in [{}]", response.getItems().length, response.getTook());
-                return HttpStatus.OK;
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+            swapIndex(previousIndex, newIndex);
+            swapped = true;
+            updates.replay();
+            eventPublisher.publishEvent(new ProductIndexChangedEvent(INDEX));
+
+            SynonymsUpdateReport report = new SynonymsUpdateReport(newIndex, previousIndex, documents, warmupRequests,
+                    (System.nanoTime() - startedAt) / 1_000_000);
+            LOG.info("Updated synonyms: {}", report);
+            return report;
+        } finally {
+            if (swapped == false) {
+                deleteQuietly(newIndex);
             }
-        });
+        }
+    }
+
+    private static String newIndexName() {
+        return INDEX + "-" + System.currentTimeMillis();
+    }
+
+    /**
+     * @return the index the products alias points to, or the products index itself if it was created without an alias
+     */
+    private String concreteIndex() throws IOException {
+        String[] indices = client.indices().get(new GetIndexRequest(INDEX), RequestOptions.DEFAULT).getIndices();
+        if (indices.length != 1) {
+            throw new IllegalStateException("Expected [" + INDEX + "] to point to a single index, but got " + Arrays.toString(indices));
+        }
+        return indices[0];
     }
 
-    public CompletableFuture<HttpStatus> configureSynonyms(String synonyms) {
-        return CompletableFuture.supplyAsync(() -> {
+    private void createIndex(String index, Settings additionalSettings) throws IOException {
+        try (Reader readerSettings = new InputStreamReader(this.getClass().getResourceAsStream("/index-settings.json"));
+             Reader readerMappings = new InputStreamReader(this.getClass().getResourceAsStream("/index-mappings.json"))) {
+            Settings settings = Settings.builder()
+                    .loadFromSource(Streams.copyToString(readerSettings), XContentType.JSON)
+                    .put(additionalSettings)
+                    .build();
+            String mapping = Streams.copyToString(readerMappings);
+            client.indices().create(new CreateIndexRequest(index).settings(settings).mapping(mapping, XContentType.JSON), RequestOptions.DEFAULT);
+        }
+    }
+
+    /**
+     * Replaces the bulk load settings with the regular ones and makes the index as fast to search as possible, before
+     * it gets any searches: it is refreshed, force merged to few segments and warmed with the most frequent searches.
+     * Replicas are only created from the merged segments, they recover in the background.
+     *
+     * @return number of warmup requests that were answered
+     */
+    private int prepareForSearch(String index) throws IOException {
+        Settings searchSettings = Settings.builder()
+                .putNull("index.refresh_interval")
+                .putNull("index.number_of_replicas")
+                .build();
+        client.indices().putSettings(new UpdateSettingsRequest(index).settings(searchSettings), RequestOptions.DEFAULT);
+        client.indices().refresh(new RefreshRequest(index), RequestOptions.DEFAULT);
+        if (indexingConfiguration.getMaxSegments() > 0) {
             try {
-                client.indices().close(new CloseIndexRequest(INDEX), RequestOptions.DEFAULT);
-                Settings settings = Settings.builder()
-                        .putList("index.analysis.filter.my_synonym_filter.synonyms", synonyms.split("\n"))
-                        .build();
-                client.indices().putSettings(new UpdateSettingsRequest(INDEX).settings(settings), RequestOptions.DEFAULT);
-                client.indices().open(new OpenIndexRequest().indices(INDEX), RequestOptions.DEFAULT);
-                return HttpStatus.OK;
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+                client.indices().forcemerge(new ForceMergeRequest(index).maxNumSegments(indexingConfiguration.getMaxSegments()),
+                        RequestOptions.DEFAULT);
+            } catch (SocketTimeoutException e) {
+                // the merge is not cancelled, the index is only swapped in before it is done
+                LOG.warn("Force merge of index [{}] is still running, not waiting for it", index);
             }
-        });
+        }
+        return warmer.warm(index, indexingConfiguration.getWarmupQueries());
+    }
+
+    /**
+     * Points the products alias to the new index and removes the previous one in a single atomic request, so
+     * searches never see a missing or an empty index. The previous index may also be a products index that was created
+     * before there was an alias.
+     */
+    private void swapIndex(String previousIndex, String newIndex) throws IOException {
+        IndicesAliasesRequest aliasesRequest = new IndicesAliasesRequest()
+                .addAliasAction(IndicesAliasesRequest.AliasActions.add().index(newIndex).alias(INDEX));
+        if (previousIndex != null) {
+            aliasesRequest.addAliasAction(IndicesAliasesRequest.AliasActions.removeIndex().index(previousIndex));
+        }
+        client.indices().updateAliases(aliasesRequest, RequestOptions.DEFAULT);
+    }
+
+    /**
+     * Runs a reindex as a task and polls for its completion, a single request would exceed the socket timeout
+     */
+    private void copyDocuments(String from, String to, AdminJob<?> job) throws IOException, InterruptedException {
+        ReindexRequest reindexRequest = new ReindexRequest().setSourceIndices(from).setDestIndex(to).setSourceBatchSize(SCROLL_SIZE);
+        String taskId = client.submitReindexTask(reindexRequest, RequestOptions.DEFAULT).getTask();
+        int separator = taskId.indexOf(':');
+        String node = taskId.substring(0, separator);
+        long id = Long.parseLong(taskId.substring(separator + 1));
+        GetTaskRequest getTaskRequest = new GetTaskRequest(node, id);
+        while (true) {
+            if (job.isCancelled()) {
+                CancelTasksRequest cancelRequest = new CancelTasksRequest.Builder().withTaskId(new TaskId(node, id)).build();
+                client.tasks().cancel(cancelRequest, RequestOptions.DEFAULT);
+                job.checkCancelled();
+            }
+            Optional<GetTaskResponse> task = client.tasks().get(getTaskRequest, RequestOptions.DEFAULT);
+            if (task.isPresent() && task.get().isCompleted()) {
+                return;
+            }
+            Thread.sleep(TASK_POLL_INTERVAL_MILLIS);
+        }
+    }
+
+    private void deleteQuietly(String index) {
+        try {
+            if (client.indices().exists(new GetIndexRequest(index), RequestOptions.DEFAULT)) {
+                client.indices().delete(new DeleteIndexRequest(index), RequestOptions.DEFAULT);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not delete index [{}]", index, e);
+        }
+    }
+
+    /**
+     * Produces the products of an indexing run, handing each of them to the given consumer
+     */
+    @FunctionalInterface
+    private interface ProductSource {
+        void produce(CheckedConsumer<Product, IOException> products) throws IOException, InterruptedException;
     }
 }
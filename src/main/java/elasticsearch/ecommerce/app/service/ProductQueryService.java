@@ -1,63 +1,100 @@
 package elasticsearch.ecommerce.app.service;
 
+import elasticsearch.ecommerce.app.config.SearchTieringConfiguration;
 import elasticsearch.ecommerce.app.entities.Query;
+import elasticsearch.ecommerce.app.json.RawJsonResponse;
+import elasticsearch.ecommerce.app.json.SearchResponses;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micronaut.context.annotation.Value;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ContentType;
 import org.apache.http.nio.entity.NByteArrayEntity;
 import org.apache.lucene.util.BytesRef;
-import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.Cancellable;
 import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.Response;
 import org.elasticsearch.client.ResponseListener;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.CheckedFunction;
 import org.elasticsearch.common.SuppressForbidden;
-import org.elasticsearch.common.unit.Fuzziness;
-import org.elasticsearch.common.xcontent.ToXContent;
-import org.elasticsearch.common.xcontent.XContentHelper;
 import org.elasticsearch.common.xcontent.XContentType;
-import org.elasticsearch.index.query.BoolQueryBuilder;
-import org.elasticsearch.index.query.QueryBuilder;
-import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.search.aggregations.AggregationBuilder;
-import org.elasticsearch.search.aggregations.AggregationBuilders;
-import org.elasticsearch.search.aggregations.bucket.filter.FiltersAggregationBuilder;
-import org.elasticsearch.search.aggregations.bucket.filter.FiltersAggregator;
-import org.elasticsearch.search.aggregations.bucket.terms.TermsAggregationBuilder;
-import org.elasticsearch.search.aggregations.metrics.MaxAggregationBuilder;
-import org.elasticsearch.search.aggregations.metrics.MinAggregationBuilder;
-import org.elasticsearch.search.builder.SearchSourceBuilder;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.inject.Singleton;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
-import java.util.List;
+import java.util.EnumMap;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
 
 @Singleton
 public class ProductQueryService {
 
     // TODO have search with aggs + custom scoring
     // TODO have search searching for impressum/jobs
-    // TODO search with search as you type
 
     private static final String INDEX = "products";
-    private static final Logger LOG = LoggerFactory.getLogger(ProductQueryService.class);
 
     private final RestHighLevelClient client;
+    private final RequestOptions requestOptions;
+    private final SearchCache cache;
+    private final SearchTemplates templates;
+    private final SearchCoalescer coalescer;
+    private final MultiSearchBatcher batcher;
+    private final SearchAdmission admission;
+    private final SearchDeadlines deadlines;
+    private final LocalProductIndexes localIndexes;
+    private final SearchWarmer warmer;
+    private final SearchMetrics metrics;
+    private final SlowQueryLog slowQueryLog;
+    private final boolean splitFacets;
+    private final boolean tiering;
+    private final long tieringMinHits;
+    private final Map<SearchTier, Timer> tierTimers = new EnumMap<>(SearchTier.class);
+    private final Counter cancelledRequests;
 
     @Inject
-    public ProductQueryService(RestHighLevelClient client) {
+    public ProductQueryService(RestHighLevelClient client, @Named("search") RequestOptions requestOptions, SearchCache cache,
+                               SearchTemplates templates, SearchCoalescer coalescer, MultiSearchBatcher batcher,
+                               SearchAdmission admission, SearchDeadlines deadlines, LocalProductIndexes localIndexes, SearchWarmer warmer,
+                               SearchMetrics metrics, SlowQueryLog slowQueryLog,
+                               @Value("${search.split-facets.enabled:false}") boolean splitFacets,
+                               SearchTieringConfiguration tieringConfiguration, MeterRegistry registry) {
         this.client = client;
+        this.requestOptions = requestOptions;
+        this.cache = cache;
+        this.templates = templates;
+        this.coalescer = coalescer;
+        this.batcher = batcher;
+        this.admission = admission;
+        this.deadlines = deadlines;
+        this.localIndexes = localIndexes;
+        this.warmer = warmer;
+        this.metrics = metrics;
+        this.slowQueryLog = slowQueryLog;
+        this.splitFacets = splitFacets;
+        this.tiering = tieringConfiguration.isEnabled();
+        this.tieringMinHits = tieringConfiguration.getMinHits();
+        for (SearchTier tier : SearchTier.values()) {
+            tierTimers.put(tier, Timer.builder("search.tiering.answered")
+                    .description("searches answered by each tier, including the time spent on lower tiers")
+                    .tag("tier", tier.getName())
+                    .publishPercentiles(0.5, 0.95, 0.99)
+                    .register(registry));
+        }
+        this.cancelledRequests = Counter.builder("search.cancelled.requests")
+                .description("searches cancelled while they were sent to Elasticsearch").register(registry);
     }
 
     // search only across hits, don't include any aggregations
-    public CompletableFuture<Response> searchProductsOnly(Query query) throws IOException {
-        return asyncSearch(createFullTextSearchQuery(query), null, query.getFrom());
+    public CompletableFuture<RawJsonResponse> searchProductsOnly(Query query, SearchResponseFormat format) throws IOException {
+        return search(SearchEndpoint.PRODUCTS_ONLY, query, format);
     }
 
     /**
@@ -67,142 +104,253 @@ public class ProductQueryService {
      *
      * Stock and Price are created as regular filters as part of the query, which indeed will change the aggregations
      */
-    public CompletableFuture<Response> searchWithAggs(Query query) throws IOException {
-        BoolQueryBuilder queryBuilder = QueryBuilders.boolQuery();
-        queryBuilder.must(createFullTextSearchQuery(query));
-        // filter for price and stock, as they become range queries
-        query.getFilters().stream().filter(filter -> List.of("stock", "price").contains(filter.getKey()))
-                .forEach(filter -> queryBuilder.must(filter.toQuery()));
-
-        MinAggregationBuilder minPriceAgg = AggregationBuilders.min("min_price").field("price");
-        MaxAggregationBuilder maxPriceAgg = AggregationBuilders.max("max_price").field("price");
-        TermsAggregationBuilder byMaterialAgg = AggregationBuilders.terms("by_material").field("material.keyword");
-        TermsAggregationBuilder byBrand = AggregationBuilders.terms("by_brand").field("brand.keyword");
-        TermsAggregationBuilder byColor = AggregationBuilders.terms("by_color").field("color.keyword");
-        FiltersAggregator.KeyedFilter notInStockFilter = new FiltersAggregator.KeyedFilter("not_in_stock", QueryBuilders.termQuery("stock", 0));
-        FiltersAggregator.KeyedFilter inStockFilter = new FiltersAggregator.KeyedFilter("in_stock", QueryBuilders.rangeQuery("stock").gt(0));
-        FiltersAggregationBuilder inStockAgg = AggregationBuilders.filters("by_stock", inStockFilter, notInStockFilter);
-
-        BoolQueryBuilder postFilterQuery = QueryBuilders.boolQuery();
-        Map<String, List<Query.Filter>> byKey = query.getFilters().stream()
-                .filter(filter -> List.of("stock", "price").contains(filter.getKey()) == false)
-                .collect(Collectors.groupingBy(Query.Filter::getKey));
-        for (Map.Entry<String, List<Query.Filter>> entry : byKey.entrySet()) {
-            BoolQueryBuilder orQueryBuilder = QueryBuilders.boolQuery();
-
-            for (Query.Filter filter : entry.getValue()) {
-                orQueryBuilder.should(QueryBuilders.termQuery(filter.getKey() + ".keyword", filter.getValue()));
+    public CompletableFuture<RawJsonResponse> searchWithAggs(Query query, SearchResponseFormat format) throws IOException {
+        return search(SearchEndpoint.PRODUCTS_WITH_AGGS, query, format);
+    }
+
+    /**
+     * This is the ultimate query, where all facets are filtered based on the fields of the other facets.
+     * This will result in a bigger query, but return proper numbers
+     */
+    public CompletableFuture<RawJsonResponse> searchWithFilteredAggs(Query query, SearchResponseFormat format) throws IOException {
+        return search(SearchEndpoint.PRODUCTS_WITH_FILTERED_AGGS, query, format);
+    }
+
+    /**
+     * Cancelling the returned future, or missing the deadline of the endpoint, cancels all requests sent for this
+     * search, see {@link SearchDeadlines}
+     */
+    private CompletableFuture<RawJsonResponse> search(SearchEndpoint endpoint, Query query, SearchResponseFormat format) throws IOException {
+        warmer.record(endpoint, query);
+        long startTime = metrics.started(endpoint);
+        CompletableFuture<RawJsonResponse> response;
+        try {
+            SearchScope scope = new SearchScope();
+            response = deadlines.watch(endpoint, scope, search(endpoint, query, format, scope));
+        } catch (IOException | RuntimeException e) {
+            metrics.completed(endpoint, startTime, null, e);
+            throw e;
+        }
+        response.whenComplete((answer, e) -> metrics.completed(endpoint, startTime, answer, e));
+        return response;
+    }
+
+    /**
+     * With tiering enabled, the exact query is tried first and the expensive fuzzy query is only sent if the exact
+     * one did not find enough hits. The response names the tier that answered it. As the total number of hits is the
+     * same for all pages, all pages of a query are answered by the same tier.
+     *
+     * Searches with separate facets only request the hits of the exact query first, their facets are only requested
+     * for the tier that answers the search, so escalated searches never compute the facets of the exact query.
+     */
+    private CompletableFuture<RawJsonResponse> search(SearchEndpoint endpoint, Query query, SearchResponseFormat format,
+                                                      SearchScope scope) throws IOException {
+        if (tiering == false) {
+            return search(endpoint, query, SearchTier.FUZZY, format, scope).thenApply(response -> answer(response, format));
+        }
+
+        long startTime = System.nanoTime();
+        boolean separateFacets = separateFacets(endpoint, query);
+        CompletableFuture<byte[]> exact = separateFacets
+                ? hits(endpoint, query, SearchTier.EXACT, format, scope)
+                : search(endpoint, query, SearchTier.EXACT, format, scope);
+        return exact.thenCompose(exactResponse -> {
+            try {
+                if (SearchResponses.totalHits(exactResponse) >= tieringMinHits) {
+                    CompletableFuture<byte[]> response = separateFacets
+                            ? withFacets(endpoint, query, SearchTier.EXACT, CompletableFuture.completedFuture(exactResponse), scope)
+                            : CompletableFuture.completedFuture(exactResponse);
+                    return response.thenApply(exactAnswer -> answer(exactAnswer, SearchTier.EXACT, startTime, format));
+                }
+                return search(endpoint, query, SearchTier.FUZZY, format, scope)
+                        .thenApply(fuzzy -> answer(fuzzy, SearchTier.FUZZY, startTime, format));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
+        });
+    }
 
-            postFilterQuery.filter(orQueryBuilder);
+    private RawJsonResponse answer(byte[] response, SearchTier tier, long startTime, SearchResponseFormat format) {
+        tierTimers.get(tier).record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+        try {
+            return answer(SearchResponses.addTier(response, tier.getName()), format);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+    }
 
-        postFilterQuery = postFilterQuery.filter().isEmpty() ? null : postFilterQuery;
+    /**
+     * Responses are cached and merged as they come from Elasticsearch, they are only turned into the requested format
+     * right before they are sent
+     */
+    private static RawJsonResponse answer(byte[] response, SearchResponseFormat format) {
+        try {
+            return new RawJsonResponse(format.format(response));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-        return asyncSearch(queryBuilder, postFilterQuery, query.getFrom(), byColor, byBrand, byMaterialAgg, minPriceAgg, maxPriceAgg, inStockAgg);
+    private CompletableFuture<byte[]> search(SearchEndpoint endpoint, Query query, SearchTier tier, SearchResponseFormat format,
+                                             SearchScope scope) throws IOException {
+        if (separateFacets(endpoint, query)) {
+            return withFacets(endpoint, query, tier, hits(endpoint, query, tier, format, scope), scope);
+        }
+        return cachedSearch(endpoint, query, tier, format, scope);
     }
 
     /**
-     * This is the ultimate query, where all facets are filtered based on the fields of the other facets.
-     * This will result in a bigger query, but return proper numbers
+     * Facets are requested on their own if they are split from the hits, or counted in memory if possible
      */
-    public CompletableFuture<Response> searchWithFilteredAggs(Query query) throws IOException {
-        // this is the query for the total hits and the initial aggregations
-        BoolQueryBuilder queryBuilder = QueryBuilders.boolQuery();
-        queryBuilder.must(createFullTextSearchQuery(query));
-        // filter for price and stock, as they become range queries
-        query.getFilters().stream().filter(filter -> List.of("stock", "price").contains(filter.getKey()))
-                .forEach(filter -> queryBuilder.must(filter.toQuery()));
-
-        // TODO these also need to be possibly filtered!
-        MinAggregationBuilder minPriceAgg = AggregationBuilders.min("min_price").field("price");
-        MaxAggregationBuilder maxPriceAgg = AggregationBuilders.max("max_price").field("price");
-
-        FiltersAggregator.KeyedFilter notInStockFilter = new FiltersAggregator.KeyedFilter("not_in_stock", QueryBuilders.termQuery("stock", 0));
-        FiltersAggregator.KeyedFilter inStockFilter = new FiltersAggregator.KeyedFilter("in_stock", QueryBuilders.rangeQuery("stock").gt(0));
-        FiltersAggregationBuilder inStockAgg = AggregationBuilders.filters("by_stock", inStockFilter, notInStockFilter);
-
-        AggregationBuilder byMaterialAgg = createPossiblyFilteredAgg(query, "by_material", "material");
-        AggregationBuilder byBrand = createPossiblyFilteredAgg(query, "by_brand", "brand");
-        AggregationBuilder byColor = createPossiblyFilteredAgg(query, "by_color", "color");
-
-        // additional post filter for material, brand and color
-        BoolQueryBuilder postFilterQuery = QueryBuilders.boolQuery();
-        Map<String, List<Query.Filter>> byKey = query.getFilters().stream()
-                .filter(filter -> List.of("stock", "price").contains(filter.getKey()) == false)
-                .collect(Collectors.groupingBy(Query.Filter::getKey));
-        for (Map.Entry<String, List<Query.Filter>> entry : byKey.entrySet()) {
-            BoolQueryBuilder orQueryBuilder = QueryBuilders.boolQuery();
-
-            for (Query.Filter filter : entry.getValue()) {
-                orQueryBuilder.should(QueryBuilders.termQuery(filter.getKey() + ".keyword", filter.getValue()));
+    private boolean separateFacets(SearchEndpoint endpoint, Query query) {
+        if (endpoint == SearchEndpoint.PRODUCTS_ONLY) {
+            return false;
+        }
+        FacetIndex facets = localIndexes.facets();
+        return splitFacets || (facets != null && facets.canCount(query));
+    }
+
+    /**
+     * Returns a cached response if possible, the request is only rendered on a cache miss. Concurrent misses for the
+     * same query are sent to Elasticsearch only once.
+     */
+    private CompletableFuture<byte[]> cachedSearch(SearchEndpoint endpoint, Query query, SearchTier tier, SearchResponseFormat format,
+                                                   SearchScope scope) throws IOException {
+        return cachedBytes(cache.key(endpoint, query, tier, format), scope,
+                sharedScope -> searchHits(endpoint, query, templates.render(endpoint, query, tier, format), sharedScope));
+    }
+
+    /**
+     * Searches a page of hits without any aggregations
+     */
+    private CompletableFuture<byte[]> hits(SearchEndpoint endpoint, Query query, SearchTier tier, SearchResponseFormat format,
+                                           SearchScope scope) throws IOException {
+        return cachedBytes(cache.hitsKey(query, tier, format), scope,
+                sharedScope -> searchHits(endpoint, query, templates.renderHits(query, tier, format), sharedScope));
+    }
+
+    /**
+     * Adds the aggregations to the hits. They are counted in memory while the hits are searched if possible. Otherwise
+     * they are requested in parallel to the hits without hits and independent of the offset, so when paging through
+     * the results they are served from our cache or from the shard request cache, instead of being computed again for
+     * every page.
+     */
+    private CompletableFuture<byte[]> withFacets(SearchEndpoint endpoint, Query query, SearchTier tier, CompletableFuture<byte[]> hits,
+                                                 SearchScope scope) throws IOException {
+        FacetIndex facets = localIndexes.facets();
+        if (facets != null && facets.canCount(query)) {
+            byte[] aggregations = facets.aggregations(endpoint, query);
+            return hits.thenApply(hitsBytes -> {
+                try {
+                    return SearchResponses.addAggregations(hitsBytes, aggregations);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        CompletableFuture<byte[]> aggregations = cachedBytes(cache.facetsKey(endpoint, query, tier), scope,
+                sharedScope -> asyncSearch(endpoint, query, templates.renderFacets(endpoint, query, tier), true, sharedScope));
+        return hits.thenCombine(aggregations, (hitsBytes, facetsBytes) -> {
+            try {
+                return SearchResponses.mergeAggregations(hitsBytes, facetsBytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
+        });
+    }
 
-            postFilterQuery.filter(orQueryBuilder);
+    private CompletableFuture<byte[]> cachedBytes(String key, SearchScope scope,
+                                                  CheckedFunction<SearchScope, CompletableFuture<byte[]>, IOException> search) throws IOException {
+        byte[] cached = cache.get(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
         }
-        postFilterQuery = postFilterQuery.filter().isEmpty() ? null : postFilterQuery;
+        long generation = cache.generation();
+        return coalescer.execute(key, scope, sharedScope -> search.apply(sharedScope).thenApply(bytes -> {
+            cache.put(key, generation, bytes);
+            return bytes;
+        }));
+    }
 
+    /**
+     * Searches a page of hits, the response gets a cursor for the next page if there might be one
+     */
+    private CompletableFuture<byte[]> searchHits(SearchEndpoint endpoint, Query query, BytesRef source, SearchScope scope) {
+        return asyncSearch(endpoint, query, source, false, scope).thenApply(response -> {
+            try {
+                return SearchResponses.addNextCursor(response, SearchTemplates.SIZE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
 
-        return asyncSearch(queryBuilder, postFilterQuery, query.getFrom(), byColor, byBrand, byMaterialAgg, minPriceAgg, maxPriceAgg, inStockAgg);
+    /**
+     * All pages of a query are searched on the same shard copies, so that scores and therefore the order of hits do
+     * not change between pages. Different queries are still spread across all copies.
+     */
+    private static String preference(Query query) {
+        return Integer.toHexString(query.canonicalFormIgnoringPaging().hashCode());
     }
 
     /**
-     * Creates regular text search query
+     * Sends a search once the endpoint is below its concurrency limit, see {@link SearchAdmission}. The search is
+     * cancelled along with the scope. Searches are not logged, slow ones end up in the {@link SlowQueryLog}.
      */
-    private QueryBuilder createFullTextSearchQuery(Query query) {
-        BoolQueryBuilder queryBuilder = QueryBuilders.boolQuery();
-        queryBuilder.must(QueryBuilders.multiMatchQuery(query.getQuery(), "name", "color", "brand", "material")
-                .minimumShouldMatch("66%")
-                .fuzziness(Fuzziness.AUTO));
-        // increase scoring if we match in color, brand or material compared to product name
-//        queryBuilder.should(QueryBuilders.matchQuery("material", query.getQuery()));
-//        queryBuilder.should(QueryBuilders.matchQuery("color", query.getQuery()));
-//        queryBuilder.should(QueryBuilders.matchQuery("brand", query.getQuery()));
-
-        return queryBuilder;
-    }
-
-    private AggregationBuilder createPossiblyFilteredAgg(Query query, String aggregationName, String fieldName) {
-        AggregationBuilder aggregationBuilder = AggregationBuilders.terms(aggregationName).field(fieldName + ".keyword");
-        BoolQueryBuilder queryBuilder = QueryBuilders.boolQuery();
-        query.getFilters().stream()
-                .filter(filter -> filter.getKey().equals(fieldName) == false) // filter out itself
-                .forEach(filter -> queryBuilder.filter(filter.toQuery()));
-
-        if (queryBuilder.filter().isEmpty() == false) {
-            aggregationBuilder = AggregationBuilders.filter(aggregationName, queryBuilder).subAggregation(aggregationBuilder);
-        }
-        return aggregationBuilder;
+    private CompletableFuture<byte[]> asyncSearch(SearchEndpoint endpoint, Query query, BytesRef source, boolean requestCache,
+                                                  SearchScope scope) {
+        String preference = preference(query);
+        CompletableFuture<RawJsonResponse> response = admission.execute(endpoint,
+                () -> metrics.sent(endpoint, source.length, send(endpoint, source, requestCache, preference)));
+        scope.onCancel(() -> response.cancel(false));
+        return response.thenApply(raw -> {
+            byte[] bytes = toBytes(raw);
+            metrics.received(endpoint, bytes);
+            slowQueryLog.record(endpoint, query, source, bytes);
+            return bytes;
+        });
     }
 
-    private CompletableFuture<Response> asyncSearch(QueryBuilder queryBuilder, QueryBuilder postFilterQuery, int from, AggregationBuilder... aggs) throws IOException {
-        SearchRequest request = search(queryBuilder, postFilterQuery, from, aggs);
-        final CompletableFuture<Response> future = new CompletableFuture<>();
+    /**
+     * Sends a search on its own, or as part of a multi search if batching is enabled for this endpoint. Cancelling the
+     * returned future cancels a search sent on its own, a multi search is always completed.
+     */
+    private CompletableFuture<RawJsonResponse> send(SearchEndpoint endpoint, BytesRef source, boolean requestCache, String preference) {
+        String timeout = deadlines.searchTimeout(endpoint);
+        if (batcher.accepts(endpoint)) {
+            return batcher.submit(INDEX, source, requestCache, preference, timeout);
+        }
+
+        final CompletableFuture<RawJsonResponse> future = new CompletableFuture<>();
         ResponseListener listener = newResponseListener(future);
 
-        Request lowLevelRequest = new Request(HttpPost.METHOD_NAME, INDEX + "/_search");
-        BytesRef source = XContentHelper.toXContent(request.source(), XContentType.JSON, ToXContent.EMPTY_PARAMS, true).toBytesRef();
-        LOG.info("QUERY {}", source.utf8ToString());
+        Request lowLevelRequest = new Request(HttpPost.METHOD_NAME, "/" + INDEX + "/_search");
+        if (requestCache) {
+            lowLevelRequest.addParameter("request_cache", "true");
+        }
+        lowLevelRequest.addParameter("preference", preference);
+        if (timeout != null) {
+            lowLevelRequest.addParameter("timeout", timeout);
+        }
         lowLevelRequest.setEntity(new NByteArrayEntity(source.bytes, source.offset, source.length, createContentType(XContentType.JSON)));
+        lowLevelRequest.setOptions(requestOptions);
 
-        client.getLowLevelClient().performRequestAsync(lowLevelRequest, listener);
+        Cancellable cancellable = client.getLowLevelClient().performRequestAsync(lowLevelRequest, listener);
+        future.whenComplete((response, e) -> {
+            if (future.isCancelled()) {
+                cancelledRequests.increment();
+                cancellable.cancel();
+            }
+        });
         return future;
     }
 
-    private SearchRequest search(QueryBuilder queryBuilder, QueryBuilder postFilterQuery, int from, AggregationBuilder... aggs) {
-        SearchRequest request = new SearchRequest(INDEX);
-        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
-        searchSourceBuilder.size(16);
-        searchSourceBuilder.from(from);
-        searchSourceBuilder.query(queryBuilder);
-        if (postFilterQuery != null) {
-            searchSourceBuilder.postFilter(postFilterQuery);
-        }
-        for (AggregationBuilder agg : aggs) {
-            searchSourceBuilder.aggregation(agg);
+    private static byte[] toBytes(RawJsonResponse response) {
+        try {
+            return response.toBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        request.source(searchSourceBuilder);
-        return request;
     }
 
     // copied from RequestConverts.java, as it is private
@@ -211,12 +359,12 @@ public class ProductQueryService {
         return ContentType.create(xContentType.mediaTypeWithoutParameters(), (Charset) null);
     }
 
-    private ResponseListener newResponseListener(final CompletableFuture<Response> future) {
+    private ResponseListener newResponseListener(final CompletableFuture<RawJsonResponse> future) {
         return new ResponseListener() {
 
             @Override
             public void onSuccess(Response response) {
-                future.complete(response);
+                future.complete(new RawJsonResponse(response.getEntity()));
             }
 
             @Override
@@ -0,0 +1,325 @@
+package elasticsearch.ecommerce.app.service;
+
+import elasticsearch.ecommerce.app.config.IndexingConfiguration;
+import elasticsearch.ecommerce.app.config.ProductUpdateConfiguration;
+import elasticsearch.ecommerce.app.entities.ProductUpdate;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.exceptions.HttpStatusException;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.rest.RestStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Buffers partial price and stock updates and writes them as bulk requests in the background.
+ *
+ * Updates are kept per product id, so a later update of a product replaces the fields of an earlier one that has not
+ * been written yet, and a product updated thousands of times within the delay is written only once. The buffer is
+ * split into stripes with their own lock, so that concurrent updates of different products rarely contend.
+ *
+ * Writes go to the products alias, they do not invalidate cached search responses, which expire on their own. Once
+ * Elasticsearch confirmed an update, it is applied to the local facets as well. Updates failing with a conflict,
+ * a rejection or an unavailable cluster are buffered again, other failures like updates of missing products are
+ * dropped and counted. While the products are copied into a new index, written updates are recorded, and written
+ * again once the alias points to the new index, see {@link #startRecording()}.
+ */
+@Singleton
+public class ProductUpdateBuffer {
+
+    private static final String INDEX = "products";
+    private static final int RETRY_ON_CONFLICT = 3;
+    private static final Logger LOG = LoggerFactory.getLogger(ProductUpdateBuffer.class);
+
+    private final LocalProductIndexes localIndexes;
+    // shared by all flushes, its bulk requests are sent as soon as a flush added all updates
+    private final BulkIngester ingester;
+    private final int maxPending;
+    private final Stripe[] stripes;
+    private final ScheduledExecutorService flusher;
+    // number of products with buffered updates
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicBoolean earlyFlushScheduled = new AtomicBoolean();
+    private final List<Recording> recordings = new CopyOnWriteArrayList<>();
+    // the update of every request handed to the ingester that has not returned yet
+    private final Map<DocWriteRequest<?>, ProductUpdate> inFlight = Collections.synchronizedMap(new IdentityHashMap<>());
+    private final Counter received;
+    private final Counter retried;
+    private final Counter dropped;
+
+    @Inject
+    public ProductUpdateBuffer(RestHighLevelClient client, IndexingConfiguration indexingConfiguration, IndexingMetrics indexingMetrics,
+                               LocalProductIndexes localIndexes, ProductUpdateConfiguration configuration, MeterRegistry registry) {
+        this.localIndexes = localIndexes;
+        this.ingester = new BulkIngester(client, indexingConfiguration, indexingMetrics, this::afterBulk);
+        this.maxPending = configuration.getMaxPending();
+        // rounded up to a power of two, so the stripe of an id is found with a mask
+        this.stripes = new Stripe[Integer.highestOneBit(Math.max(1, configuration.getStripes() * 2 - 1))];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "product-update-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long delayNanos = configuration.getMaxDelay().toNanos();
+        flusher.scheduleWithFixedDelay(this::flush, delayNanos, delayNanos, TimeUnit.NANOSECONDS);
+
+        this.received = Counter.builder("products.updates.received").description("price and stock updates received").register(registry);
+        FunctionCounter.builder("products.updates.written", ingester, i -> i.report().getIndexed())
+                .description("products written with buffered updates").register(registry);
+        this.retried = Counter.builder("products.updates.retried").description("products whose updates failed and were buffered again")
+                .register(registry);
+        this.dropped = Counter.builder("products.updates.failed").description("products whose buffered updates could not be written")
+                .register(registry);
+        Gauge.builder("products.updates.pending", pending, AtomicInteger::get).description("products with buffered updates").register(registry);
+    }
+
+    /**
+     * Buffers updates, they are written within the configured delay. Nothing is buffered if any of them is invalid.
+     */
+    public void add(List<ProductUpdate> updates) {
+        updates.forEach(ProductUpdateBuffer::validate);
+        for (ProductUpdate update : updates) {
+            received.increment();
+            if (merge(update) && pending.incrementAndGet() >= maxPending && earlyFlushScheduled.compareAndSet(false, true)) {
+                flusher.execute(this::flush);
+            }
+        }
+    }
+
+    private static void validate(ProductUpdate update) {
+        if (update.getId() == null || update.getId().isBlank()) {
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST, "Update without product id");
+        }
+        if (update.getPrice() == null && update.getStock() == null) {
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST, "Update of product [" + update.getId() + "] without price or stock");
+        }
+        if ((update.getPrice() != null && (update.getPrice() < 0 || update.getPrice().isNaN() || update.getPrice().isInfinite())) ||
+                (update.getStock() != null && update.getStock() < 0)) {
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST, "Invalid price or stock for product [" + update.getId() + "]");
+        }
+    }
+
+    /**
+     * @return true if there was no buffered update for this product yet
+     */
+    private boolean merge(ProductUpdate update) {
+        Stripe stripe = stripes[spread(update.getId().hashCode()) & (stripes.length - 1)];
+        synchronized (stripe) {
+            ProductUpdate buffered = stripe.updates.get(update.getId());
+            if (buffered == null) {
+                stripe.updates.put(update.getId(), update);
+                return true;
+            }
+            stripe.updates.put(update.getId(), buffered.merge(update));
+            return false;
+        }
+    }
+
+    /**
+     * Buffers an update written before, unless there is a newer one for the product already, whose fields win
+     */
+    private void rebuffer(ProductUpdate update) {
+        Stripe stripe = stripes[spread(update.getId().hashCode()) & (stripes.length - 1)];
+        synchronized (stripe) {
+            ProductUpdate buffered = stripe.updates.get(update.getId());
+            if (buffered == null) {
+                stripe.updates.put(update.getId(), update);
+                pending.incrementAndGet();
+            } else {
+                stripe.updates.put(update.getId(), update.merge(buffered));
+            }
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Starts recording the updates written from now on. Updates written while the products are copied into a new
+     * index may end up in the previous index only, so they are written again with {@link Recording#replay()} once the
+     * products alias points to the new index.
+     */
+    public Recording startRecording() {
+        Recording recording = new Recording();
+        recordings.add(recording);
+        return recording;
+    }
+
+    /**
+     * Writes all buffered updates, only ever runs on the flusher thread
+     */
+    private void flush() {
+        earlyFlushScheduled.set(false);
+        List<ProductUpdate> updates = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                if (stripe.updates.isEmpty() == false) {
+                    updates.addAll(stripe.updates.values());
+                    stripe.updates = new HashMap<>();
+                }
+            }
+        }
+        if (updates.isEmpty()) {
+            return;
+        }
+        pending.addAndGet(-updates.size());
+        for (Recording recording : recordings) {
+            recording.record(updates);
+        }
+
+        List<UpdateRequest> requests = new ArrayList<>(updates.size());
+        for (ProductUpdate update : updates) {
+            Map<String, Object> doc = new HashMap<>(2);
+            if (update.getPrice() != null) {
+                doc.put("price", update.getPrice());
+            }
+            if (update.getStock() != null) {
+                doc.put("stock", update.getStock());
+            }
+            UpdateRequest request = new UpdateRequest(INDEX, update.getId()).doc(doc).retryOnConflict(RETRY_ON_CONFLICT);
+            inFlight.put(request, update);
+            requests.add(request);
+        }
+
+        int added = 0;
+        try {
+            for (UpdateRequest request : requests) {
+                // blocks while all concurrent bulk requests are in flight
+                ingester.add(request);
+                added++;
+            }
+            ingester.flush();
+            LOG.debug("Sent buffered updates of [{}] products", updates.size());
+        } catch (RuntimeException e) {
+            LOG.error("Could not send buffered updates of [{}] products, buffering them again", requests.size() - added, e);
+            for (UpdateRequest request : requests.subList(added, requests.size())) {
+                ProductUpdate update = inFlight.remove(request);
+                if (update != null) {
+                    rebuffer(update);
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the updates Elasticsearch wrote to the local facets, and buffers failed updates again if writing them
+     * later can succeed
+     */
+    private void afterBulk(List<DocWriteRequest<?>> written, Map<DocWriteRequest<?>, RestStatus> failed) {
+        List<ProductUpdate> applied = new ArrayList<>(written.size());
+        for (DocWriteRequest<?> request : written) {
+            ProductUpdate update = inFlight.remove(request);
+            if (update != null) {
+                applied.add(update);
+            }
+        }
+        if (applied.isEmpty() == false) {
+            // searches counting facets in memory see the updates right away, Elasticsearch only after its next refresh
+            localIndexes.update(applied);
+        }
+
+        failed.forEach((request, status) -> {
+            ProductUpdate update = inFlight.remove(request);
+            if (update == null) {
+                return;
+            }
+            if (isRetryable(status)) {
+                rebuffer(update);
+                retried.increment();
+            } else {
+                dropped.increment();
+            }
+        });
+    }
+
+    // conflicts remaining after retry_on_conflict, rejections remaining after the backoff and unavailable nodes
+    private static boolean isRetryable(RestStatus status) {
+        return status == RestStatus.CONFLICT || status == RestStatus.TOO_MANY_REQUESTS || status.getStatus() >= 500;
+    }
+
+    @PreDestroy
+    public void close() throws InterruptedException {
+        try {
+            flusher.submit(this::flush).get();
+            ingester.awaitCompletion();
+            if (pending.get() > 0) {
+                LOG.warn("Dropping updates of [{}] products that failed to be written on shutdown", pending.get());
+            }
+        } catch (ExecutionException e) {
+            LOG.error("Could not write buffered updates on shutdown", e.getCause());
+        } finally {
+            flusher.shutdownNow();
+        }
+    }
+
+    /**
+     * The updates written since the recording started
+     */
+    public final class Recording implements Closeable {
+
+        // merged per product, only used on the flusher thread
+        private final Map<String, ProductUpdate> updates = new HashMap<>();
+
+        private void record(List<ProductUpdate> written) {
+            for (ProductUpdate update : written) {
+                updates.merge(update.getId(), update, ProductUpdate::merge);
+            }
+        }
+
+        /**
+         * Stops recording and writes the recorded updates again, to the index the products alias points to now.
+         * This runs on the flusher thread, after any flush that might still have written to the previous index.
+         */
+        public void replay() {
+            flusher.execute(() -> {
+                recordings.remove(this);
+                if (updates.isEmpty() == false) {
+                    LOG.info("Writing [{}] updated products again after the products index changed", updates.size());
+                    updates.values().forEach(ProductUpdateBuffer.this::rebuffer);
+                    updates.clear();
+                    flush();
+                }
+            });
+        }
+
+        /**
+         * Stops recording without writing anything again
+         */
+        @Override
+        public void close() {
+            recordings.remove(this);
+        }
+    }
+
+    private static final class Stripe {
+
+        private Map<String, ProductUpdate> updates = new HashMap<>();
+    }
+}
@@ -0,0 +1,129 @@
+package elasticsearch.ecommerce.app.service;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Reads the chunks of a streamed request body as a blocking input stream.
+ *
+ * Only a single chunk is requested ahead of the one being read, so no matter how large the body is, at most two
+ * chunks are held in memory. While the reader is busy, the server stops reading from the connection and the client
+ * is slowed down by TCP flow control.
+ */
+final class PublisherInputStream extends InputStream implements Subscriber<byte[]> {
+
+    private static final Object END = new Object();
+
+    // chunks, the END marker or the failure of the publisher, never more than a chunk and a terminal signal
+    private final BlockingQueue<Object> signals = new LinkedBlockingQueue<>();
+    private volatile Subscription subscription;
+    private byte[] chunk = new byte[0];
+    private int position = 0;
+    private boolean done = false;
+    private long bytesRead = 0;
+
+    PublisherInputStream(Publisher<byte[]> publisher) {
+        publisher.subscribe(this);
+    }
+
+    /**
+     * @return number of bytes of the body read so far
+     */
+    long bytesRead() {
+        return bytesRead;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (ensureAvailable() == false) {
+            return -1;
+        }
+        bytesRead++;
+        return chunk[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (ensureAvailable() == false) {
+            return -1;
+        }
+        int read = Math.min(length, chunk.length - position);
+        System.arraycopy(chunk, position, buffer, offset, read);
+        position += read;
+        bytesRead += read;
+        return read;
+    }
+
+    @Override
+    public int available() {
+        return chunk.length - position;
+    }
+
+    private boolean ensureAvailable() throws IOException {
+        while (position == chunk.length) {
+            if (done) {
+                return false;
+            }
+            Object signal;
+            try {
+                signal = signals.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the request body");
+            }
+            if (signal == END) {
+                done = true;
+            } else if (signal instanceof Throwable) {
+                done = true;
+                throw new IOException("Could not read the request body", (Throwable) signal);
+            } else {
+                chunk = (byte[]) signal;
+                position = 0;
+                subscription.request(1);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (done == false) {
+            done = true;
+            Subscription current = subscription;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(1);
+    }
+
+    @Override
+    public void onNext(byte[] bytes) {
+        signals.add(bytes);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        signals.add(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        signals.add(END);
+    }
+}
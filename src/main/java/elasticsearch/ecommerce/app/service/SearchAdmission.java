@@ -0,0 +1,304 @@
+package elasticsearch.ecommerce.app.service;
+
+import elasticsearch.ecommerce.app.config.SearchAdmissionConfiguration;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.exceptions.HttpStatusException;
+import org.elasticsearch.client.ResponseException;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Limits the number of searches each endpoint sends to Elasticsearch at the same time, so that a spike of expensive
+ * searches neither queues up without limit in the connection pool of the client nor starves the cheap ones.
+ *
+ * Every endpoint has its own bulkhead: searches beyond its limit wait in a bounded queue, a search finding the queue
+ * full is rejected with 429 right away, and a search waiting longer than the queue timeout is rejected with 503.
+ *
+ * With adaptive limits, the latency of every search is compared to the average latency of the recent searches of the
+ * endpoint. A search slower than the tolerated multiple of the average shrinks the limit proportionally, down to half
+ * of it for a search failing because Elasticsearch is overloaded, while fast searches let it grow again by a bit more
+ * than the square root of the limit, up to the configured maximum. Changes are smoothed, so single outliers hardly
+ * matter, and the limit does not grow while the endpoint does not use it.
+ */
+@Singleton
+public class SearchAdmission {
+
+    private static final int DEFAULT_MAX_CONCURRENCY = 32;
+    private static final int DEFAULT_MAX_QUEUED = 64;
+    // number of searches the average latency is taken over, so it follows slow changes of the load of the cluster
+    private static final int LATENCY_WINDOW = 100;
+    // weight of a new limit compared to the current one
+    private static final double SMOOTHING = 0.2;
+
+    private final boolean enabled;
+    private final boolean adaptive;
+    private final long queueTimeoutNanos;
+    private final double latencyTolerance;
+    private final Map<SearchEndpoint, Bulkhead> bulkheads = new EnumMap<>(SearchEndpoint.class);
+    private final ScheduledExecutorService scheduler;
+
+    @Inject
+    public SearchAdmission(SearchAdmissionConfiguration configuration, MeterRegistry registry) {
+        this.enabled = configuration.isEnabled();
+        this.adaptive = configuration.isAdaptive();
+        this.queueTimeoutNanos = configuration.getQueueTimeout().toNanos();
+        this.latencyTolerance = configuration.getLatencyTolerance();
+        for (SearchEndpoint endpoint : SearchEndpoint.values()) {
+            int maxConcurrency = endpoint.configured(configuration.getMaxConcurrency(), DEFAULT_MAX_CONCURRENCY);
+            int maxQueued = endpoint.configured(configuration.getMaxQueued(), DEFAULT_MAX_QUEUED);
+            int minConcurrency = Math.min(maxConcurrency, configuration.getMinConcurrency());
+            bulkheads.put(endpoint, new Bulkhead(endpoint, maxConcurrency, minConcurrency, maxQueued, registry));
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "search-admission");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sends a search right away if the endpoint is below its limit, or once other searches of the endpoint finished
+     *
+     * @param search sends the search and returns its response
+     * @return the response, or a future failed with a {@link HttpStatusException} if the search was rejected
+     */
+    public <T> CompletableFuture<T> execute(SearchEndpoint endpoint, Supplier<CompletableFuture<T>> search) {
+        if (enabled == false) {
+            return search.get();
+        }
+        return bulkheads.get(endpoint).execute(search);
+    }
+
+    @PreDestroy
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @return true if the failure means Elasticsearch is overloaded, rather than that the search was invalid
+     */
+    private static boolean isOverload(Throwable failure) {
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+        if (cause instanceof ResponseException) {
+            int status = ((ResponseException) cause).getResponse().getStatusLine().getStatusCode();
+            return status == 429 || status >= 500;
+        }
+        return cause instanceof IOException;
+    }
+
+    private final class Bulkhead {
+
+        private final String name;
+        private final int maxConcurrency;
+        private final int minConcurrency;
+        private final int maxQueued;
+        private final Counter queueFull;
+        private final Counter queueTimeout;
+
+        // guarded by this
+        private final ArrayDeque<QueuedSearch<?>> queue = new ArrayDeque<>();
+        private double limit;
+        private int inFlight = 0;
+        private double averageLatencyNanos = 0;
+
+        private Bulkhead(SearchEndpoint endpoint, int maxConcurrency, int minConcurrency, int maxQueued, MeterRegistry registry) {
+            this.name = endpoint.getName();
+            this.maxConcurrency = maxConcurrency;
+            this.minConcurrency = minConcurrency;
+            this.maxQueued = maxQueued;
+            this.limit = maxConcurrency;
+            Gauge.builder("search.admission.in_flight", this, Bulkhead::inFlight).tag("endpoint", name)
+                    .description("searches sent to Elasticsearch and not answered yet").register(registry);
+            Gauge.builder("search.admission.queued", this, Bulkhead::queued).tag("endpoint", name)
+                    .description("searches waiting for others to finish").register(registry);
+            Gauge.builder("search.admission.limit", this, Bulkhead::limit).tag("endpoint", name)
+                    .description("current concurrency limit").register(registry);
+            this.queueFull = Counter.builder("search.admission.rejected").tag("endpoint", name).tag("reason", "queue_full")
+                    .description("searches rejected without being sent to Elasticsearch").register(registry);
+            this.queueTimeout = Counter.builder("search.admission.rejected").tag("endpoint", name).tag("reason", "queue_timeout")
+                    .description("searches rejected without being sent to Elasticsearch").register(registry);
+        }
+
+        private <T> CompletableFuture<T> execute(Supplier<CompletableFuture<T>> search) {
+            synchronized (this) {
+                if (inFlight >= (int) limit) {
+                    if (queue.size() >= maxQueued) {
+                        queueFull.increment();
+                        return CompletableFuture.failedFuture(new HttpStatusException(HttpStatus.TOO_MANY_REQUESTS,
+                                "Too many concurrent [" + name + "] searches, try again later"));
+                    }
+                    QueuedSearch<T> queued = new QueuedSearch<>(search);
+                    queue.add(queued);
+                    queued.timeout = scheduler.schedule(() -> timeout(queued), queueTimeoutNanos, TimeUnit.NANOSECONDS);
+                    return queued.future;
+                }
+                inFlight++;
+            }
+            return send(search);
+        }
+
+        private <T> CompletableFuture<T> send(Supplier<CompletableFuture<T>> search) {
+            long startedAt = System.nanoTime();
+            CompletableFuture<T> response;
+            try {
+                response = search.get();
+            } catch (RuntimeException e) {
+                response = CompletableFuture.failedFuture(e);
+            }
+            CompletableFuture<T> sent = response;
+            CompletableFuture<T> released = sent.whenComplete((result, failure) -> release(startedAt, failure));
+            // cancelling the returned future cancels the search
+            released.whenComplete((result, failure) -> {
+                if (released.isCancelled()) {
+                    sent.cancel(false);
+                }
+            });
+            return released;
+        }
+
+        private void timeout(QueuedSearch<?> queued) {
+            synchronized (this) {
+                if (queue.remove(queued) == false) {
+                    return;
+                }
+            }
+            queueTimeout.increment();
+            queued.future.completeExceptionally(new HttpStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                    "Timed out waiting for concurrent [" + name + "] searches, try again later"));
+        }
+
+        /**
+         * A queued search has been cancelled, it is not sent anymore, or cancelled if it has been sent already
+         */
+        private void cancel(QueuedSearch<?> queued) {
+            boolean removed;
+            synchronized (this) {
+                removed = queue.remove(queued);
+            }
+            if (removed) {
+                queued.timeout.cancel(false);
+            } else {
+                queued.cancelSent();
+            }
+        }
+
+        private void release(long startedAt, Throwable failure) {
+            synchronized (this) {
+                // a cancelled search says nothing about the latency of Elasticsearch
+                if (adaptive && failure instanceof CancellationException == false) {
+                    adapt(startedAt, failure != null && isOverload(failure));
+                }
+            }
+            releasePermit();
+        }
+
+        /**
+         * Hands the permit of a finished search over to the next queued search, if the limit allows
+         */
+        private void releasePermit() {
+            QueuedSearch<?> next = null;
+            synchronized (this) {
+                inFlight--;
+                if (inFlight < (int) limit) {
+                    next = queue.poll();
+                    if (next != null) {
+                        inFlight++;
+                    }
+                }
+            }
+            if (next != null) {
+                next.timeout.cancel(false);
+                next.send();
+            }
+        }
+
+        private void adapt(long startedAt, boolean overloaded) {
+            long latency = System.nanoTime() - startedAt;
+            double gradient;
+            if (overloaded) {
+                gradient = 0.5;
+            } else {
+                averageLatencyNanos = averageLatencyNanos == 0 ? latency :
+                        averageLatencyNanos + (latency - averageLatencyNanos) / LATENCY_WINDOW;
+                gradient = Math.max(0.5, Math.min(1.0, latencyTolerance * averageLatencyNanos / Math.max(1, latency)));
+                if (gradient == 1.0 && inFlight < limit / 2) {
+                    return;
+                }
+            }
+            double newLimit = limit * gradient + Math.sqrt(limit);
+            limit = Math.max(minConcurrency, Math.min(maxConcurrency, limit * (1 - SMOOTHING) + newLimit * SMOOTHING));
+        }
+
+        private synchronized int inFlight() {
+            return inFlight;
+        }
+
+        private synchronized int queued() {
+            return queue.size();
+        }
+
+        private synchronized int limit() {
+            return (int) limit;
+        }
+
+        private final class QueuedSearch<T> {
+
+            private final Supplier<CompletableFuture<T>> search;
+            private final CompletableFuture<T> future = new CompletableFuture<>();
+            private ScheduledFuture<?> timeout;
+            private volatile CompletableFuture<T> sent;
+
+            private QueuedSearch(Supplier<CompletableFuture<T>> search) {
+                this.search = search;
+                future.whenComplete((result, failure) -> {
+                    if (future.isCancelled()) {
+                        Bulkhead.this.cancel(this);
+                    }
+                });
+            }
+
+            private void send() {
+                if (future.isDone()) {
+                    // cancelled while it was handed the permit
+                    releasePermit();
+                    return;
+                }
+                sent = Bulkhead.this.send(search);
+                if (future.isCancelled()) {
+                    sent.cancel(false);
+                }
+                sent.whenComplete((result, failure) -> {
+                    if (failure != null) {
+                        future.completeExceptionally(failure);
+                    } else {
+                        future.complete(result);
+                    }
+                });
+            }
+
+            private void cancelSent() {
+                CompletableFuture<T> current = sent;
+                if (current != null) {
+                    current.cancel(false);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package elasticsearch.ecommerce.app.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import elasticsearch.ecommerce.app.config.SearchCacheConfiguration;
+import elasticsearch.ecommerce.app.entities.Query;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import io.micronaut.runtime.event.annotation.EventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the raw bytes of search responses, keyed by the endpoint and the canonical form of the query.
+ *
+ * The cache is bounded by the number of entries as well as by the bytes of all responses, eviction is based on the
+ * access frequency of a query (W-TinyLFU). Every change of the products index drops all entries.
+ */
+@Singleton
+public class SearchCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SearchCache.class);
+
+    private final boolean enabled;
+    private final Cache<String, byte[]> cache;
+    // incremented on every invalidation, so that responses of searches started before cannot be cached afterwards
+    private final AtomicLong generation = new AtomicLong();
+
+    @Inject
+    public SearchCache(SearchCacheConfiguration configuration, MeterRegistry registry) {
+        this.enabled = configuration.isEnabled();
+        // every entry weighs at least this much, so that the total weight limit also limits the number of entries
+        int minWeight = (int) Math.min(Integer.MAX_VALUE, Math.max(1, configuration.getMaxSize() / Math.max(1, configuration.getMaxEntries())));
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(configuration.getMaxSize())
+                .weigher((String key, byte[] value) -> Math.max(minWeight, value.length + key.length() * 2))
+                .expireAfterWrite(configuration.getTtl())
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(registry, cache, "search");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Responses of different formats fetch different fields of the products, so they are cached separately
+     */
+    public String key(SearchEndpoint endpoint, Query query, SearchTier tier, SearchResponseFormat format) {
+        return endpoint.getName() + '/' + tier.getName() + '/' + format.getName() + '/' + query.canonicalForm();
+    }
+
+    /**
+     * The hits of all endpoints with aggregations are the same, so they share their key
+     */
+    public String hitsKey(Query query, SearchTier tier, SearchResponseFormat format) {
+        return "hits/" + tier.getName() + '/' + format.getName() + '/' + query.canonicalForm();
+    }
+
+    /**
+     * Aggregations do not depend on the offset, so all pages of a query share their key
+     */
+    public String facetsKey(SearchEndpoint endpoint, Query query, SearchTier tier) {
+        return endpoint.getName() + "/facets/" + tier.getName() + '/' + query.canonicalFormIgnoringPaging();
+    }
+
+    /**
+     * @return the cached response or null
+     */
+    public byte[] get(String key) {
+        return enabled ? cache.getIfPresent(key) : null;
+    }
+
+    /**
+     * The generation has to be read before the search is sent, see {@link #put(String, long, byte[])}
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Caches a response, unless the index has changed since the search was sent in the given generation
+     */
+    public void put(String key, long searchGeneration, byte[] response) {
+        if (enabled && generation.get() == searchGeneration) {
+            cache.put(key, response);
+            // an invalidation might have happened right before the put
+            if (generation.get() != searchGeneration) {
+                cache.invalidate(key);
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    @EventListener
+    public void onProductIndexChanged(ProductIndexChangedEvent event) {
+        LOG.info("Index [{}] changed, invalidating [{}] cached search responses", event.getIndex(), cache.estimatedSize());
+        invalidateAll();
+    }
+}
@@ -0,0 +1,115 @@
+package elasticsearch.ecommerce.app.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micronaut.context.annotation.Value;
+import org.elasticsearch.common.CheckedFunction;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lets concurrent searches for the same canonical query share a single request to Elasticsearch.
+ *
+ * The first search for a key sends the request, every search for the same key arriving before the response gets the
+ * same response, or the same failure. Once the response is there, the key is removed again, so there is no caching
+ * involved here. The shared request is only cancelled once all searches waiting for it have been cancelled.
+ */
+@Singleton
+public class SearchCoalescer {
+
+    private final boolean enabled;
+    private final Map<String, SharedSearch> inFlight = new ConcurrentHashMap<>();
+    private final Counter coalesced;
+    private final Counter executed;
+
+    @Inject
+    public SearchCoalescer(@Value("${search.coalescing.enabled:true}") boolean enabled, MeterRegistry registry) {
+        this.enabled = enabled;
+        this.coalesced = registry.counter("search.coalescing.requests", "result", "coalesced");
+        this.executed = registry.counter("search.coalescing.requests", "result", "executed");
+        registry.gaugeMapSize("search.coalescing.in_flight", Tags.empty(), inFlight);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the response of an in flight search with the same key, or runs the given search
+     *
+     * @param scope the scope of the search waiting for the response
+     * @param search runs the search within the given scope, which is cancelled once nobody waits for it anymore
+     */
+    public CompletableFuture<byte[]> execute(String key, SearchScope scope,
+                                             CheckedFunction<SearchScope, CompletableFuture<byte[]>, IOException> search) throws IOException {
+        if (enabled == false) {
+            return search.apply(scope);
+        }
+
+        SharedSearch created = new SharedSearch();
+        // a search whose waiters have all been cancelled cannot be joined anymore, it is replaced
+        SharedSearch shared = inFlight.compute(key, (k, existing) -> existing != null && existing.join() ? existing : created);
+        // every caller gets its own future, so that nobody can complete or cancel the shared one
+        CompletableFuture<byte[]> own = shared.future.thenApply(bytes -> bytes);
+        scope.onCancel(() -> {
+            own.cancel(false);
+            if (shared.leave()) {
+                inFlight.remove(key, shared);
+                shared.scope.cancel();
+            }
+        });
+        if (shared != created) {
+            coalesced.increment();
+            return own;
+        }
+
+        executed.increment();
+        try {
+            search.apply(shared.scope).whenComplete((bytes, e) -> {
+                inFlight.remove(key, shared);
+                if (e != null) {
+                    shared.future.completeExceptionally(e);
+                } else {
+                    shared.future.complete(bytes);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            inFlight.remove(key, shared);
+            shared.future.completeExceptionally(e);
+            throw e;
+        }
+        return own;
+    }
+
+    private static final class SharedSearch {
+
+        private final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        private final SearchScope scope = new SearchScope();
+        // number of searches waiting for the response, guarded by this
+        private int waiting = 1;
+
+        /**
+         * @return false if all searches waiting for this one have been cancelled already
+         */
+        private synchronized boolean join() {
+            if (waiting == 0) {
+                return false;
+            }
+            waiting++;
+            return true;
+        }
+
+        /**
+         * @return true if this was the last search waiting for this one
+         */
+        private synchronized boolean leave() {
+            return --waiting == 0;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package elasticsearch.ecommerce.app.service;
+
+import elasticsearch.ecommerce.app.config.SearchDeadlineConfiguration;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.exceptions.HttpStatusException;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ends searches nobody waits for anymore. A search taking longer than the deadline of its endpoint is answered with
+ * 504, a search whose user went away is dropped, and in both cases the requests it sent to Elasticsearch are cancelled,
+ * so they stop using the CPU of the cluster.
+ *
+ * Elasticsearch is asked to stop searching a bit before the deadline, so a slow search rather gets the hits found so
+ * far than none at all.
+ */
+@Singleton
+public class SearchDeadlines {
+
+    // share of the deadline Elasticsearch may spend searching, the rest is left for the round trip
+    private static final double SEARCH_TIMEOUT_SHARE = 0.8;
+
+    private final boolean enabled;
+    private final Map<SearchEndpoint, Long> deadlineMillis = new EnumMap<>(SearchEndpoint.class);
+    private final ScheduledExecutorService scheduler;
+    private final Counter disconnected;
+    private final Counter timedOut;
+
+    @Inject
+    public SearchDeadlines(SearchDeadlineConfiguration configuration, MeterRegistry registry) {
+        this.enabled = configuration.isEnabled();
+        for (SearchEndpoint endpoint : SearchEndpoint.values()) {
+            deadlineMillis.put(endpoint, endpoint.configured(configuration.getTimeouts(), configuration.getDefaultTimeout()).toMillis());
+        }
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "search-deadlines");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // almost all searches finish in time, their deadlines should not pile up in the queue
+        executor.setRemoveOnCancelPolicy(true);
+        this.scheduler = Executors.unconfigurableScheduledExecutorService(executor);
+        this.disconnected = Counter.builder("search.cancelled").tag("reason", "disconnect")
+                .description("searches cancelled before they were answered").register(registry);
+        this.timedOut = Counter.builder("search.cancelled").tag("reason", "deadline")
+                .description("searches cancelled before they were answered").register(registry);
+    }
+
+    /**
+     * @return the timeout Elasticsearch should stop searching after, or null if there is no deadline
+     */
+    public String searchTimeout(SearchEndpoint endpoint) {
+        return enabled ? (long) (deadlineMillis.get(endpoint) * SEARCH_TIMEOUT_SHARE) + "ms" : null;
+    }
+
+    /**
+     * Returns a future for the response of a search, cancelling that future cancels the search. It fails with a 504
+     * once the deadline of the endpoint has passed, in which case the search is cancelled as well.
+     *
+     * @param scope the scope the search has been sent in
+     * @param response the response of the search
+     */
+    public <T> CompletableFuture<T> watch(SearchEndpoint endpoint, SearchScope scope, CompletableFuture<T> response) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        response.whenComplete((value, e) -> {
+            if (e != null) {
+                result.completeExceptionally(e);
+            } else {
+                result.complete(value);
+            }
+        });
+        ScheduledFuture<?> deadline = enabled == false ? null : scheduler.schedule(() -> result.completeExceptionally(
+                new HttpStatusException(HttpStatus.GATEWAY_TIMEOUT, "Search took longer than " + deadlineMillis.get(endpoint) + "ms")),
+                deadlineMillis.get(endpoint), TimeUnit.MILLISECONDS);
+        result.whenComplete((value, e) -> {
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            if (response.isDone() == false) {
+                // only the controller cancels, once the connection was closed
+                (result.isCancelled() ? disconnected : timedOut).increment();
+                scope.cancel();
+            }
+        });
+        return result;
+    }
+
+    @PreDestroy
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,35 @@
+package elasticsearch.ecommerce.app.service;
+
+import java.util.Map;
+
+/**
+ * The different kinds of searches offered by the {@link ProductQueryService}
+ */
+public enum SearchEndpoint {
+
+    PRODUCTS_ONLY("products_only"),
+    PRODUCTS_WITH_AGGS("products_with_aggs"),
+    PRODUCTS_WITH_FILTERED_AGGS("products_with_filtered_aggs");
+
+    private final String name;
+
+    SearchEndpoint(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Looks up the value configured for this endpoint, whose name might have been turned into kebab case as a
+     * configuration key
+     */
+    public <V> V configured(Map<String, V> values, V defaultValue) {
+        V value = values.get(name);
+        if (value == null) {
+            value = values.get(name.replace('_', '-'));
+        }
+        return value == null ? defaultValue : value;
+    }
+}
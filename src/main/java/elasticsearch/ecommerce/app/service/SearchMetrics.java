@@ -0,0 +1,180 @@
+package elasticsearch.ecommerce.app.service;
+
+import elasticsearch.ecommerce.app.json.RawJsonResponse;
+import elasticsearch.ecommerce.app.json.SearchResponses;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micronaut.http.exceptions.HttpStatusException;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.client.ResponseException;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Latency, sizes and errors of the searches of every endpoint, as seen by the application and by Elasticsearch.
+ *
+ * The latency of a search in the application includes cache hits, merging and formatting, the round trip to
+ * Elasticsearch includes the network, the connection pool and the batching window, and the took of Elasticsearch is
+ * the time it spent searching. The difference between them shows where the time goes.
+ *
+ * All meters are registered up front, so recording a value neither looks up meters nor locks or allocates.
+ */
+@Singleton
+public class SearchMetrics {
+
+    private final Map<SearchEndpoint, EndpointMeters> meters = new EnumMap<>(SearchEndpoint.class);
+
+    @Inject
+    public SearchMetrics(MeterRegistry registry) {
+        for (SearchEndpoint endpoint : SearchEndpoint.values()) {
+            meters.put(endpoint, new EndpointMeters(endpoint.getName(), registry));
+        }
+    }
+
+    /**
+     * @return the start time to pass to {@link #completed}
+     */
+    long started(SearchEndpoint endpoint) {
+        meters.get(endpoint).inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a search answered to the client, or failed with the given exception
+     */
+    void completed(SearchEndpoint endpoint, long startTime, RawJsonResponse response, Throwable failure) {
+        EndpointMeters endpointMeters = meters.get(endpoint);
+        endpointMeters.inFlight.decrementAndGet();
+        if (failure != null) {
+            endpointMeters.errors.get(ErrorReason.of(failure)).increment();
+            return;
+        }
+        endpointMeters.latency.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+        long length = response.length();
+        if (length >= 0) {
+            endpointMeters.responseBytes.record(length);
+        }
+    }
+
+    /**
+     * Records the round trip of a search sent to Elasticsearch once it returns
+     *
+     * @return the given response
+     */
+    <T> CompletableFuture<T> sent(SearchEndpoint endpoint, int requestBytes, CompletableFuture<T> response) {
+        EndpointMeters endpointMeters = meters.get(endpoint);
+        endpointMeters.elasticsearchRequestBytes.record(requestBytes);
+        long sentAt = System.nanoTime();
+        response.whenComplete((result, e) -> {
+            if (e == null) {
+                endpointMeters.elasticsearchLatency.record(System.nanoTime() - sentAt, TimeUnit.NANOSECONDS);
+            }
+        });
+        return response;
+    }
+
+    /**
+     * Records the took and the size of a response of Elasticsearch
+     */
+    void received(SearchEndpoint endpoint, byte[] response) {
+        EndpointMeters endpointMeters = meters.get(endpoint);
+        endpointMeters.elasticsearchResponseBytes.record(response.length);
+        long took = SearchResponses.took(response);
+        if (took >= 0) {
+            endpointMeters.elasticsearchTook.record(took, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private enum ErrorReason {
+
+        // rejected by the admission, see SearchAdmission
+        REJECTED("rejected"),
+        // missed the deadline, see SearchDeadlines
+        TIMEOUT("timeout"),
+        // the client went away
+        CANCELLED("cancelled"),
+        BAD_REQUEST("bad_request"),
+        ELASTICSEARCH("elasticsearch"),
+        OTHER("other");
+
+        private final String name;
+
+        ErrorReason(String name) {
+            this.name = name;
+        }
+
+        private static ErrorReason of(Throwable failure) {
+            Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+            if (cause instanceof CancellationException) {
+                return CANCELLED;
+            }
+            if (cause instanceof HttpStatusException) {
+                switch (((HttpStatusException) cause).getStatus()) {
+                    case TOO_MANY_REQUESTS:
+                    case SERVICE_UNAVAILABLE:
+                        return REJECTED;
+                    case GATEWAY_TIMEOUT:
+                        return TIMEOUT;
+                    case BAD_REQUEST:
+                        return BAD_REQUEST;
+                    default:
+                        return OTHER;
+                }
+            }
+            if (cause instanceof ElasticsearchException || cause instanceof ResponseException) {
+                return ELASTICSEARCH;
+            }
+            return OTHER;
+        }
+    }
+
+    private static class EndpointMeters {
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final Timer latency;
+        private final DistributionSummary responseBytes;
+        private final Map<ErrorReason, Counter> errors = new EnumMap<>(ErrorReason.class);
+        private final Timer elasticsearchLatency;
+        private final Timer elasticsearchTook;
+        private final DistributionSummary elasticsearchRequestBytes;
+        private final DistributionSummary elasticsearchResponseBytes;
+
+        private EndpointMeters(String name, MeterRegistry registry) {
+            Gauge.builder("search.in_flight", inFlight, AtomicInteger::get).tag("endpoint", name)
+                    .description("searches received and not answered yet").register(registry);
+            this.latency = Timer.builder("search.latency").tag("endpoint", name)
+                    .description("searches answered, from receiving the query to the formatted response")
+                    .publishPercentiles(0.5, 0.95, 0.99)
+                    .register(registry);
+            this.responseBytes = DistributionSummary.builder("search.response.bytes").tag("endpoint", name).baseUnit("bytes")
+                    .description("size of the answered responses before compression").register(registry);
+            for (ErrorReason reason : ErrorReason.values()) {
+                errors.put(reason, Counter.builder("search.errors").tag("endpoint", name).tag("reason", reason.name)
+                        .description("searches not answered with a response").register(registry));
+            }
+            this.elasticsearchLatency = Timer.builder("search.elasticsearch.latency").tag("endpoint", name)
+                    .description("round trip of the searches sent to Elasticsearch")
+                    .publishPercentiles(0.5, 0.95, 0.99)
+                    .register(registry);
+            this.elasticsearchTook = Timer.builder("search.elasticsearch.took").tag("endpoint", name)
+                    .description("time Elasticsearch spent on the searches, as reported in their responses")
+                    .publishPercentiles(0.5, 0.95, 0.99)
+                    .register(registry);
+            this.elasticsearchRequestBytes = DistributionSummary.builder("search.elasticsearch.request.bytes").tag("endpoint", name)
+                    .baseUnit("bytes").description("size of the searches sent to Elasticsearch").register(registry);
+            this.elasticsearchResponseBytes = DistributionSummary.builder("search.elasticsearch.response.bytes").tag("endpoint", name)
+                    .baseUnit("bytes").description("size of the responses of Elasticsearch, uncompressed").register(registry);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package elasticsearch.ecommerce.app.service;
+
+import elasticsearch.ecommerce.app.json.CompactSearchResponse;
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.exceptions.HttpStatusException;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The formats a search can be answered in
+ */
+public enum SearchResponseFormat {
+
+    // the search response of Elasticsearch as it is
+    FULL("full", List.of()),
+    // only the fields the search page renders, see CompactSearchResponse
+    COMPACT("compact", List.of("id", "name", "brand", "price", "color", "material", "productImageUrl", "brandLogoUrl"));
+
+    private final String name;
+    private final List<String> sourceIncludes;
+
+    SearchResponseFormat(String name, List<String> sourceIncludes) {
+        this.name = name;
+        this.sourceIncludes = sourceIncludes;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the fields of the products to fetch from Elasticsearch, all of them if empty
+     */
+    public List<String> getSourceIncludes() {
+        return sourceIncludes;
+    }
+
+    /**
+     * Turns a search response of Elasticsearch into a response of this format
+     */
+    public byte[] format(byte[] response) throws IOException {
+        return this == COMPACT ? CompactSearchResponse.compact(response) : response;
+    }
+
+    /**
+     * @throws HttpStatusException if there is no format with the given name, so it is returned as bad request
+     */
+    public static SearchResponseFormat fromName(String name) {
+        for (SearchResponseFormat format : values()) {
+            if (format.name.equals(name)) {
+                return format;
+            }
+        }
+        throw new HttpStatusException(HttpStatus.BAD_REQUEST, "Unknown response format: " + name);
+    }
+}
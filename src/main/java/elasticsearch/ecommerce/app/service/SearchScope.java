@@ -0,0 +1,42 @@
+package elasticsearch.ecommerce.app.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects what has to be undone once nobody waits for the response of a search anymore, because the user went away
+ * or the deadline passed: requests in flight to Elasticsearch are cancelled, and queued ones are never sent.
+ */
+public final class SearchScope {
+
+    // null once cancelled
+    private List<Runnable> hooks = new ArrayList<>(4);
+
+    /**
+     * Runs the hook once the scope is cancelled, or right away if it has been cancelled already
+     */
+    public void onCancel(Runnable hook) {
+        synchronized (this) {
+            if (hooks != null) {
+                hooks.add(hook);
+                return;
+            }
+        }
+        hook.run();
+    }
+
+    public void cancel() {
+        List<Runnable> cancelled;
+        synchronized (this) {
+            cancelled = hooks;
+            hooks = null;
+        }
+        if (cancelled != null) {
+            cancelled.forEach(Runnable::run);
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return hooks == null;
+    }
+}
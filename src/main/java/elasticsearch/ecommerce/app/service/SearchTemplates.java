@@ -0,0 +1,377 @@
+package elasticsearch.ecommerce.app.service;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import elasticsearch.ecommerce.app.entities.Query;
+import elasticsearch.ecommerce.app.json.SearchCursor;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.CheckedConsumer;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.unit.Fuzziness;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.MultiMatchQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.AggregatorFactories;
+import org.elasticsearch.search.aggregations.bucket.filter.FiltersAggregator;
+
+import javax.inject.Singleton;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders the bodies of the search requests sent by the {@link ProductQueryService}.
+ *
+ * Everything that does not depend on the user query, like the aggregations or the options of the full text query,
+ * is created from the regular builders once at startup and kept as pre-encoded JSON. Per request only the query text,
+ * the offset or cursor and the filters are written around those fragments, without creating any builder trees.
+ */
+@Singleton
+public class SearchTemplates {
+
+    static final int SIZE = 16;
+
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final List<String> RANGE_FILTER_KEYS = List.of("stock", "price");
+    // the fields that become terms aggregations, in the order they show up in the response
+    private static final List<String> FACETS = List.of("color", "brand", "material");
+    private static final String PLACEHOLDER = "__query__";
+    // the product id breaks ties between equal scores, so that every hit has unique sort values to continue after
+    private static final SerializedString SORT = new SerializedString("[{\"_score\":\"desc\"},{\"id.keyword\":\"asc\"}]");
+
+    // everything of the multi_match query following the query text, starting with a comma, per tier
+    private final Map<SearchTier, SerializedString> multiMatchOptions = new EnumMap<>(SearchTier.class);
+    // the _source filter of every format that does not need all fields of the products
+    private final Map<SearchResponseFormat, SerializedString> sourceFilters = new EnumMap<>(SearchResponseFormat.class);
+    // all aggregations of the products_with_aggs search
+    private final SerializedString aggs;
+    // price and stock aggregations as object members, starting with a comma
+    private final SerializedString priceAndStockAggs;
+    // the terms aggregation of each facet
+    private final Map<String, SerializedString> termsAggs = new LinkedHashMap<>();
+
+    public SearchTemplates() throws IOException {
+        multiMatchOptions.put(SearchTier.EXACT, renderMultiMatchOptions(createMultiMatch()));
+        multiMatchOptions.put(SearchTier.FUZZY, renderMultiMatchOptions(createMultiMatch().fuzziness(Fuzziness.AUTO)));
+        for (SearchResponseFormat format : SearchResponseFormat.values()) {
+            if (format.getSourceIncludes().isEmpty() == false) {
+                sourceFilters.put(format, renderSourceFilter(format.getSourceIncludes()));
+            }
+        }
+
+        AggregatorFactories.Builder allAggs = AggregatorFactories.builder();
+        for (String facet : FACETS) {
+            AggregationBuilder termsAgg = createTermsAgg(facet);
+            allAggs.addAggregator(termsAgg);
+            String rendered = render(AggregatorFactories.builder().addAggregator(termsAgg));
+            // strip the surrounding object and the name of the aggregation
+            termsAggs.put(facet, new SerializedString(rendered.substring(("{\"" + termsAgg.getName() + "\":").length(), rendered.length() - 1)));
+        }
+
+        AggregatorFactories.Builder priceAndStock = AggregatorFactories.builder();
+        createPriceAndStockAggs().forEach(agg -> {
+            allAggs.addAggregator(agg);
+            priceAndStock.addAggregator(agg);
+        });
+        this.aggs = new SerializedString(render(allAggs));
+        String priceAndStockMembers = render(priceAndStock);
+        this.priceAndStockAggs = new SerializedString("," + priceAndStockMembers.substring(1, priceAndStockMembers.length() - 1));
+    }
+
+    /**
+     * Renders the search request body of the given endpoint, fetching the fields of the products needed for the format
+     */
+    public BytesRef render(SearchEndpoint endpoint, Query query, SearchTier tier, SearchResponseFormat format) throws IOException {
+        return render(gen -> {
+            writePaging(gen, query);
+            writeSourceFilter(gen, format);
+            gen.writeFieldName("query");
+            if (endpoint == SearchEndpoint.PRODUCTS_ONLY) {
+                // search only across hits, don't include any aggregations
+                writeFullTextQuery(gen, query, tier);
+            } else {
+                writeQueryWithRangeFilters(gen, query, tier);
+                writePostFilter(gen, query);
+                writeAggs(gen, endpoint, query);
+            }
+        });
+    }
+
+    /**
+     * Renders the hits part of a search with aggregations, which is the same for all endpoints with aggregations
+     */
+    public BytesRef renderHits(Query query, SearchTier tier, SearchResponseFormat format) throws IOException {
+        return render(gen -> {
+            writePaging(gen, query);
+            writeSourceFilter(gen, format);
+            gen.writeFieldName("query");
+            writeQueryWithRangeFilters(gen, query, tier);
+            writePostFilter(gen, query);
+        });
+    }
+
+    /**
+     * Renders the aggregations part of a search with aggregations, without any hits. The post filter does not change
+     * aggregations and the offset is not needed without hits, so all pages of a query render the same request, which
+     * Elasticsearch can serve from its shard request cache.
+     */
+    public BytesRef renderFacets(SearchEndpoint endpoint, Query query, SearchTier tier) throws IOException {
+        return render(gen -> {
+            gen.writeNumberField("size", 0);
+            gen.writeFieldName("query");
+            writeQueryWithRangeFilters(gen, query, tier);
+            writeAggs(gen, endpoint, query);
+        });
+    }
+
+    private BytesRef render(CheckedConsumer<JsonGenerator, IOException> body) throws IOException {
+        BodyOutputStream out = new BodyOutputStream();
+        try (JsonGenerator gen = JSON.createGenerator(out, JsonEncoding.UTF8)) {
+            gen.writeStartObject();
+            body.accept(gen);
+            gen.writeEndObject();
+        }
+        return new BytesRef(out.buffer(), 0, out.size());
+    }
+
+    /**
+     * Writes a cursor as search_after, so that shards only need to collect a single page, or the offset for shallow
+     * pages without cursor
+     */
+    private void writePaging(JsonGenerator gen, Query query) throws IOException {
+        if (Strings.isEmpty(query.getCursor())) {
+            gen.writeNumberField("from", query.getFrom() == null ? 0 : query.getFrom());
+        } else {
+            gen.writeFieldName("search_after");
+            gen.writeRawValue(SearchCursor.decode(query.getCursor()));
+        }
+        gen.writeNumberField("size", SIZE);
+        gen.writeFieldName("sort");
+        gen.writeRawValue(SORT);
+    }
+
+    private void writeSourceFilter(JsonGenerator gen, SearchResponseFormat format) throws IOException {
+        SerializedString sourceFilter = sourceFilters.get(format);
+        if (sourceFilter != null) {
+            gen.writeFieldName("_source");
+            gen.writeRawValue(sourceFilter);
+        }
+    }
+
+    private void writeAggs(JsonGenerator gen, SearchEndpoint endpoint, Query query) throws IOException {
+        gen.writeFieldName("aggs");
+        switch (endpoint) {
+            case PRODUCTS_WITH_AGGS:
+                gen.writeRawValue(aggs);
+                break;
+            case PRODUCTS_WITH_FILTERED_AGGS:
+                writeFilteredAggs(gen, query);
+                break;
+            default:
+                throw new IllegalArgumentException("Endpoint has no aggregations: " + endpoint);
+        }
+    }
+
+    /**
+     * Creates regular text search query
+     */
+    private void writeFullTextQuery(JsonGenerator gen, Query query, SearchTier tier) throws IOException {
+        gen.writeStartObject();
+        if (Strings.isEmpty(query.getQuery()) || query.getQuery().isBlank()) {
+            // browsing without query text lists all products, instead of none
+            gen.writeObjectFieldStart("match_all");
+            gen.writeEndObject();
+            gen.writeEndObject();
+            return;
+        }
+        gen.writeObjectFieldStart("multi_match");
+        gen.writeStringField("query", query.getQuery());
+        gen.writeRaw(multiMatchOptions.get(tier));
+        gen.writeEndObject();
+        gen.writeEndObject();
+    }
+
+    /**
+     * Stock and Price are created as regular filters as part of the query, which indeed will change the aggregations
+     */
+    private void writeQueryWithRangeFilters(JsonGenerator gen, Query query, SearchTier tier) throws IOException {
+        gen.writeStartObject();
+        gen.writeObjectFieldStart("bool");
+        gen.writeArrayFieldStart("must");
+        writeFullTextQuery(gen, query, tier);
+        for (Query.Filter filter : query.getFilters()) {
+            if (RANGE_FILTER_KEYS.contains(filter.getKey())) {
+                filter.writeQuery(gen);
+            }
+        }
+        gen.writeEndArray();
+        gen.writeEndObject();
+        gen.writeEndObject();
+    }
+
+    /**
+     * The selected material, brand and color filters are only applied as a post filter, values of the same
+     * field are OR'ed, different fields are AND'ed
+     */
+    private void writePostFilter(JsonGenerator gen, Query query) throws IOException {
+        Map<String, List<String>> valuesByKey = new LinkedHashMap<>();
+        for (Query.Filter filter : query.getFilters()) {
+            if (RANGE_FILTER_KEYS.contains(filter.getKey()) == false) {
+                valuesByKey.computeIfAbsent(filter.getKey(), k -> new ArrayList<>()).add(filter.getValue());
+            }
+        }
+        if (valuesByKey.isEmpty()) {
+            return;
+        }
+
+        gen.writeObjectFieldStart("post_filter");
+        gen.writeObjectFieldStart("bool");
+        gen.writeArrayFieldStart("filter");
+        for (Map.Entry<String, List<String>> entry : valuesByKey.entrySet()) {
+            gen.writeStartObject();
+            gen.writeObjectFieldStart("bool");
+            gen.writeArrayFieldStart("should");
+            for (String value : entry.getValue()) {
+                gen.writeStartObject();
+                gen.writeObjectFieldStart("term");
+                gen.writeStringField(entry.getKey() + ".keyword", value);
+                gen.writeEndObject();
+                gen.writeEndObject();
+            }
+            gen.writeEndArray();
+            gen.writeEndObject();
+            gen.writeEndObject();
+        }
+        gen.writeEndArray();
+        gen.writeEndObject();
+        gen.writeEndObject();
+    }
+
+    /**
+     * Every facet is filtered by the selected values of all the other facets, so that its counts are correct. Like in
+     * the post filter, values of the same field are OR'ed and different fields are AND'ed. The range filters are
+     * already part of the query, repeating them does not change the counts.
+     */
+    private void writeFilteredAggs(JsonGenerator gen, Query query) throws IOException {
+        gen.writeStartObject();
+        for (Map.Entry<String, SerializedString> entry : termsAggs.entrySet()) {
+            String facet = entry.getKey();
+            String name = "by_" + facet;
+            gen.writeFieldName(name);
+
+            List<Query.Filter> ranges = new ArrayList<>();
+            Map<String, List<Query.Filter>> termsByKey = new LinkedHashMap<>();
+            for (Query.Filter filter : query.getFilters()) {
+                // filter out itself
+                if (filter.getKey().equals(facet)) {
+                    continue;
+                }
+                if (RANGE_FILTER_KEYS.contains(filter.getKey())) {
+                    ranges.add(filter);
+                } else {
+                    termsByKey.computeIfAbsent(filter.getKey(), k -> new ArrayList<>()).add(filter);
+                }
+            }
+
+            if (ranges.isEmpty() && termsByKey.isEmpty()) {
+                gen.writeRawValue(entry.getValue());
+                continue;
+            }
+            gen.writeStartObject();
+            gen.writeObjectFieldStart("filter");
+            gen.writeObjectFieldStart("bool");
+            gen.writeArrayFieldStart("filter");
+            for (Query.Filter range : ranges) {
+                range.writeQuery(gen);
+            }
+            for (List<Query.Filter> terms : termsByKey.values()) {
+                gen.writeStartObject();
+                gen.writeObjectFieldStart("bool");
+                gen.writeArrayFieldStart("should");
+                for (Query.Filter term : terms) {
+                    term.writeQuery(gen);
+                }
+                gen.writeEndArray();
+                gen.writeEndObject();
+                gen.writeEndObject();
+            }
+            gen.writeEndArray();
+            gen.writeEndObject();
+            gen.writeEndObject();
+            gen.writeObjectFieldStart("aggs");
+            gen.writeFieldName(name);
+            gen.writeRawValue(entry.getValue());
+            gen.writeEndObject();
+            gen.writeEndObject();
+        }
+        // like the facets of products_with_aggs, price and stock count all products matching the query and its range
+        // filters, the selected values only filter the hits
+        gen.writeRaw(priceAndStockAggs);
+        gen.writeEndObject();
+    }
+
+    private static MultiMatchQueryBuilder createMultiMatch() {
+        return QueryBuilders.multiMatchQuery(PLACEHOLDER, "name", "color", "brand", "material").minimumShouldMatch("66%");
+    }
+
+    private static SerializedString renderMultiMatchOptions(MultiMatchQueryBuilder multiMatch) throws IOException {
+        String rendered = render(multiMatch);
+        String queryMember = "\"query\":\"" + PLACEHOLDER + "\"";
+        // strip the query text as well as the closing braces of the multi_match object and the query itself
+        return new SerializedString(rendered.substring(rendered.indexOf(queryMember) + queryMember.length(), rendered.length() - 2));
+    }
+
+    private static SerializedString renderSourceFilter(List<String> includes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator gen = JSON.createGenerator(out, JsonEncoding.UTF8)) {
+            gen.writeStartObject();
+            gen.writeArrayFieldStart("includes");
+            for (String include : includes) {
+                gen.writeString(include);
+            }
+            gen.writeEndArray();
+            gen.writeEndObject();
+        }
+        return new SerializedString(out.toString(StandardCharsets.UTF_8));
+    }
+
+    private static AggregationBuilder createTermsAgg(String facet) {
+        return AggregationBuilders.terms("by_" + facet).field(facet + ".keyword");
+    }
+
+    private static List<AggregationBuilder> createPriceAndStockAggs() {
+        FiltersAggregator.KeyedFilter notInStockFilter = new FiltersAggregator.KeyedFilter("not_in_stock", QueryBuilders.termQuery("stock", 0));
+        FiltersAggregator.KeyedFilter inStockFilter = new FiltersAggregator.KeyedFilter("in_stock", QueryBuilders.rangeQuery("stock").gt(0));
+        return List.of(
+                AggregationBuilders.min("min_price").field("price"),
+                AggregationBuilders.max("max_price").field("price"),
+                AggregationBuilders.filters("by_stock", inStockFilter, notInStockFilter));
+    }
+
+    private static String render(ToXContent toXContent) throws IOException {
+        return XContentHelper.toXContent(toXContent, XContentType.JSON, ToXContent.EMPTY_PARAMS, false).utf8ToString();
+    }
+
+    // gives access to the internal buffer, so the rendered body does not need to be copied again
+    private static final class BodyOutputStream extends ByteArrayOutputStream {
+
+        private BodyOutputStream() {
+            super(1024);
+        }
+
+        private byte[] buffer() {
+            return buf;
+        }
+    }
+}
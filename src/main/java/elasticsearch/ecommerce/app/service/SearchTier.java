@@ -0,0 +1,22 @@
+package elasticsearch.ecommerce.app.service;
+
+/**
+ * The full text queries a search can be answered with, from the cheapest to the most expensive one
+ */
+public enum SearchTier {
+
+    // the query terms as they are
+    EXACT("exact"),
+    // the query terms with fuzzy expansions
+    FUZZY("fuzzy");
+
+    private final String name;
+
+    SearchTier(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
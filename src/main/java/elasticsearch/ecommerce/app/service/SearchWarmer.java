@@ -0,0 +1,105 @@
+package elasticsearch.ecommerce.app.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import elasticsearch.ecommerce.app.config.SearchTieringConfiguration;
+import elasticsearch.ecommerce.app.entities.Query;
+import io.micronaut.context.annotation.Value;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the most frequent searches, so that a new products index can be sent those searches before it replaces
+ * the current one. This loads the data structures the searches need, like the global ordinals of the facets, and
+ * fills the shard request cache, instead of the first users of the new index waiting for it.
+ *
+ * Searches are counted in a small Caffeine cache, its admission policy already keeps the most frequent ones.
+ */
+@Singleton
+public class SearchWarmer {
+
+    private static final int TRACKED_QUERIES = 1000;
+    private static final Logger LOG = LoggerFactory.getLogger(SearchWarmer.class);
+
+    private final RestHighLevelClient client;
+    private final SearchTemplates templates;
+    private final List<SearchTier> tiers;
+    private final boolean splitFacets;
+    private final Cache<String, WarmupQuery> queries = Caffeine.newBuilder().maximumSize(TRACKED_QUERIES).build();
+
+    @Inject
+    public SearchWarmer(RestHighLevelClient client, SearchTemplates templates, SearchTieringConfiguration tieringConfiguration,
+                        @Value("${search.split-facets.enabled:false}") boolean splitFacets) {
+        this.client = client;
+        this.templates = templates;
+        this.splitFacets = splitFacets;
+        this.tiers = tieringConfiguration.isEnabled() ? List.of(SearchTier.EXACT, SearchTier.FUZZY) : List.of(SearchTier.FUZZY);
+    }
+
+    /**
+     * Counts a search, all pages of a query count as the same search
+     */
+    public void record(SearchEndpoint endpoint, Query query) {
+        queries.get(endpoint.getName() + '/' + query.canonicalFormIgnoringPaging(), key -> new WarmupQuery(endpoint, query));
+    }
+
+    /**
+     * Sends the most frequent searches to the given index, waiting for each response. A failing request is logged and
+     * skipped, warming is only an optimization.
+     *
+     * @return number of requests that were answered successfully
+     */
+    public int warm(String index, int maxQueries) throws IOException {
+        Map<String, WarmupQuery> hottest = queries.policy().eviction().map(eviction -> eviction.hottest(maxQueries)).orElse(Map.of());
+        int warmed = 0;
+        for (WarmupQuery warmupQuery : hottest.values()) {
+            for (SearchTier tier : tiers) {
+                // the same requests as searches send, so that split facets end up in the request cache
+                if (warmupQuery.endpoint == SearchEndpoint.PRODUCTS_ONLY || splitFacets == false) {
+                    warmed += send(index, templates.render(warmupQuery.endpoint, warmupQuery.query, tier, SearchResponseFormat.FULL));
+                } else {
+                    warmed += send(index, templates.renderHits(warmupQuery.query, tier, SearchResponseFormat.FULL));
+                    warmed += send(index, templates.renderFacets(warmupQuery.endpoint, warmupQuery.query, tier));
+                }
+            }
+        }
+        return warmed;
+    }
+
+    private int send(String index, BytesRef source) {
+        Request request = new Request(HttpPost.METHOD_NAME, "/" + index + "/_search");
+        request.addParameter("request_cache", "true");
+        request.setEntity(new NByteArrayEntity(source.bytes, source.offset, source.length, ContentType.APPLICATION_JSON));
+        try {
+            client.getLowLevelClient().performRequest(request);
+            return 1;
+        } catch (IOException e) {
+            // error responses as well as timeouts and connection failures
+            LOG.warn("Could not warm index [{}] with query [{}]", index, source.utf8ToString(), e);
+            return 0;
+        }
+    }
+
+    private static final class WarmupQuery {
+
+        private final SearchEndpoint endpoint;
+        private final Query query;
+
+        private WarmupQuery(SearchEndpoint endpoint, Query query) {
+            this.endpoint = endpoint;
+            this.query = query;
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package elasticsearch.ecommerce.app.service;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import elasticsearch.ecommerce.app.config.SlowQueryConfiguration;
+import elasticsearch.ecommerce.app.entities.Query;
+import elasticsearch.ecommerce.app.entities.SlowQuery;
+import elasticsearch.ecommerce.app.json.RawJsonResponse;
+import elasticsearch.ecommerce.app.json.SearchResponses;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Captures the searches Elasticsearch was slow to answer, and a sample of all other searches, instead of logging
+ * every search. Captured searches are sent again with profiling, so their profile shows which parts of the query and
+ * which aggregations took the time.
+ *
+ * Searches are told apart by endpoint and query without paging, all pages of a query are one entry, which keeps the
+ * slowest request sent for it. The {@code size} slowest queries are kept in a min heap, so a slow query is only
+ * dropped for a slower one. Sampled queries are kept in a separate small ring, they never push slow queries out.
+ * Profiling runs in the background, with a small number of profiled searches at a time, searches captured while all
+ * of them are busy are kept without a profile.
+ */
+@Singleton
+public class SlowQueryLog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SlowQueryLog.class);
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final String INDEX = "products";
+    private static final byte[] PROFILE_FIELD = "\"profile\":true,".getBytes(StandardCharsets.UTF_8);
+
+    private final RestHighLevelClient client;
+    private final RequestOptions requestOptions;
+    private final boolean enabled;
+    private final long thresholdMillis;
+    private final double sampleRate;
+    private final boolean profile;
+    private final Semaphore profiles;
+    private final Counter slow;
+    private final Counter sampled;
+    private final Counter profileSkipped;
+
+    // guarded by this, the slowest queries with the fastest of them on top, and the last sampled queries
+    private final int size;
+    private final PriorityQueue<Entry> slowest = new PriorityQueue<>(Comparator.comparingLong(entry -> entry.maxTookMillis));
+    private final Entry[] samples;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private int nextSample = 0;
+
+    @Inject
+    public SlowQueryLog(RestHighLevelClient client, @Named("search") RequestOptions requestOptions,
+                        SlowQueryConfiguration configuration, MeterRegistry registry) {
+        this.client = client;
+        this.requestOptions = requestOptions;
+        this.enabled = configuration.isEnabled() && configuration.getSize() > 0;
+        this.thresholdMillis = configuration.getThreshold().toMillis();
+        this.sampleRate = configuration.getSampleRate();
+        this.profile = configuration.isProfile();
+        this.profiles = new Semaphore(configuration.getMaxConcurrentProfiles());
+        this.size = Math.max(1, configuration.getSize());
+        this.samples = new Entry[Math.max(0, configuration.getSampledSize())];
+        this.slow = Counter.builder("search.slow_queries.captured").tag("reason", Reason.SLOW.name)
+                .description("searches captured in the slow query log").register(registry);
+        this.sampled = Counter.builder("search.slow_queries.captured").tag("reason", Reason.SAMPLED.name)
+                .description("searches captured in the slow query log").register(registry);
+        this.profileSkipped = Counter.builder("search.slow_queries.profile_skipped")
+                .description("captured searches not profiled, because other profiled searches were still running").register(registry);
+    }
+
+    /**
+     * Called with every response of Elasticsearch, captures the search if it was slow or sampled
+     */
+    void record(SearchEndpoint endpoint, Query query, BytesRef source, byte[] response) {
+        if (enabled == false) {
+            return;
+        }
+        long took = SearchResponses.took(response);
+        Reason reason;
+        if (took >= thresholdMillis) {
+            reason = Reason.SLOW;
+            slow.increment();
+        } else if (sampleRate > 0 && samples.length > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate) {
+            reason = Reason.SAMPLED;
+            sampled.increment();
+        } else {
+            return;
+        }
+
+        String key = endpoint.getName() + '/' + query.canonicalFormIgnoringPaging();
+        Entry entry = capture(key, endpoint, source, reason, took);
+        if (entry != null && profile) {
+            if (profiles.tryAcquire()) {
+                sendProfiled(entry, source);
+            } else {
+                profileSkipped.increment();
+            }
+        }
+    }
+
+    /**
+     * @return the captured searches, the slowest first
+     */
+    public List<SlowQuery> slowest() {
+        List<SlowQuery> slowQueries = new ArrayList<>();
+        synchronized (this) {
+            for (Entry entry : entries.values()) {
+                slowQueries.add(new SlowQuery(entry.endpoint.getName(), entry.reason.name, entry.request, entry.count,
+                        entry.maxTookMillis, entry.lastTookMillis, entry.lastSeen, entry.profile));
+            }
+        }
+        slowQueries.sort(Comparator.comparingLong(SlowQuery::getMaxTookMillis).reversed());
+        return slowQueries;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        slowest.clear();
+        Arrays.fill(samples, null);
+        nextSample = 0;
+    }
+
+    /**
+     * @return the entry if the search has to be profiled, because it is new or slower than before, otherwise null
+     */
+    private synchronized Entry capture(String key, SearchEndpoint endpoint, BytesRef source, Reason reason, long took) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            boolean slower = took > entry.maxTookMillis;
+            if (entry.reason == Reason.SLOW) {
+                // the heap is ordered by the maximum, it has to be taken out before the maximum changes
+                slowest.remove(entry);
+                entry.seen(reason, took, source);
+                slowest.add(entry);
+                return slower && reason == Reason.SLOW ? entry : null;
+            }
+            if (reason == Reason.SAMPLED) {
+                entry.seen(reason, took, source);
+                return null;
+            }
+            // a sampled query turned out to be slow, its slot in the sample ring is left to be overwritten
+            entries.remove(key);
+            return addSlow(key, endpoint, source, took, entry.count);
+        }
+
+        if (reason == Reason.SLOW) {
+            return addSlow(key, endpoint, source, took, 0);
+        }
+        entry = addSample(key, endpoint);
+        entry.seen(reason, took, source);
+        return entry;
+    }
+
+    /**
+     * @return the new entry, or null if the heap is full of slower queries
+     */
+    private Entry addSlow(String key, SearchEndpoint endpoint, BytesRef source, long took, long previousCount) {
+        if (slowest.size() >= size) {
+            if (slowest.peek().maxTookMillis >= took) {
+                return null;
+            }
+            entries.remove(slowest.poll().key);
+        }
+        Entry entry = new Entry(key, endpoint);
+        entry.count = previousCount;
+        entry.seen(Reason.SLOW, took, source);
+        entries.put(key, entry);
+        slowest.add(entry);
+        return entry;
+    }
+
+    private Entry addSample(String key, SearchEndpoint endpoint) {
+        Entry oldest = samples[nextSample];
+        // the slot may belong to a query that has been moved to the slow queries since
+        if (oldest != null && entries.get(oldest.key) == oldest) {
+            entries.remove(oldest.key);
+        }
+        Entry entry = new Entry(key, endpoint);
+        samples[nextSample] = entry;
+        nextSample = (nextSample + 1) % samples.length;
+        entries.put(key, entry);
+        return entry;
+    }
+
+    private void sendProfiled(Entry entry, BytesRef source) {
+        // the request is rendered as an object, profiling is switched on by a field added in front of all others
+        byte[] profiled = new byte[source.length + PROFILE_FIELD.length];
+        profiled[0] = source.bytes[source.offset];
+        System.arraycopy(PROFILE_FIELD, 0, profiled, 1, PROFILE_FIELD.length);
+        System.arraycopy(source.bytes, source.offset + 1, profiled, 1 + PROFILE_FIELD.length, source.length - 1);
+
+        String request;
+        synchronized (this) {
+            request = entry.request;
+        }
+        Request profileRequest = new Request(HttpPost.METHOD_NAME, "/" + INDEX + "/_search");
+        profileRequest.setEntity(new NByteArrayEntity(profiled, ContentType.APPLICATION_JSON));
+        profileRequest.setOptions(requestOptions);
+        client.getLowLevelClient().performRequestAsync(profileRequest, new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                try {
+                    String profile = readProfile(RawJsonResponse.readFully(response.getEntity()));
+                    synchronized (SlowQueryLog.this) {
+                        // unless a slower request of the query has been captured meanwhile
+                        if (entry.request == request) {
+                            entry.profile = profile;
+                        }
+                    }
+                } catch (IOException e) {
+                    LOG.warn("Could not read the profile of slow query [{}]", entry.key, e);
+                } finally {
+                    profiles.release();
+                }
+            }
+
+            @Override
+            public void onFailure(Exception exception) {
+                profiles.release();
+                LOG.warn("Could not profile slow query [{}]", entry.key, exception);
+            }
+        });
+    }
+
+    // copies the profile section out of a search response
+    private static String readProfile(byte[] response) throws IOException {
+        try (JsonParser parser = JSON.createParser(response)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("expected an object as search response");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("profile".equals(field)) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    try (JsonGenerator gen = JSON.createGenerator(out, JsonEncoding.UTF8)) {
+                        gen.copyCurrentStructure(parser);
+                    }
+                    return out.toString(StandardCharsets.UTF_8);
+                }
+                parser.skipChildren();
+            }
+        }
+        throw new IOException("no profile in search response");
+    }
+
+    private enum Reason {
+
+        SLOW("slow"),
+        SAMPLED("sampled");
+
+        private final String name;
+
+        Reason(String name) {
+            this.name = name;
+        }
+    }
+
+    // guarded by the log
+    private static class Entry {
+
+        private final String key;
+        private final SearchEndpoint endpoint;
+        private String request;
+        private Reason reason;
+        private long count;
+        private long maxTookMillis = -1;
+        private long lastTookMillis;
+        private Instant lastSeen;
+        private String profile;
+
+        private Entry(String key, SearchEndpoint endpoint) {
+            this.key = key;
+            this.endpoint = endpoint;
+        }
+
+        private void seen(Reason reason, long took, BytesRef source) {
+            // a search that was slow once stays slow
+            if (this.reason != Reason.SLOW) {
+                this.reason = reason;
+            }
+            count++;
+            if (took > maxTookMillis) {
+                // the slowest request of the query is kept, along with its profile
+                maxTookMillis = took;
+                request = source.utf8ToString();
+                profile = null;
+            }
+            lastTookMillis = took;
+            lastSeen = Instant.now();
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package elasticsearch.ecommerce.app.service;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+import org.apache.lucene.util.fst.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * An immutable prefix index over the names, brands, colors and materials of all products, each with the number of
+ * products it occurs in.
+ *
+ * Every suggestion is stored under its normalized text, multi word texts also under each following word, so that
+ * "sho" suggests "Rustic Steel Shoes". The keys are compiled into a Lucene {@link FST}, which shares the common
+ * prefixes and suffixes of all keys instead of holding every suffix as a separate string. Each key is followed by
+ * the id of its suggestion and outputs that id, so the best suggestions of a prefix are the paths below it with the
+ * lowest outputs, which {@link Util.TopNSearcher} finds without visiting the other keys. The responses for all
+ * prefixes up to {@link #PRECOMPUTED_LENGTH} characters are rendered when building the index.
+ */
+public final class SuggestIndex {
+
+    public static final int SIZE = 10;
+    private static final int PRECOMPUTED_LENGTH = 3;
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final char SEPARATOR = '\u001f';
+    // ends a key before the id of its suggestion, sorts before any character of a key
+    private static final byte KEY_END = 0;
+    private static final byte[] NO_SUGGESTIONS = "{\"suggestions\":[]}".getBytes(StandardCharsets.UTF_8);
+
+    static final SuggestIndex EMPTY = new Builder().build();
+
+    // normalized keys mapped to the id of their suggestion, null if there are no suggestions
+    private final FST<Long> fst;
+    // the most keys a single suggestion is stored under, the same suggestion can be found that many times per prefix
+    private final int maxKeysPerSuggestion;
+    // the suggestions, ordered by count descending, so that a lower id is always the better suggestion
+    private final String[] texts;
+    private final String[] types;
+    private final int[] counts;
+    private final Map<String, byte[]> precomputed = new HashMap<>();
+
+    private SuggestIndex(FST<Long> fst, int maxKeysPerSuggestion, String[] texts, String[] types, int[] counts,
+                         Set<String> shortPrefixes) {
+        this.fst = fst;
+        this.maxKeysPerSuggestion = maxKeysPerSuggestion;
+        this.texts = texts;
+        this.types = types;
+        this.counts = counts;
+        for (String prefix : shortPrefixes) {
+            precomputed.put(prefix, lookup(prefix));
+        }
+    }
+
+    /**
+     * @return number of distinct suggestions
+     */
+    public int size() {
+        return texts.length;
+    }
+
+    /**
+     * Returns the JSON response with the best suggestions starting with the given prefix
+     */
+    public byte[] suggest(String prefix) {
+        String normalized = normalize(prefix);
+        if (normalized.isEmpty()) {
+            return NO_SUGGESTIONS;
+        }
+        if (normalized.length() <= PRECOMPUTED_LENGTH) {
+            return precomputed.getOrDefault(normalized, NO_SUGGESTIONS);
+        }
+        return lookup(normalized);
+    }
+
+    private byte[] lookup(String prefix) {
+        if (fst == null) {
+            return NO_SUGGESTIONS;
+        }
+        try {
+            FST.BytesReader reader = fst.getBytesReader();
+            FST.Arc<Long> arc = fst.getFirstArc(new FST.Arc<>());
+            Long output = fst.outputs.getNoOutput();
+            for (byte b : prefix.getBytes(StandardCharsets.UTF_8)) {
+                if (fst.findTargetArc(b & 0xff, arc, arc, reader) == null) {
+                    return NO_SUGGESTIONS;
+                }
+                output = fst.outputs.add(output, arc.output());
+            }
+
+            // a suggestion found under several words of the prefix only counts once, so the queue has to hold
+            // enough paths to still contain the best distinct ones
+            int[] best = new int[SIZE];
+            int[] found = new int[1];
+            Util.TopNSearcher<Long> searcher = new Util.TopNSearcher<>(fst, SIZE, SIZE * maxKeysPerSuggestion, Long::compare) {
+                @Override
+                protected boolean acceptResult(IntsRef input, Long suggestion) {
+                    for (int i = 0; i < found[0]; i++) {
+                        if (best[i] == suggestion) {
+                            return false;
+                        }
+                    }
+                    best[found[0]++] = suggestion.intValue();
+                    return true;
+                }
+            };
+            searcher.addStartPaths(arc, output, false, new IntsRefBuilder());
+            searcher.search();
+            return found[0] == 0 ? NO_SUGGESTIONS : render(best, found[0]);
+        } catch (IOException e) {
+            // cannot happen when reading the FST from the heap
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private byte[] render(int[] suggestions, int count) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 * count);
+        try (JsonGenerator gen = JSON.createGenerator(out, JsonEncoding.UTF8)) {
+            gen.writeStartObject();
+            gen.writeArrayFieldStart("suggestions");
+            for (int i = 0; i < count; i++) {
+                int suggestion = suggestions[i];
+                gen.writeStartObject();
+                gen.writeStringField("text", texts[suggestion]);
+                gen.writeStringField("type", types[suggestion]);
+                gen.writeNumberField("count", counts[suggestion]);
+                gen.writeEndObject();
+            }
+            gen.writeEndArray();
+            gen.writeEndObject();
+        } catch (IOException e) {
+            // cannot happen when writing to a byte array
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        return WHITESPACE.matcher(text.strip()).replaceAll(" ").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Counts the suggestions of a stream of products, not thread safe
+     */
+    public static final class Builder {
+
+        private final Map<String, Suggestion> suggestions = new HashMap<>();
+
+        public Builder add(String name, String brand, String color, String material) {
+            add("name", name);
+            add("brand", brand);
+            add("color", color);
+            add("material", material);
+            return this;
+        }
+
+        private void add(String type, String text) {
+            if (text == null || text.isBlank()) {
+                return;
+            }
+            String stripped = WHITESPACE.matcher(text.strip()).replaceAll(" ");
+            suggestions.computeIfAbsent(type + SEPARATOR + stripped, k -> new Suggestion(type, stripped)).count++;
+        }
+
+        public SuggestIndex build() {
+            List<Suggestion> sorted = new ArrayList<>(suggestions.values());
+            sorted.sort(Comparator.comparingInt((Suggestion s) -> s.count).reversed().thenComparing(s -> s.text));
+            String[] texts = new String[sorted.size()];
+            String[] types = new String[sorted.size()];
+            int[] counts = new int[sorted.size()];
+
+            List<BytesRef> keys = new ArrayList<>();
+            Set<String> shortPrefixes = new HashSet<>();
+            int maxKeysPerSuggestion = 1;
+            for (int i = 0; i < sorted.size(); i++) {
+                Suggestion suggestion = sorted.get(i);
+                texts[i] = suggestion.text;
+                types[i] = suggestion.type;
+                counts[i] = suggestion.count;
+                String normalized = normalize(suggestion.text);
+                int keysOfSuggestion = 1;
+                addKey(keys, shortPrefixes, normalized, i);
+                for (int space = normalized.indexOf(' '); space >= 0; space = normalized.indexOf(' ', space + 1)) {
+                    addKey(keys, shortPrefixes, normalized.substring(space + 1), i);
+                    keysOfSuggestion++;
+                }
+                maxKeysPerSuggestion = Math.max(maxKeysPerSuggestion, keysOfSuggestion);
+            }
+            // the FST is built from its inputs in byte order
+            keys.sort(Comparator.naturalOrder());
+
+            PositiveIntOutputs outputs = PositiveIntOutputs.getSingleton();
+            org.apache.lucene.util.fst.Builder<Long> fstBuilder = new org.apache.lucene.util.fst.Builder<>(FST.INPUT_TYPE.BYTE1, outputs);
+            IntsRefBuilder input = new IntsRefBuilder();
+            try {
+                for (BytesRef key : keys) {
+                    long suggestion = 0;
+                    for (int i = key.length - Integer.BYTES; i < key.length; i++) {
+                        suggestion = suggestion << 8 | (key.bytes[i] & 0xff);
+                    }
+                    fstBuilder.add(Util.toIntsRef(key, input), suggestion);
+                }
+                return new SuggestIndex(fstBuilder.finish(), maxKeysPerSuggestion, texts, types, counts, shortPrefixes);
+            } catch (IOException e) {
+                // cannot happen when building the FST on the heap
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private static void addKey(List<BytesRef> keys, Set<String> shortPrefixes, String key, int suggestion) {
+            byte[] text = key.getBytes(StandardCharsets.UTF_8);
+            byte[] bytes = Arrays.copyOf(text, text.length + 1 + Integer.BYTES);
+            bytes[text.length] = KEY_END;
+            // big endian, so that the keys of the same text are sorted by suggestion
+            for (int i = bytes.length - 1; i > text.length; i--, suggestion >>>= 8) {
+                bytes[i] = (byte) suggestion;
+            }
+            keys.add(new BytesRef(bytes));
+            for (int length = 1; length <= Math.min(PRECOMPUTED_LENGTH, key.length()); length++) {
+                shortPrefixes.add(key.substring(0, length));
+            }
+        }
+    }
+
+    private static final class Suggestion {
+
+        private final String type;
+        private final String text;
+        private int count;
+
+        private Suggestion(String type, String text) {
+            this.type = type;
+            this.text = text;
+        }
+    }
+}
@@ -10,18 +10,37 @@ var app = new Vue({
         this.message = "Reindexing..."
         axios
           .post("http://localhost:8080/admin/index_data?numberOfProducts=" + this.numberOfProducts)
-          .then(response => ( this.message = "" ))
+          .then(response => this.poll(response.data.id, result => "Indexed " + result.indexed + " products, " + result.failed + " failed"))
           .catch(error => this.message = "Error reindexing: " + JSON.stringify(error.response.data))
       },
       configure_synonyms: function() {
         this.message = "Configuring synonyms..."
         axios
           .post("http://localhost:8080/admin/configure_synonyms", {synonyms: this.synonyms})
+          .then(response => this.poll(response.data.id, result => "Updated synonyms in " + result.tookInMillis + "ms, copied " +
+            result.documents + " products to " + result.index))
+          .catch(error => this.message = "Error updating synonyms: " + JSON.stringify(error.response.data))
+      },
+      // shows the progress of a job every second until it is done
+      poll: function(id, describeResult) {
+        axios
+          .get("http://localhost:8080/admin/jobs/" + id)
           .then(response => {
-            console.log("IN RESPONSE123 ", response)
-            this.message = ""
+            var job = response.data
+            if (job.state === "succeeded") {
+              this.message = describeResult(job.result)
+            } else if (job.state === "failed" || job.state === "cancelled") {
+              this.message = "Job " + job.id + " " + job.state + ": " + job.error
+            } else {
+              this.message = "Job " + job.id + " " + job.state
+              if (job.percentDone >= 0) {
+                this.message += ", " + job.percentDone.toFixed(1) + "% done, " + Math.round(job.docsPerSecond) + " docs/s, " +
+                  Math.round(job.bytesSent / 1024 / 1024) + "MB sent"
+              }
+              setTimeout(() => this.poll(id, describeResult), 1000)
+            }
           })
-          .catch(error => this.message = "Error updating synonyms: " + JSON.stringify(error.response.data))
-       }
+          .catch(error => this.message = "Error polling job " + id + ": " + JSON.stringify(error.response.data))
+      }
     }
 });
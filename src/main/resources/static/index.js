@@ -8,6 +8,7 @@ var app = new Vue({
         feature: "products_with_filtered_aggs",
         query: "autoss",
         searchResponse: null,
+        suggestions: [],
         filters: [],
         from : 0,
         price_from: null,
@@ -53,6 +54,11 @@ var app = new Vue({
             this.filters.splice(index, 1, filter)
         }
       },
+      suggest : function() {
+        axios
+          .get("http://localhost:8080/search/suggest", { params: { q: this.query } })
+          .then(response => this.suggestions = response.data.suggestions)
+      },
       search : function() {
         url = this.features[this.feature].url
         query = { query: this.query, from: this.from }
@@ -0,0 +1,195 @@
+package elasticsearch.ecommerce.app.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import elasticsearch.ecommerce.app.entities.Query;
+import org.apache.lucene.util.BytesRef;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the facets of products_with_filtered_aggs are counted the same, whether they are requested from
+ * Elasticsearch with the aggregations rendered by {@link SearchTemplates} or counted by the {@link FacetIndex}.
+ *
+ * The rendered request is evaluated here over the same products the local index was built from, supporting just the
+ * queries the templates write for a search without query text.
+ */
+public class FilteredAggregationsTest {
+
+    private static final List<String> BRANDS = List.of("Müller GmbH", "Schmidt AG", "Weber KG", "Fischer AG");
+    private static final List<String> COLORS = List.of("rot", "blau", "grün", "schwarz", "weiß");
+    private static final List<String> MATERIALS = List.of("Leder", "Holz", "Stahl");
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final List<Map<String, Object>> products = new ArrayList<>();
+    private FacetIndex facetIndex;
+    private SearchTemplates templates;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        Random random = new Random(7);
+        FacetIndex.Builder builder = new FacetIndex.Builder();
+        for (int i = 0; i < 2000; i++) {
+            Map<String, Object> product = new HashMap<>();
+            product.put("brand", BRANDS.get(random.nextInt(BRANDS.size())));
+            // some products have no color
+            product.put("color", random.nextInt(10) == 0 ? null : COLORS.get(random.nextInt(COLORS.size())));
+            product.put("material", MATERIALS.get(random.nextInt(MATERIALS.size())));
+            product.put("price", (double) random.nextInt(20000) / 100);
+            product.put("stock", random.nextInt(4) == 0 ? 0 : random.nextInt(100));
+            products.add(product);
+            builder.add(String.valueOf(i), (String) product.get("brand"), (String) product.get("color"),
+                    (String) product.get("material"), (double) product.get("price"), (int) product.get("stock"));
+        }
+        facetIndex = builder.build();
+        templates = new SearchTemplates();
+    }
+
+    @Test
+    public void testSeveralValuesOfTheSameFacet() throws IOException {
+        Map<String, Map<String, Integer>> counts = assertSameCounts("{\"filters\":["
+                + "{\"key\":\"brand\",\"value\":\"Müller GmbH\",\"type\":\"term\"},"
+                + "{\"key\":\"brand\",\"value\":\"Schmidt AG\",\"type\":\"term\"},"
+                + "{\"key\":\"color\",\"value\":\"rot\",\"type\":\"term\"},"
+                + "{\"key\":\"color\",\"value\":\"blau\",\"type\":\"term\"}]}");
+        // AND'ing both brands would leave nothing to count
+        assertFalse(counts.get("by_material").isEmpty());
+    }
+
+    @Test
+    public void testSeveralValuesWithRanges() throws IOException {
+        Map<String, Map<String, Integer>> counts = assertSameCounts("{\"filters\":["
+                + "{\"key\":\"brand\",\"value\":\"Müller GmbH\",\"type\":\"term\"},"
+                + "{\"key\":\"brand\",\"value\":\"Weber KG\",\"type\":\"term\"},"
+                + "{\"key\":\"material\",\"value\":\"Leder\",\"type\":\"term\"},"
+                + "{\"key\":\"material\",\"value\":\"Holz\",\"type\":\"term\"},"
+                + "{\"key\":\"price\",\"value\":\"10-120\",\"type\":\"range\",\"from\":\"10\",\"to\":\"120\"},"
+                + "{\"key\":\"stock\",\"value\":\"1-\",\"type\":\"range\",\"from\":\"1\",\"to\":\"\"}]}");
+        assertFalse(counts.get("by_color").isEmpty());
+    }
+
+    @Test
+    public void testSingleValues() throws IOException {
+        assertSameCounts("{\"filters\":["
+                + "{\"key\":\"brand\",\"value\":\"Fischer AG\",\"type\":\"term\"},"
+                + "{\"key\":\"color\",\"value\":\"grün\",\"type\":\"term\"}]}");
+    }
+
+    /**
+     * @return the counts of every facet by value, including a "doc_count" entry for filtered facets
+     */
+    private Map<String, Map<String, Integer>> assertSameCounts(String body) throws IOException {
+        Query query = mapper.readValue(body, Query.class);
+        assertTrue(facetIndex.canCount(query));
+
+        BytesRef rendered = templates.renderFacets(SearchEndpoint.PRODUCTS_WITH_FILTERED_AGGS, query, SearchTier.EXACT);
+        JsonNode request = mapper.readTree(rendered.bytes, rendered.offset, rendered.length);
+        Map<String, Map<String, Integer>> expected = evaluateAggs(request);
+
+        JsonNode local = mapper.readTree(facetIndex.aggregations(SearchEndpoint.PRODUCTS_WITH_FILTERED_AGGS, query));
+        Map<String, Map<String, Integer>> actual = new TreeMap<>();
+        for (String name : expected.keySet()) {
+            actual.put(name, readTerms(local.get(name), name));
+        }
+        assertEquals(expected, actual);
+        return actual;
+    }
+
+    /**
+     * Counts the terms aggregations of the rendered request, with their filter aggregations if there are any
+     */
+    private Map<String, Map<String, Integer>> evaluateAggs(JsonNode request) {
+        JsonNode query = request.get("query");
+        Map<String, Map<String, Integer>> counts = new TreeMap<>();
+        for (Iterator<Map.Entry<String, JsonNode>> it = request.get("aggs").fields(); it.hasNext(); ) {
+            Map.Entry<String, JsonNode> agg = it.next();
+            if (agg.getKey().startsWith("by_") == false || agg.getKey().equals("by_stock")) {
+                continue;
+            }
+            JsonNode filter = agg.getValue().get("filter");
+            JsonNode terms = filter == null ? agg.getValue().get("terms") : agg.getValue().get("aggs").get(agg.getKey()).get("terms");
+            String field = terms.get("field").asText().replace(".keyword", "");
+
+            Map<String, Integer> values = new TreeMap<>();
+            int docCount = 0;
+            for (Map<String, Object> product : products) {
+                if (matches(query, product) && (filter == null || matches(filter, product))) {
+                    docCount++;
+                    if (product.get(field) != null) {
+                        values.merge((String) product.get(field), 1, Integer::sum);
+                    }
+                }
+            }
+            if (filter != null) {
+                values.put("doc_count", docCount);
+            }
+            counts.put(agg.getKey(), values);
+        }
+        return counts;
+    }
+
+    private static Map<String, Integer> readTerms(JsonNode agg, String name) {
+        Map<String, Integer> values = new TreeMap<>();
+        JsonNode terms = agg;
+        if (agg.has(name)) {
+            values.put("doc_count", agg.get("doc_count").asInt());
+            terms = agg.get(name);
+        }
+        for (JsonNode bucket : terms.get("buckets")) {
+            values.put(bucket.get("key").asText(), bucket.get("doc_count").asInt());
+        }
+        return values;
+    }
+
+    private static boolean matches(JsonNode clause, Map<String, Object> product) {
+        Map.Entry<String, JsonNode> query = clause.fields().next();
+        JsonNode body = query.getValue();
+        switch (query.getKey()) {
+            case "match_all":
+                return true;
+            case "term": {
+                Map.Entry<String, JsonNode> term = body.fields().next();
+                return term.getValue().asText().equals(product.get(term.getKey().replace(".keyword", "")));
+            }
+            case "range": {
+                Map.Entry<String, JsonNode> range = body.fields().next();
+                double value = ((Number) product.get(range.getKey())).doubleValue();
+                return (range.getValue().has("gte") == false || value >= range.getValue().get("gte").asDouble())
+                        && (range.getValue().has("lte") == false || value <= range.getValue().get("lte").asDouble());
+            }
+            case "bool": {
+                for (String occur : List.of("must", "filter")) {
+                    for (JsonNode inner : body.path(occur)) {
+                        if (matches(inner, product) == false) {
+                            return false;
+                        }
+                    }
+                }
+                if (body.has("should")) {
+                    for (JsonNode inner : body.get("should")) {
+                        if (matches(inner, product)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+                return true;
+            }
+            default:
+                throw new IllegalArgumentException("Unsupported query: " + query.getKey());
+        }
+    }
+}